@@ -0,0 +1,108 @@
+package io.gridbug.ytu.ytutility.benchmarks;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.youtube.model.PageInfo;
+import com.google.api.services.youtube.model.PlaylistItem;
+import com.google.api.services.youtube.model.PlaylistItemContentDetails;
+import com.google.api.services.youtube.model.PlaylistItemSnippet;
+import com.google.api.services.youtube.model.ResourceId;
+import com.google.api.services.youtube.model.Subscription;
+import com.google.api.services.youtube.model.SubscriptionListResponse;
+import com.google.api.services.youtube.model.SubscriptionSnippet;
+import com.google.api.services.youtube.model.Thumbnail;
+import com.google.api.services.youtube.model.ThumbnailDetails;
+import com.google.api.services.youtube.model.Video;
+import com.google.api.services.youtube.model.VideoContentDetails;
+import com.google.api.services.youtube.model.VideoSnippet;
+import com.google.api.services.youtube.model.VideoStatistics;
+import com.google.api.services.youtube.model.VideoStatus;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import io.gridbug.ytu.ytutility.model.ChannelCheck;
+
+/**
+ * synthetic api records shaped like the ones the pipeline writes, with descriptions about as long as
+ * real ones so payload sizes are representative
+ */
+final class ApiFixtures {
+
+    private static final String DESCRIPTION = String.join(" ", Collections.nCopies(120, "lorem ipsum dolor"));
+
+    private ApiFixtures() {}
+
+    static String channelId(int i) {
+        return String.format("UC%022d", i);
+    }
+
+    static String videoId(int i) {
+        return String.format("v%010d", i);
+    }
+
+    static ChannelCheck channelCheck(int i) {
+        ChannelCheck check = new ChannelCheck();
+        check.setId(channelId(i));
+        check.setRequestedOn(org.joda.time.DateTime.now());
+        return check;
+    }
+
+    static PlaylistItem playlistItem(int i) {
+        DateTime published = new DateTime(1_500_000_000_000L + i * 60_000L);
+        return new PlaylistItem()
+            .setId("PL" + videoId(i))
+            .setEtag("\"etag-" + i + "\"")
+            .setSnippet(new PlaylistItemSnippet()
+                .setChannelId(channelId(i % 100))
+                .setTitle("video " + i)
+                .setDescription(DESCRIPTION)
+                .setPublishedAt(published)
+                .setResourceId(new ResourceId().setKind("youtube#video").setVideoId(videoId(i)))
+                .setThumbnails(thumbnails(i)))
+            .setContentDetails(new PlaylistItemContentDetails().setVideoId(videoId(i)).setVideoPublishedAt(published));
+    }
+
+    static Video video(int i) {
+        return new Video()
+            .setId(videoId(i))
+            .setEtag("\"etag-" + i + "\"")
+            .setSnippet(new VideoSnippet()
+                .setChannelId(channelId(i % 100))
+                .setTitle("video " + i)
+                .setDescription(DESCRIPTION)
+                .setPublishedAt(new DateTime(1_500_000_000_000L + i * 60_000L))
+                .setThumbnails(thumbnails(i)))
+            .setContentDetails(new VideoContentDetails().setDuration("PT12M34S").setDefinition("hd"))
+            .setStatistics(new VideoStatistics().setViewCount(BigInteger.valueOf(1000L * i))
+                .setLikeCount(BigInteger.valueOf(i)).setCommentCount(BigInteger.valueOf(i / 10)))
+            .setStatus(new VideoStatus().setPrivacyStatus("public"));
+    }
+
+    static SubscriptionListResponse subscriptionPage(int items) {
+        List<Subscription> subs = new ArrayList<>();
+        for (int i = 0; i < items; i++) {
+            subs.add(new Subscription()
+                .setId("sub" + i)
+                .setSnippet(new SubscriptionSnippet()
+                    .setTitle("channel " + i)
+                    .setDescription(DESCRIPTION)
+                    .setPublishedAt(new DateTime(1_400_000_000_000L + i * 60_000L))
+                    .setResourceId(new ResourceId().setKind("youtube#channel").setChannelId(channelId(i)))
+                    .setThumbnails(thumbnails(i))));
+        }
+        return new SubscriptionListResponse()
+            .setKind("youtube#subscriptionListResponse")
+            .setNextPageToken("CDIQAA")
+            .setPageInfo(new PageInfo().setTotalResults(items).setResultsPerPage(items))
+            .setItems(subs);
+    }
+
+    private static ThumbnailDetails thumbnails(int i) {
+        return new ThumbnailDetails()
+            .setDefault(new Thumbnail().setUrl("https://i.ytimg.com/vi/" + videoId(i) + "/default.jpg"))
+            .setMedium(new Thumbnail().setUrl("https://i.ytimg.com/vi/" + videoId(i) + "/mqdefault.jpg"))
+            .setHigh(new Thumbnail().setUrl("https://i.ytimg.com/vi/" + videoId(i) + "/hqdefault.jpg"));
+    }
+}
@@ -0,0 +1,93 @@
+package io.gridbug.ytu.ytutility.benchmarks;
+
+import com.google.api.services.youtube.model.PlaylistItem;
+import com.google.api.services.youtube.model.Subscription;
+import com.google.api.services.youtube.model.SubscriptionListResponse;
+import com.google.api.services.youtube.model.Video;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import io.gridbug.ytu.ytutility.storage.JsonCodec;
+
+/**
+ * api payload files: serializing playlist items and video details the way writeJsonGObject does,
+ * parsing a playlist item file, and parsing a page of subscriptions both as one response tree and
+ * streamed item by item as subs-to-db does
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ApiPayloadBenchmark {
+
+    private JsonCodec codec;
+    private PlaylistItem playlistItem;
+    private Video video;
+    private Path dir;
+    private Path written;
+    private Path playlistItemFile;
+    private Path subscriptionsFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        codec = new JsonCodec();
+        playlistItem = ApiFixtures.playlistItem(7);
+        video = ApiFixtures.video(7);
+        dir = Files.createTempDirectory("jmh-payloads");
+        written = dir.resolve("written.json");
+        playlistItemFile = dir.resolve("playlist-item.json");
+        subscriptionsFile = dir.resolve("mysubs.json");
+        codec.writeApiObject(playlistItem, playlistItemFile);
+        // a full page, as fetch-subs writes them
+        codec.writeApiObject(ApiFixtures.subscriptionPage(50), subscriptionsFile);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (Path path : new Path[] { written, playlistItemFile, subscriptionsFile, dir }) Files.deleteIfExists(path);
+    }
+
+    @Benchmark
+    public void writePlaylistItem() throws IOException {
+        codec.writeApiObject(playlistItem, written);
+    }
+
+    @Benchmark
+    public void writeVideoDetails() throws IOException {
+        codec.writeApiObject(video, written);
+    }
+
+    @Benchmark
+    public PlaylistItem readPlaylistItem() throws IOException {
+        return codec.readApiObject(playlistItemFile, PlaylistItem.class);
+    }
+
+    @Benchmark
+    public SubscriptionListResponse readSubscriptionPage() throws IOException {
+        return codec.readApiObject(subscriptionsFile, SubscriptionListResponse.class);
+    }
+
+    @Benchmark
+    public int streamSubscriptionPage(Blackhole blackhole) throws IOException {
+        return codec.streamApiItems(subscriptionsFile, Subscription.class, blackhole::consume);
+    }
+}
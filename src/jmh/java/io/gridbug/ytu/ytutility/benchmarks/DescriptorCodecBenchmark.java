@@ -0,0 +1,80 @@
+package io.gridbug.ytu.ytutility.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.gridbug.ytu.ytutility.model.ChannelCheck;
+import io.gridbug.ytu.ytutility.storage.JsonCodec;
+
+/**
+ * descriptor round trips as DescriptorStore does them: to and from a file (writeJsonDescriptor /
+ * readDescriptor) and to and from the bytes of a queue record
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class DescriptorCodecBenchmark {
+
+    private JsonCodec codec;
+    private ChannelCheck check;
+    private byte[] record;
+    private Path dir;
+    private Path written;
+    private Path existing;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        codec = new JsonCodec();
+        check = ApiFixtures.channelCheck(42);
+        record = codec.write(check);
+        dir = Files.createTempDirectory("jmh-descriptors");
+        written = dir.resolve("written.json");
+        existing = dir.resolve("existing.json");
+        codec.write(check, existing);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(written);
+        Files.deleteIfExists(existing);
+        Files.deleteIfExists(dir);
+    }
+
+    @Benchmark
+    public void writeDescriptorFile() throws IOException {
+        codec.write(check, written);
+    }
+
+    @Benchmark
+    public ChannelCheck readDescriptorFile() throws IOException {
+        return codec.read(existing, ChannelCheck.class);
+    }
+
+    @Benchmark
+    public byte[] encodeQueueRecord() throws IOException {
+        return codec.write(check);
+    }
+
+    @Benchmark
+    public ChannelCheck decodeQueueRecord() throws IOException {
+        return codec.read(record, ChannelCheck.class);
+    }
+}
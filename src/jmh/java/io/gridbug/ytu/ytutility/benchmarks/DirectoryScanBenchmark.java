@@ -0,0 +1,103 @@
+package io.gridbug.ytu.ytutility.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.gridbug.ytu.ytutility.storage.VideoStateIndex;
+
+/**
+ * scans over a synthetic channel data tree laid out like the old one (channelId/videoId.json and
+ * channelId/details-videoId.json): a full walk of the tree, which is how the stages found their work
+ * before the video state index, and the index rebuild from it. the tree is built once per trial; the
+ * 1m case needs a few minutes and about a million free inodes in java.io.tmpdir
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DirectoryScanBenchmark {
+
+    private static final int VIDEOS_PER_CHANNEL = 500;
+
+    @Param({ "10000", "100000", "1000000" })
+    public int files;
+
+    private Path tree;
+    private Path journalDir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        tree = Files.createTempDirectory("jmh-channel-data");
+        // every video is listed and every other one has its details fetched as well, as in the real
+        // tree, so there are three files to every two videos
+        int created = 0;
+        for (int i = 0; created < files; i++) {
+            Path channel = tree.resolve(ApiFixtures.channelId(i / VIDEOS_PER_CHANNEL));
+            if (i % VIDEOS_PER_CHANNEL == 0) Files.createDirectories(channel);
+            Files.createFile(channel.resolve(ApiFixtures.videoId(i) + ".json"));
+            created++;
+            if (i % 2 == 0 && created < files) {
+                Files.createFile(channel.resolve("details-" + ApiFixtures.videoId(i) + ".json"));
+                created++;
+            }
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void freshJournal() throws IOException {
+        journalDir = Files.createTempDirectory("jmh-video-index");
+    }
+
+    @TearDown(Level.Invocation)
+    public void dropJournal() throws IOException {
+        delete(journalDir);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        delete(tree);
+    }
+
+    @Benchmark
+    public long walkChannelTree() throws IOException {
+        try (Stream<Path> paths = Files.walk(tree)) {
+            return paths.filter(Files::isRegularFile)
+                .filter(path -> path.toString().endsWith(".json"))
+                .count();
+        }
+    }
+
+    @Benchmark
+    public int rebuildVideoIndex() throws IOException {
+        try (VideoStateIndex index = new VideoStateIndex(journalDir.resolve("videos.journal"))) {
+            index.rebuildFrom(tree);
+            return index.size();
+        }
+    }
+
+    private static void delete(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) Files.delete(path);
+        }
+    }
+}
@@ -1,27 +1,21 @@
 package io.gridbug.ytu.ytutility;
 
-import com.fasterxml.jackson.core.JsonFactory;
-import com.fasterxml.jackson.core.JsonGenerator;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.api.client.json.JsonParser;
-
 import com.google.api.services.youtube.model.*;
 import com.google.api.services.youtube.YouTube;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Optional;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -36,15 +30,30 @@ import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import io.gridbug.ytu.ytutility.configuration.ConditionalRequestCache;
+import io.gridbug.ytu.ytutility.configuration.PipelineMetrics;
+import io.gridbug.ytu.ytutility.configuration.QuotaLimiter;
 import io.gridbug.ytu.ytutility.configuration.YTUProperties;
 import io.gridbug.ytu.ytutility.configuration.YoutubeService;
+import io.gridbug.ytu.ytutility.dao.BulkIngestDao;
+import io.gridbug.ytu.ytutility.dao.ChannelInfoCache;
 import io.gridbug.ytu.ytutility.dao.ChannelInfoRepository;
 import io.gridbug.ytu.ytutility.dao.SubscriptionRepository;
 import io.gridbug.ytu.ytutility.model.Subscription;
-import io.gridbug.ytu.ytutility.model.VideoForChannelCheck;
 import io.gridbug.ytu.ytutility.model.ChannelCheck;
 import io.gridbug.ytu.ytutility.model.ChannelInfo;
+import io.gridbug.ytu.ytutility.pipeline.DescriptorStore;
+import io.gridbug.ytu.ytutility.pipeline.DescriptorWatcher;
+import io.gridbug.ytu.ytutility.pipeline.DownloadEngine;
+import io.gridbug.ytu.ytutility.pipeline.StageOrchestrator;
+import io.gridbug.ytu.ytutility.pipeline.UploadsScraper;
+import io.gridbug.ytu.ytutility.pipeline.VideoDetailsFetcher;
+import io.gridbug.ytu.ytutility.storage.ActionHistory;
+import io.gridbug.ytu.ytutility.storage.ChannelSegmentStore;
+import io.gridbug.ytu.ytutility.storage.JsonCodec;
 
 @EnableScheduling
 @SpringBootApplication
@@ -59,8 +68,8 @@ public class YtUtilityApplication implements CommandLineRunner {
 	private static final int NORMAL_EXIT = 0;
 	private static final int PATH_FAILURE = 1;
 
-	private JsonFactory jsonFactory;
-	
+	private static final int DESCRIPTOR_BATCH_SIZE = 50;
+
 	@Autowired
 	private YTUProperties ytProperties;
 
@@ -70,12 +79,57 @@ public class YtUtilityApplication implements CommandLineRunner {
 	@Autowired
 	private YoutubeService ytService;
 
+	@Autowired
+	private QuotaLimiter quotaLimiter;
+
+	@Autowired
+	private ConditionalRequestCache responseCache;
+
+	@Autowired
+	private PipelineMetrics metrics;
+
 	@Autowired
 	private SubscriptionRepository subsdao;
 
 	@Autowired
 	private ChannelInfoRepository chandao;
 
+	@Autowired
+	private ChannelInfoCache channelCache;
+
+	@Autowired
+	private BulkIngestDao bulkdao;
+
+	@Autowired
+	private PlatformTransactionManager txManager;
+
+	@Autowired
+	private DescriptorStore store;
+
+	@Autowired
+	private JsonCodec codec;
+
+	@Autowired
+	private VideoDetailsFetcher detailsFetcher;
+
+	@Autowired
+	private UploadsScraper uploadsScraper;
+
+	@Autowired
+	private DownloadEngine downloadEngine;
+
+	@Autowired
+	private StageOrchestrator pipeline;
+
+	@Autowired
+	private ActionHistory history;
+
+	@Autowired
+	private ChannelSegmentStore channelData;
+
+	@Autowired
+	private DescriptorWatcher watcher;
+
 	public void run(String... args) {
 		try {
 			LOGGER.log(Level.INFO, "yt utility CommandLineRunner invoked...");
@@ -90,6 +144,7 @@ public class YtUtilityApplication implements CommandLineRunner {
 			// and allow that to happen
 			if (pargs.getOptionNames().size() == 0) {
 				LOGGER.log(Level.INFO, "yt utility started with no args; running web service");
+				if (ytProperties.isDescriptorWatch()) watchDescriptors();
 				return;
 			}
 			
@@ -124,7 +179,8 @@ public class YtUtilityApplication implements CommandLineRunner {
 			}
 
 			// if invoked with --stage-video-for-channel-check, we will write a descriptor requesting
-			// a check for new videos for each channel
+			// a check for new videos for each channel that's due one, or for every channel if also
+			// invoked with --all-channels
 			if (pargs.getOptionNames().contains("stage-video-for-channel-check")) {
 				LOGGER.log(Level.INFO, "yt utility called stage-video-for-channel-check");
 				stageVideoForChannelCheck();
@@ -145,11 +201,30 @@ public class YtUtilityApplication implements CommandLineRunner {
 				fetchVideoDetails();
 			}
 
+			// if invoked with --run-uploads-pipeline, we do what the uploads trigger does: stage video
+			// checks for the channels due one, then run scrape, details and download as one pipeline
+			if (pargs.getOptionNames().contains("run-uploads-pipeline")) {
+				LOGGER.log(Level.INFO, "yt utility called run-uploads-pipeline");
+				runUploadsPipeline();
+			}
+
 			if (pargs.getOptionNames().contains("fetch-videos")) {
 				LOGGER.log(Level.INFO, "yt utility called fetch-videos");
 				fetchVideos();
 			}
 
+			// if invoked with --migrate-channel-data, we move the per-video json files of the old
+			// channel data layout into the channel segments
+			if (pargs.getOptionNames().contains("migrate-channel-data")) {
+				LOGGER.log(Level.INFO, "yt utility called migrate-channel-data");
+				migrateChannelData();
+			}
+
+			if (pargs.getOptionNames().contains("compact-action-history")) {
+				LOGGER.log(Level.INFO, "yt utility called compact-action-history");
+				compactActionHistory();
+			}
+
 
 			LOGGER.log(Level.INFO, "yt utility CommandLineRunner execution complete; exiting via normal path");
 			System.exit(NORMAL_EXIT);
@@ -160,344 +235,358 @@ public class YtUtilityApplication implements CommandLineRunner {
 		}
 	}
 
-	@Scheduled(cron = "0 30 * * * *")
-	private void fetchVideos() throws IOException {
-		try (Stream<Path> descriptors = Files.walk(Paths.get(ytProperties.getVideoFetchPath()))) {
-			List<Boolean> outcomes = descriptors.filter(Files::isRegularFile)
-				.filter(path -> path.toString().endsWith(".json"))
-				.map(item -> {
-					try {
-						LOGGER.log(Level.INFO, "fetch-videos -> each-descriptor | on path: " + item);
-						
-						com.fasterxml.jackson.core.JsonParser parser = getJsonFactory().createParser(item.toFile());
-						ChannelCheck check = parser.readValueAs(ChannelCheck.class);
-						LOGGER.log(Level.INFO, "fetch-videos -> each descriptor | going to fetch: " +
-							check.getId());
-						
-						String chmod = "chmod a+x /app/BOOT-INF/classes/bin/youtube-dl";
-						Runtime.getRuntime().exec(chmod);
-
-//								String cmd = "/Users/colrich/homelab/p/ytu/ytmlt/src/main/resources/bin/youtube-dl -o " + ytProperties.getVideosPath() + File.separator + "%(id)s-%(title)s.%(ext)s " + check.getId();
-						String cmd = "/app/BOOT-INF/classes/bin/youtube-dl -o " + ytProperties.getVideosPath() + File.separator + "%(id)s-%(title)s.%(ext)s " + check.getId();
-						LOGGER.log(Level.INFO, "fetch-videos -> each-descriptor | run cmd: " + cmd);
-						Process dlp = Runtime.getRuntime().exec(cmd);
-
-						BufferedReader inx = new BufferedReader(new InputStreamReader(dlp.getInputStream()));
-						String linex;
-						while ((linex = inx.readLine()) != null) {
-							LOGGER.log(Level.INFO, linex);
-						}
-
-						BufferedReader in = new BufferedReader(new InputStreamReader(dlp.getErrorStream()));
-						String line;
-						while ((line = in.readLine()) != null) {
-							LOGGER.log(Level.INFO, line);
-						}
-
-						dlp.waitFor();
-
-						item.toFile().delete();
+	/**
+	 * low-latency mode: staged descriptors are picked up as they're written instead of on the next
+	 * cron tick. a new channel check runs the channel check, a new video check runs the uploads
+	 * pipeline, and a new fetch descriptor goes straight to the download engine
+	 */
+	private void watchDescriptors() throws IOException {
+		watcher.onQueued(DescriptorStore.CHANNEL_CHECK_QUEUE, this::runChannelCheck);
+		watcher.onQueued(DescriptorStore.VIDEO_FOR_CHANNEL_CHECK_QUEUE, pipeline::run);
+		watcher.start();
+	}
 
-						return true;
-					}
-					catch (IOException ioe) {
-						LOGGER.log(Level.INFO, "fetch-videos -> each-descriptor | io exception on path: " + item, ioe);
-						return false;
-					}
-					catch (InterruptedException ie) {
-						LOGGER.log(Level.INFO, "fetch-videos -> each-descriptor | interrupted exception: " + item, ie);
-						return false;
-					}
-				})
-				.collect(Collectors.toList());
-			LOGGER.log(Level.INFO, "fetch-videos | outcomes: " + outcomes);
-		}
+	private void fetchVideos() throws IOException {
+		metrics.timeStage("fetch-videos", () -> {
+			try (Stream<Path> descriptors = Files.walk(Paths.get(ytProperties.getVideoFetchPath()))) {
+				List<Boolean> outcomes = downloadEngine.downloadAll(descriptors.filter(Files::isRegularFile)
+					.filter(path -> path.toString().endsWith(".json"))
+					.collect(Collectors.toList()));
+				metrics.recordOutcomes("fetch-videos", outcomes);
+				LOGGER.log(Level.INFO, "fetch-videos | outcomes: " + outcomes);
+			}
+		});
 	}
 
-	@Scheduled(cron = "0 15 * * * *")
 	private void fetchVideoDetails() throws IOException {
-		YouTube youtube = ytService.getYouTubeService();
-		try (Stream<Path> channels = Files.walk(Paths.get(ytProperties.getChannelDataPath()))) {
-			List<Boolean> outcomes = channels.filter(Files::isRegularFile)
-				.filter(path -> !path.toString().contains("details-"))
-				.map(channelDirectory -> {
-					try {
-						LOGGER.log(Level.INFO, "fetch-video-details -> each-channel | on path: " + channelDirectory);
-
-						// read the video descriptor to get necessary info for the api call
-						JsonParser parser = ytService.getJsonFactory().createJsonParser(new FileInputStream(channelDirectory.toFile()));
-						PlaylistItem check = parser.parse(PlaylistItem.class);
-						
-						// check to see if we already have the details file, don't refetch if so
-						File excheck = new File(getChannelDataDirectory(check.getSnippet().getChannelId()) + "details-" + check.getSnippet().getResourceId().getVideoId() + ".json");
-						if (excheck.exists()) {
-							LOGGER.log(Level.INFO, "details file exists: " + excheck.getAbsolutePath() + ", skipping");
-							return true;
-						}
-
-						// call the api to get the video details
-						YouTube.Videos.List video = youtube.videos().list("snippet,contentDetails,status,statistics");
-						video.setId(check.getSnippet().getResourceId().getVideoId());
-						VideoListResponse response = video.execute();
-
-						// write the details file with the api results
-						writeJsonGObject(response.getItems().get(0), getChannelDataDirectory(check.getSnippet().getChannelId()) + "details-" + check.getSnippet().getResourceId().getVideoId() + ".json");
-
-						// write the fetch descriptor
-//						if (writeVideoFetchDescriptor) writeVideoFetchDescriptor(check.getSnippet().getResourceId().getVideoId());
-						writeVideoFetchDescriptor(check.getSnippet().getResourceId().getVideoId());
-						 
-						return true;
-					}
-					catch (Exception ioe) {
-						LOGGER.log(Level.INFO, "fetch-video-details | io exception: " + channelDirectory, ioe);
-						return false;
-					}
-				})
-				.collect(Collectors.toList());
-			LOGGER.log(Level.INFO, "fetch-video-details | outcomes: " + outcomes);
-		}
+		metrics.timeStage("fetch-video-details", () -> {
+			YouTube youtube = ytService.getYouTubeService();
+			try (QuotaLimiter.Budget budget = quotaLimiter.reserve("fetch-video-details")) {
+				List<Boolean> outcomes = detailsFetcher.fetchMissingDetails(youtube);
+				metrics.recordOutcomes("fetch-video-details", outcomes);
+				LOGGER.log(Level.INFO, "fetch-video-details | outcomes: " + outcomes);
+			}
+			LOGGER.log(Level.INFO, "fetch-video-details | json " + codec.summary());
+		});
 	}
 
-	@Scheduled(cron = "0 5 * * * *")
-	private void runVideoForChannelCheck() throws IOException {
-		YouTube youtube = ytService.getYouTubeService();
-		try (Stream<Path> paths = Files.walk(Paths.get(ytProperties.getVideoForChannelCheckPath()))) {
-			List<Boolean> outcomes = paths.filter(Files::isRegularFile)
-				.filter(path -> path.getFileName().toString().endsWith(".json"))
-				.map(path -> {
-					try {
-						LOGGER.log(Level.INFO, "run-video-for-channel-check | operating on path: " + path);
-						com.fasterxml.jackson.core.JsonParser parser = getJsonFactory().createParser(path.toFile());
-						VideoForChannelCheck check = parser.readValueAs(VideoForChannelCheck.class);
-						LOGGER.log(Level.INFO, "run-video-for-channel-check | running channel check: " +
-							check.getChannelId());
-
-						Optional<ChannelInfo> chan = chandao.findById(check.getChannelId());
-						if (chan.isPresent()) {
-							ensureDirectory(getChannelDataDirectory(check.getChannelId()));
-							
-							YouTube.PlaylistItems.List videos = youtube.playlistItems().list("snippet,contentDetails");
-							videos.setPlaylistId(chan.get().getUploadsPlaylistId());
-							videos.setMaxResults(50L);
-							PlaylistItemListResponse response = videos.execute();
-							response.getItems().forEach(video -> {
-								try {
-									LOGGER.log(Level.INFO, "run-video-for-channel-check -> for-each-video | writing video entry: " + video.getSnippet().getResourceId().getVideoId());
-									// write a json file with each video item in the channel's video data directory
-									writeJsonGObject(video, getChannelDataDirectory(check.getChannelId()) + 
-										video.getSnippet().getResourceId().getVideoId() + ".json");
-								}
-								catch (IOException ioe) {
-									LOGGER.log(Level.INFO, "run-video-for-channel-check -> for-each-video | io exception: " + video, ioe);
-								}
-							});
-						}
-						else {
-							LOGGER.log(Level.INFO, "run-video-for-channel-check | no channel info found for: " + 
-								check.getChannelId());
-							return false;
-						}
-
-						LOGGER.log(Level.INFO, "run-video-for-channel-check | about to delete descriptor: " + path);
-						path.toFile().delete();
+	/**
+	 * the trigger for the uploads pipeline: queues a video check for every channel that's due one,
+	 * then scrapes, fetches details and downloads in one pass with each stage feeding the next. it
+	 * fires every five minutes, and each channel's checks fall on its own minute of the hour, so
+	 * the checks are spread over the hour in small batches rather than all made at :00
+	 */
+	@Scheduled(cron = "0 */5 * * * *")
+	private void runUploadsPipeline() throws IOException {
+		stageVideoForChannelCheck();
+		pipeline.run();
+		logResponseCache("uploads-pipeline");
+	}
 
-						delaySeconds(2);
-						return true;
-					}
-					catch (IOException ioe) {
-						LOGGER.log(Level.INFO, "run-video-for-channel-check | io exception on path: " + path, ioe);
-						return false;
-					}
-				})
-				.collect(Collectors.toList());
-			LOGGER.log(Level.INFO, "run-video-for-channel-check | outcomes: " + outcomes);
-		}
-		
+	private void migrateChannelData() throws IOException {
+		metrics.timeStage("migrate-channel-data", () -> {
+			int files = channelData.migrateLegacyLayout();
+			LOGGER.log(Level.INFO, "migrate-channel-data | moved " + files + " files into channel segments");
+		});
 	}
 
-	private String getChannelDataDirectory(String channelId) {
-		return ytProperties.getChannelDataPath() + File.separator + channelId + File.separator;
+	/**
+	 * seals yesterday's completed actions, rolls finished months together and drops whatever is past
+	 * ytu.core.actionHistoryRetentionDays
+	 */
+	@Scheduled(cron = "0 30 3 * * *")
+	private void compactActionHistory() throws IOException {
+		metrics.timeStage("compact-action-history", () -> history.compact(ytProperties.getActionHistoryRetentionDays()));
 	}
 
-	private void ensureDirectory(String path) {
-		File dir = new File(path);
-		if (!dir.exists()) dir.mkdirs();
+	private void runVideoForChannelCheck() throws IOException {
+		metrics.timeStage("run-video-for-channel-check", () -> {
+			YouTube youtube = ytService.getYouTubeService();
+			List<Boolean> outcomes = new ArrayList<>();
+			try (QuotaLimiter.Budget budget = quotaLimiter.reserve("run-video-for-channel-check")) {
+				uploadsScraper.scrapeQueuedChannels(youtube, outcomes, listed -> {});
+			}
+			finally {
+				metrics.recordOutcomes("run-video-for-channel-check", outcomes);
+			}
+			LOGGER.log(Level.INFO, "run-video-for-channel-check | outcomes: " + outcomes);
+			logResponseCache("run-video-for-channel-check");
+			logChannelCache("run-video-for-channel-check");
+		});
 	}
 
-	@Scheduled(cron = "0 0 * * * *")
-	private void stageVideoForChannelCheck() {
-		Iterable<ChannelInfo> chans = chandao.findAll();
-		chans.forEach(chan -> {
+	private void stageVideoForChannelCheck() throws IOException {
+		metrics.timeStage("stage-video-for-channel-check", () -> {
+			List<String> ids = new ArrayList<>();
+			if (pargs.getOptionNames().contains("all-channels")) chandao.findAll().forEach(chan -> ids.add(chan.getId()));
+			else ids.addAll(chandao.findIdsDueForVideoCheck(new Timestamp(DateTime.now().getMillis())));
 			try {
-				LOGGER.log(Level.INFO, "stage-video-check | writing descriptor for " + chan.getId());
-				writeVideoForChannelCheckDescriptor(chan.getId());
+				LOGGER.log(Level.INFO, "stage-video-check | queueing descriptors for " + ids.size() + " channels due a check");
+				store.writeVideoForChannelCheckDescriptors(ids, store.pendingVideoForChannelChecks());
+				metrics.recordItems("stage-video-for-channel-check", ids.size(), 0);
+				// the scrape stage looks every one of them up next, so load them in a few big queries now
+				channelCache.warmUp(ids);
 			}
 			catch (IOException ioe) {
-				LOGGER.log(Level.INFO, "stage-video-check | io exception writing descriptor for channel: " +
-						chan.getId(), ioe);
+				LOGGER.log(Level.INFO, "stage-video-check | io exception queueing descriptors", ioe);
+				metrics.recordItems("stage-video-for-channel-check", 0, ids.size());
 			}
 		});
 	}
 
 	@Scheduled(cron = "0 20 10 * * *")
 	private void runChannelCheck() throws IOException {
-		YouTube youtube = ytService.getYouTubeService();
-		try (Stream<Path> paths = Files.walk(Paths.get(ytProperties.getChannelCheckPath()))) {
-			List<Boolean> outcomes = paths.filter(Files::isRegularFile)
-				.filter(path -> path.getFileName().toString().endsWith(".json"))
-				.map(path -> {
-					try {
-						// first we read the descriptor to find the id and any other necessary data
-						LOGGER.log(Level.INFO, "run-channel-check | operating on path: " + path);
-						com.fasterxml.jackson.core.JsonParser parser = getJsonFactory().createParser(path.toFile());
-						ChannelCheck check = parser.readValueAs(ChannelCheck.class);
-						LOGGER.log(Level.INFO, "run-channel-check | running channel check: " + check.getId());
-						
-						// call the api and get the result
-						YouTube.Channels.List videos = youtube.channels().list("snippet,contentDetails,statistics");
-						videos.setId(check.getId());
-						ChannelListResponse response = videos.execute();
-						LOGGER.log(Level.INFO, "run-channel-check | api responds # records: " + 
-							response.getPageInfo().getTotalResults());
-
-						// create the model object for our db and save it
-						ChannelInfo chan = new ChannelInfo();
-						chan.setId(check.getId());
-						chan.setCustomUrl(response.getItems().get(0).getSnippet().getCustomUrl());
-						chan.setUploadsPlaylistId(response.getItems().get(0).getContentDetails().getRelatedPlaylists().getUploads());
-						chan.setCreatedOn(new DateTime(
-								response.getItems().get(0).getSnippet().getPublishedAt().getValue()));
-						chan.setDescription(response.getItems().get(0).getSnippet().getDescription());
-						chan.setLastCheck(DateTime.now());
-						chan.setName(response.getItems().get(0).getSnippet().getTitle());
-						chan.setThumbnailUrl(
-								response.getItems().get(0).getSnippet().getThumbnails().getDefault().getUrl());
-						chan.setSubscriberCount(
-								response.getItems().get(0).getStatistics().getSubscriberCount().intValue());
-						chan.setVideoCount(response.getItems().get(0).getStatistics().getVideoCount().intValue());
-						chan.setViewCount(response.getItems().get(0).getStatistics().getViewCount().longValue());
-						chandao.save(chan);
-						LOGGER.log(Level.INFO, "run-channel-check | saved channel info to db");
-
-						// fill out the rest of the descriptor and save it into the completed directory; 
-						check.setOutcome(true);
-						check.setOutcomeMessage("success");
-						check.setPerformedOn(DateTime.now());
-						writeCompletedChannelCheckDescriptor(check);
-						LOGGER.log(Level.INFO, "run-channel-check | wrote descriptor in completed directory");
-
-						// finally, delete the original check descriptor
-						path.toFile().delete();
-						LOGGER.log(Level.INFO, "run-channel-check | deleted original check descriptor");
-
-						// api-friendly delay
-						delaySeconds(2);
-						return true;
-					}
-					catch (IOException ioe) {
-						LOGGER.log(Level.WARNING, "run-channel-check | IOException on path: " + path, ioe);
-						return false;
-					}
-				})
-				.collect(Collectors.toList());
+		metrics.timeStage("run-channel-check", () -> {
+			YouTube youtube = ytService.getYouTubeService();
+
+			// the channels endpoint takes up to 50 comma separated ids per call, so we take the
+			// pending descriptors in groups and make one request per group instead of one per channel.
+			// the quota limiter paces the calls, so there's no fixed delay between groups
+			List<Boolean> outcomes = new ArrayList<>();
+			try (QuotaLimiter.Budget budget = quotaLimiter.reserve("run-channel-check")) {
+				store.drainChannelChecks(ytProperties.getChannelCheckBatchSize(), 
+					batch -> runChannelCheckBatch(youtube, batch, outcomes));
+			}
+			finally {
+				metrics.recordOutcomes("run-channel-check", outcomes);
+			}
 			LOGGER.log(Level.INFO, "run-channel-check | outcomes: " + outcomes);
-		}		
+			logResponseCache("run-channel-check");
+			logChannelCache("run-channel-check");
+		});
+	}
+
+	private void logResponseCache(String stage) {
+		LOGGER.log(Level.INFO, String.format("%s | response cache: %d hits, %d etag matches, %d misses (%.1f%% hit rate), %d entries",
+			stage, responseCache.getHits(), responseCache.getEtagMatches(), responseCache.getMisses(),
+			responseCache.getHitRate() * 100, responseCache.size()));
+	}
+
+	private void logChannelCache(String stage) {
+		LOGGER.log(Level.INFO, String.format("%s | channel cache: %d hits, %d misses (%.1f%% hit rate), %d entries",
+			stage, channelCache.getHits(), channelCache.getMisses(), channelCache.getHitRate() * 100,
+			channelCache.size()));
 	}
 
 	/**
-	 * goes over the subs in the db and writes out a channel-check descriptor for the ones that haven't
-	 * been checked during the specified threshold
+	 * runs a single channels.list call for every descriptor in the batch and fans the response back
+	 * out to the channel info rows and the completed descriptors. ids missing from the response are
+	 * recorded as failed checks for that channel only
+	 *
+	 * @return the descriptors to retry on the next run
 	 */
-	@Scheduled(cron = "0 15 10 * * *")
-	private void stageChannelCheck() {
-		Duration checkThreshold = getCheckThreshold(pargs);
+	private List<ChannelCheck> runChannelCheckBatch(YouTube youtube, List<ChannelCheck> batch, List<Boolean> outcomes) {
+		Map<String, ChannelCheck> checks = new LinkedHashMap<>();
+		batch.forEach(check -> checks.put(check.getId(), check));
+		if (checks.isEmpty()) return new ArrayList<>();
+
+		// call the api and get the result for the whole batch; the call is conditional on the etag of
+		// the last response for the same batch, and a 304 means none of its channels have changed
+		Map<String, Channel> channels = new HashMap<>();
+		ConditionalRequestCache.Response<ChannelListResponse> cached;
+		try {
+			LOGGER.log(Level.INFO, "run-channel-check | running channel check for batch: " + checks.keySet());
+			YouTube.Channels.List request = youtube.channels().list("snippet,contentDetails,statistics");
+			request.setId(String.join(",", checks.keySet()));
+			request.setMaxResults((long) checks.size());
+			cached = responseCache.execute(request);
+			if (cached.isNotModified()) return completeUnchangedChannelChecks(checks, outcomes);
+			ChannelListResponse response = cached.parse();
+			LOGGER.log(Level.INFO, "run-channel-check | api responds # records: " + 
+				response.getPageInfo().getTotalResults());
+			if (response.getItems() != null) {
+				response.getItems().forEach(item -> channels.put(item.getId(), item));
+			}
+		}
+		catch (IOException ioe) {
+			// the whole batch goes back on the queue and is retried on the next run
+			LOGGER.log(Level.WARNING, "run-channel-check | IOException on batch: " + checks.keySet(), ioe);
+			checks.keySet().forEach(id -> outcomes.add(false));
+			return new ArrayList<>(checks.values());
+		}
 
-		Iterable<Subscription> allsubs = subsdao.findAll();
-		allsubs.forEach(item -> {
+		// create the model objects for our db and write them in one upsert; the upsert leaves the
+		// uploads scraper's high-water mark alone on existing rows
+		List<ChannelInfo> chans = new ArrayList<>();
+		for (ChannelCheck check : checks.values()) {
+			Channel channel = channels.get(check.getId());
+			if (channel == null) continue;
 			try {
-				// first check to see if we have an entry for this channel already
-				Optional<ChannelInfo> chan = chandao.findById(item.getYtId());
-				if (chan.isPresent()) {
-					// if so, is the last check older than the threshold?
-					if (chan.get().getLastCheck().isBefore(DateTime.now().minus(checkThreshold))) {
-						// it is - write the descriptor
-						LOGGER.log(Level.INFO, "stage-channel-check | channel " + chan.get().getId() + 
-							" due for channel check, writing descriptor");
-						writeChannelCheckDescriptor(chan.get().getId());
-					}
-					else {
-						// it's not - no action except log
-						LOGGER.log(Level.INFO, "stage-channel-check | channel " + chan.get().getId() + 
-							" not due for channel check");
-					}
-				}
-				else {
-					// no entry for this channel; write descriptor
-					LOGGER.log(Level.INFO, "stage-channel-check | channel " + item.getYtId() + 
-						" has no channel info, writing descriptor");
-					writeChannelCheckDescriptor(item.getYtId());
-				}
+				chans.add(toChannelInfo(channel));
 			}
-			catch (IOException ioe) {
-				LOGGER.log(Level.INFO, "stage-channel-check | IO exception on item " + item.getYtId(), ioe);
+			catch (RuntimeException re) {
+				LOGGER.log(Level.WARNING, "run-channel-check | malformed api record for: " + check.getId(), re);
+				channels.remove(check.getId());
 			}
-		});
-	}
-
-	@Scheduled(cron = "0 10 10 * * *")
-	private void subsToDb() throws IOException {
-		try (Stream<Path> paths = Files.walk(Paths.get(ytProperties.getSubsPath()))) {
-			LOGGER.log(Level.INFO, "results: " + paths.filter(Files::isRegularFile)
-					.filter(path -> path.getFileName().toString().startsWith("mysubs-"))
-					.map(path -> putSubJsonToDB(path))
-					.collect(Collectors.toList()));
 		}
+		List<String> uploaded = channelsWithNewUploads(chans);
+		bulkdao.upsertChannelInfos(chans);
+		cached.commit();
+		if (!uploaded.isEmpty()) {
+			// the video count went up, so there's something to find; check them on the next trigger
+			// instead of waiting out their interval
+			LOGGER.log(Level.INFO, "run-channel-check | video count went up, checking uploads next: " + uploaded);
+			bulkdao.scheduleVideoChecks(uploaded, DateTime.now());
+		}
+		LOGGER.log(Level.INFO, "run-channel-check | saved " + chans.size() + " channel infos to db");
+
+		// fill out the rest of each descriptor and record it in the action history; a channel that the
+		// api didn't return (deleted, terminated, bad id) is recorded as a failure
+		for (ChannelCheck check : checks.values()) {
+			boolean found = channels.containsKey(check.getId());
+			check.setOutcome(found);
+			check.setOutcomeMessage(found ? "success" : "channel not returned by api");
+			check.setPerformedOn(DateTime.now());
+		}
+		return completeChannelChecks(checks, outcomes);
 	}
 
-	@Scheduled(cron = "0 0 10 * * *")
-	private void fetchSubs() throws IOException {
-		YouTube youtube = ytService.getYouTubeService();
-		writeUserSubs(youtube, ytProperties.getSubsPath());
+	/**
+	 * @return the ids of the channels whose video count is higher than the one on record
+	 */
+	private List<String> channelsWithNewUploads(List<ChannelInfo> chans) {
+		Map<String, Integer> counts = new HashMap<>();
+		channelCache.getAll(chans.stream().map(ChannelInfo::getId).collect(Collectors.toList()))
+			.forEach((id, known) -> counts.put(id, known.getVideoCount()));
+		return chans.stream()
+			.filter(chan -> counts.containsKey(chan.getId()) && chan.getVideoCount() > counts.get(chan.getId()))
+			.map(ChannelInfo::getId)
+			.collect(Collectors.toList());
 	}
 
 	/**
-	 * writes the channel-check json descriptor that gets picked up by the channel checker
+	 * records a batch the api answered 304 for: the channel infos are as they were, so only last_check
+	 * moves and each check is completed without parsing anything
+	 *
+	 * @return the descriptors to retry on the next run
 	 */
-	private void writeChannelCheckDescriptor(String channelId) throws IOException {
-		ChannelCheck check = new ChannelCheck();
-		check.setId(channelId);
-		check.setRequestedOn(DateTime.now());
-		writeJsonDescriptor(check, ytProperties.getChannelCheckPath() + File.separator + channelId + ".json");
+	private List<ChannelCheck> completeUnchangedChannelChecks(Map<String, ChannelCheck> checks, List<Boolean> outcomes) {
+		LOGGER.log(Level.INFO, "run-channel-check | batch unchanged since its last check: " + checks.keySet());
+		bulkdao.touchChannelChecks(new ArrayList<>(checks.keySet()), DateTime.now());
+
+		for (ChannelCheck check : checks.values()) {
+			check.setOutcome(true);
+			check.setOutcomeMessage("unchanged");
+			check.setPerformedOn(DateTime.now());
+		}
+		return completeChannelChecks(checks, outcomes);
 	}
 
-	private void writeCompletedChannelCheckDescriptor(ChannelCheck check) throws IOException {
-		writeJsonDescriptor(check, ytProperties.getCompletedActionsPath() + File.separator 
-			+ "channel-check-" + check.getId() + ".json");
+	/**
+	 * records the batch's checks in the action history with one write
+	 *
+	 * @return the descriptors to retry on the next run; all of them if the write failed
+	 */
+	private List<ChannelCheck> completeChannelChecks(Map<String, ChannelCheck> checks, List<Boolean> outcomes) {
+		try {
+			store.writeCompletedChannelCheckDescriptors(new ArrayList<>(checks.values()));
+			LOGGER.log(Level.INFO, "run-channel-check | recorded " + checks.size() + " completed checks");
+			checks.values().forEach(check -> outcomes.add(check.getOutcome()));
+			return new ArrayList<>();
+		}
+		catch (IOException ioe) {
+			LOGGER.log(Level.WARNING, "run-channel-check | IOException recording checks for: " + checks.keySet(), ioe);
+			checks.values().forEach(check -> outcomes.add(false));
+			return new ArrayList<>(checks.values());
+		}
 	}
 
-	private void writeVideoFetchDescriptor(String videoId) throws IOException {
-		ChannelCheck check = new ChannelCheck();
-		check.setId(videoId);
-		check.setRequestedOn(DateTime.now());
-		writeJsonDescriptor(check, ytProperties.getVideoFetchPath() + File.separator + videoId + ".json");
+	/**
+	 * maps a channels.list api record onto our db model object
+	 */
+	private ChannelInfo toChannelInfo(Channel channel) {
+		ChannelInfo chan = new ChannelInfo();
+		chan.setId(channel.getId());
+		chan.setCustomUrl(channel.getSnippet().getCustomUrl());
+		chan.setUploadsPlaylistId(channel.getContentDetails().getRelatedPlaylists().getUploads());
+		chan.setCreatedOn(new DateTime(channel.getSnippet().getPublishedAt().getValue()));
+		chan.setDescription(channel.getSnippet().getDescription());
+		chan.setLastCheck(DateTime.now());
+		chan.setName(channel.getSnippet().getTitle());
+		chan.setThumbnailUrl(channel.getSnippet().getThumbnails().getDefault().getUrl());
+		chan.setSubscriberCount(channel.getStatistics().getSubscriberCount().intValue());
+		chan.setVideoCount(channel.getStatistics().getVideoCount().intValue());
+		chan.setViewCount(channel.getStatistics().getViewCount().longValue());
+		return chan;
 	}
 
 	/**
-	 * writes the channel-check json descriptor that gets picked up by the channel checker
+	 * queues a channel-check descriptor for every subscription that has never been checked or hasn't
+	 * been checked during the specified threshold. the database picks out the due channels, and they
+	 * are queued in batches as the rows stream in, each batch deduped against the pending descriptors
+	 * read once up front
 	 */
-	private void writeVideoForChannelCheckDescriptor(String channelId) throws IOException {
-		VideoForChannelCheck check = new VideoForChannelCheck();
-		check.setChannelId(channelId);
-		check.setRequestedOn(DateTime.now());
-		writeJsonDescriptor(check, ytProperties.getVideoForChannelCheckPath() + File.separator + channelId + ".json");
+	@Scheduled(cron = "0 15 10 * * *")
+	private void stageChannelCheck() throws IOException {
+		metrics.timeStage("stage-channel-check", () -> {
+			Timestamp threshold = new Timestamp(DateTime.now().minus(getCheckThreshold(pargs)).getMillis());
+
+			TransactionTemplate tx = new TransactionTemplate(txManager);
+			tx.setReadOnly(true);
+			int queued = tx.execute(status -> {
+				Set<String> pending;
+				try {
+					pending = store.pendingChannelChecks();
+				}
+				catch (IOException ioe) {
+					LOGGER.log(Level.INFO, "stage-channel-check | IO exception reading the pending descriptors", ioe);
+					return 0;
+				}
+				int count = 0;
+				List<String> due = new ArrayList<>();
+				try (Stream<String> ids = subsdao.streamChannelIdsDueForCheck(threshold)) {
+					Iterator<String> it = ids.iterator();
+					while (it.hasNext()) {
+						due.add(it.next());
+						if (due.size() == DESCRIPTOR_BATCH_SIZE || !it.hasNext()) {
+							count += queueChannelChecks(due, pending);
+							due.clear();
+						}
+					}
+				}
+				return count;
+			});
+			metrics.recordItems("stage-channel-check", queued, 0);
+			LOGGER.log(Level.INFO, "stage-channel-check | queued descriptors for " + queued + " channels due for a check");
+		});
 	}
 
-	private void writeCompletedVideoForChannelCheckDescriptor(VideoForChannelCheck check) throws IOException {
-		writeJsonDescriptor(check, ytProperties.getCompletedActionsPath() + File.separator 
-			+ "video-for-channel-check-" + check.getChannelId() + ".json");
+	private int queueChannelChecks(List<String> due, Set<String> pending) {
+		try {
+			LOGGER.log(Level.INFO, "stage-channel-check | channels due for channel check, queueing descriptors: " + due);
+			store.writeChannelCheckDescriptors(due, pending);
+			return due.size();
+		}
+		catch (IOException ioe) {
+			LOGGER.log(Level.INFO, "stage-channel-check | IO exception queueing descriptors for " + due, ioe);
+			return 0;
+		}
 	}
 
+	@Scheduled(cron = "0 10 10 * * *")
+	private void subsToDb() throws IOException {
+		metrics.timeStage("subs-to-db", () -> {
+			try (Stream<Path> paths = Files.walk(Paths.get(ytProperties.getSubsPath()))) {
+				List<Boolean> outcomes = paths.filter(Files::isRegularFile)
+						.filter(path -> path.getFileName().toString().startsWith("mysubs-"))
+						.map(path -> putSubJsonToDB(path))
+						.collect(Collectors.toList());
+				metrics.recordOutcomes("subs-to-db", outcomes);
+				LOGGER.log(Level.INFO, "results: " + outcomes);
+			}
+			LOGGER.log(Level.INFO, "subs-to-db | json " + codec.summary());
+		});
+	}
+
+	@Scheduled(cron = "0 0 10 * * *")
+	private void fetchSubs() throws IOException {
+		metrics.timeStage("fetch-subs", () -> {
+			YouTube youtube = ytService.getYouTubeService();
+			try (QuotaLimiter.Budget budget = quotaLimiter.reserve("fetch-subs")) {
+				writeUserSubs(youtube, ytProperties.getSubsPath());
+			}
+		});
+	}
 
 	/**
 	 * takes a json file containing one or more subscription records from the yt api and makes the
@@ -505,26 +594,21 @@ public class YtUtilityApplication implements CommandLineRunner {
 	 */
 	private boolean putSubJsonToDB(Path filePath) {
 		try {
-			JsonParser parser = ytService.getJsonFactory().createJsonParser(Files.newInputStream(filePath));
-			SubscriptionListResponse response = parser.parse(SubscriptionListResponse.class);
-			response.getItems().forEach(item -> {
+			// the items are parsed one at a time off the file rather than as one response tree
+			List<Subscription> subs = new ArrayList<>();
+			codec.streamApiItems(filePath, com.google.api.services.youtube.model.Subscription.class, item -> {
 				LOGGER.log(Level.INFO, "putSubJsonToDB| dealing with " + item.getSnippet().getResourceId().getChannelId());
 				Subscription sub = new Subscription();
-
-				// check to see if we have this item in the db yet - if so, we just want to update it, otherwise create
-				Optional<Subscription> existingSub = subsdao.findByYtId(item.getSnippet().getResourceId().getChannelId());
-				if (existingSub.isPresent()) sub.setId(existingSub.get().getId());
-
-				// set the rest of the properties
 				sub.setYtId(item.getSnippet().getResourceId().getChannelId());
 				sub.setName(item.getSnippet().getTitle());
 				sub.setDescription(item.getSnippet().getDescription());
 				sub.setSubscribedOn(new DateTime(item.getSnippet().getPublishedAt().getValue()));
 				sub.setLastCheck(new DateTime());
-
-				// save to db
-				subsdao.save(sub);
+				subs.add(sub);
 			});
+
+			// existing subscriptions are matched up by yt id and updated, the rest are created
+			bulkdao.ingestSubscriptions(subs);
 	
 			LOGGER.log(Level.INFO, "putSubJsonToDB | " + filePath + " | successful");
 			return true;
@@ -586,37 +670,6 @@ public class YtUtilityApplication implements CommandLineRunner {
 		return checkMins;
 	}
 
-	private JsonFactory getJsonFactory() {
-		if (jsonFactory == null) {
-			jsonFactory = new JsonFactory();
-			ObjectMapper mapper = new ObjectMapper();
-			mapper.findAndRegisterModules();
-			jsonFactory.setCodec(mapper);
-		}
-		return jsonFactory;
-	}
-
-	private void writeJsonDescriptor(Object descriptor, String filename) throws IOException {
-		JsonGenerator jsongen = getJsonFactory().createGenerator(new FileOutputStream(filename));
-		jsongen.writeObject(descriptor);
-		jsongen.close();
-	}
-
-	private void writeJsonGObject(Object googleObject, String filename) throws IOException {
-		com.google.api.client.json.JsonGenerator gen = ytService.getJsonFactory().createJsonGenerator(new FileWriter(new File(filename)));
-		gen.serialize(googleObject);
-		gen.close();
-	}
-
-	private void delaySeconds(int seconds) {
-		try {
-			TimeUnit.SECONDS.sleep(seconds);
-		}
-		catch (InterruptedException ie) {
-			LOGGER.log(Level.INFO, "delay interrupted", ie);
-		}
-	}
-
 	private void writeUserSubs(YouTube youtube, String path) throws IOException {
 		String nextPageToken = null;
 		do {
@@ -625,11 +678,8 @@ public class YtUtilityApplication implements CommandLineRunner {
 			if (nextPageToken != null) mysubs.setPageToken(nextPageToken);
 
 			LOGGER.log(Level.INFO, "writeUserSubs | getting next page: " + nextPageToken);
-			OutputStreamWriter writer = new OutputStreamWriter(
-					new FileOutputStream(path+File.separator+"mysubs-"+nextPageToken+".json"));
 			SubscriptionListResponse response = mysubs.execute();
-			writer.write(response.toString());
-			writer.close();
+			codec.writeApiObject(response, Paths.get(path+File.separator+"mysubs-"+nextPageToken+".json"));
 
 			nextPageToken = response.getNextPageToken();
 		}
@@ -0,0 +1,121 @@
+package io.gridbug.ytu.ytutility.configuration;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.services.json.AbstractGoogleJsonClientRequest;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.youtube.YouTube;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * collects independent api requests (list calls that don't depend on each other's results) and sends
+ * them as multipart batch requests of up to ytu.core.apiBatchMaxParts parts, so n calls cost one
+ * round trip instead of n. each part still goes through the quota limiter and is charged as its own
+ * call.
+ *
+ * every queued request gets exactly one callback: its result, its own error, or the batch's io
+ * exception if the batch as a whole couldn't be sent. not thread-safe; use one per stage run.
+ */
+public class ApiBatch {
+
+    private static final Logger LOGGER = Logger.getLogger(ApiBatch.class.getName());
+
+    public interface Callback<T> {
+        void onSuccess(T result) throws IOException;
+        void onFailure(IOException error) throws IOException;
+    }
+
+    /**
+     * the api's error for one part of a batch
+     */
+    public static class PartFailedException extends IOException {
+        private final int statusCode;
+
+        PartFailedException(GoogleJsonError error) {
+            super(error == null ? "batch part failed" : error.getCode() + " " + error.getMessage());
+            this.statusCode = error == null ? 0 : error.getCode();
+        }
+
+        public int getStatusCode() { return statusCode; }
+    }
+
+    private final YouTube youtube;
+    private final int maxParts;
+
+    private BatchRequest batch;
+    private List<Part<?>> parts = new ArrayList<>();
+
+    private int batchesSent;
+    private int partsSent;
+
+    public ApiBatch(YouTube youtube, int maxParts) {
+        this.youtube = youtube;
+        this.maxParts = Math.max(1, maxParts);
+    }
+
+    /**
+     * queues the request, sending the batch first if it's full
+     */
+    public <T> void queue(AbstractGoogleJsonClientRequest<T> request, Callback<T> callback) throws IOException {
+        if (batch == null) batch = youtube.batch();
+        Part<T> part = new Part<>(callback);
+        request.queue(batch, part);
+        parts.add(part);
+        if (parts.size() >= maxParts) flush();
+    }
+
+    /**
+     * sends whatever is queued and runs the callbacks
+     */
+    public void flush() throws IOException {
+        if (parts.isEmpty()) return;
+        BatchRequest sending = batch;
+        List<Part<?>> sent = parts;
+        batch = null;
+        parts = new ArrayList<>();
+
+        try {
+            sending.execute();
+        }
+        catch (IOException ioe) {
+            LOGGER.log(Level.WARNING, "api-batch | batch of " + sent.size() + " requests failed", ioe);
+            for (Part<?> part : sent) {
+                if (!part.completed) part.callback.onFailure(ioe);
+            }
+        }
+        batchesSent++;
+        partsSent += sent.size();
+        LOGGER.log(Level.FINE, "api-batch | sent " + sent.size() + " requests in one batch");
+    }
+
+    public int getBatchesSent() { return batchesSent; }
+
+    public int getPartsSent() { return partsSent; }
+
+    private static final class Part<T> extends JsonBatchCallback<T> {
+        private final Callback<T> callback;
+        private boolean completed;
+
+        Part(Callback<T> callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public void onSuccess(T result, HttpHeaders responseHeaders) throws IOException {
+            completed = true;
+            callback.onSuccess(result);
+        }
+
+        @Override
+        public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) throws IOException {
+            completed = true;
+            callback.onFailure(new PartFailedException(error));
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package io.gridbug.ytu.ytutility.configuration;
+
+import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
+import com.google.api.client.googleapis.services.json.AbstractGoogleJsonClientRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpStatusCodes;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+
+/**
+ * etag cache for youtube data api list calls.
+ *
+ * the last response body and etag for each request url are kept on disk under
+ * jsonPath/response-cache. a cached request is sent with If-None-Match; when the api answers 304 the
+ * caller is told the response is unchanged and can skip it without parsing anything, and can still
+ * get the cached body if it wants it. entries are evicted least recently used first once there are
+ * more than ytu.core.responseCacheMaxEntries of them or they take more than
+ * ytu.core.responseCacheMaxMegabytes on disk.
+ *
+ * a 304 counts as a hit. a response fetched in full whose body etag matches the cached one (see
+ * {@link #isUnchanged}) saved the caller its work but not the transfer, so it's counted apart as an
+ * etag match rather than as a hit.
+ *
+ * a fresh response only goes into the cache when the caller commits it, once everything it wrote
+ * from that response has been written; otherwise a failed run would get a 304 next time and never
+ * redo its work.
+ */
+@Component
+public class ConditionalRequestCache {
+
+    private static final Logger LOGGER = Logger.getLogger(ConditionalRequestCache.class.getName());
+
+    private static final String CACHE_DIR = "response-cache";
+    private static final String ENTRY_SUFFIX = ".etag";
+
+    @Autowired
+    private YTUProperties ytProperties;
+
+    @Autowired
+    private PipelineMetrics metrics;
+
+    /** cache key -> entry, in access order so the eldest entry is the least recently used */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(1024, 0.75f, true);
+    private long totalBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong etagMatches = new AtomicLong();
+
+    private Path directory;
+
+    @PostConstruct
+    private void initialize() throws IOException {
+        directory = Paths.get(ytProperties.getJsonPath() + File.separator + CACHE_DIR);
+        Files.createDirectories(directory);
+        // last-modified is bumped on every hit, so loading oldest first restores the lru order
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(directory)) {
+            files = listing.filter(path -> path.getFileName().toString().endsWith(ENTRY_SUFFIX))
+                .sorted(Comparator.comparing(ConditionalRequestCache::lastModified))
+                .collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+                String name = file.getFileName().toString();
+                put(name.substring(0, name.length() - ENTRY_SUFFIX.length()), new Entry(in.readUTF(), Files.size(file)));
+            }
+            catch (IOException ioe) {
+                LOGGER.log(Level.WARNING, "response-cache | dropping unreadable entry " + file, ioe);
+                Files.deleteIfExists(file);
+            }
+        }
+        LOGGER.log(Level.INFO, "response-cache | loaded " + entries.size() + " entries, " + totalBytes + " bytes");
+
+        FunctionCounter.builder("ytu.response.cache.requests", hits, AtomicLong::get).tag("result", "hit")
+            .register(metrics.getRegistry());
+        FunctionCounter.builder("ytu.response.cache.requests", misses, AtomicLong::get).tag("result", "miss")
+            .register(metrics.getRegistry());
+        FunctionCounter.builder("ytu.response.cache.requests", etagMatches, AtomicLong::get).tag("result", "etag-match")
+            .register(metrics.getRegistry());
+        Gauge.builder("ytu.response.cache.entries", this, ConditionalRequestCache::size).register(metrics.getRegistry());
+    }
+
+    /**
+     * executes the request, conditionally if there's a cached response for its url
+     */
+    public <T> Response<T> execute(AbstractGoogleClientRequest<T> request) throws IOException {
+        String key = keyOf(request.buildHttpRequestUrl().build());
+        Entry cached;
+        synchronized (this) {
+            cached = entries.get(key);
+        }
+        if (cached != null) request.getRequestHeaders().setIfNoneMatch(cached.etag);
+
+        try {
+            HttpResponse response = request.executeUnparsed();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            response.download(body);
+            misses.incrementAndGet();
+            return new Response<>(request, key, response.getHeaders().getETag(), body.toByteArray(), false);
+        }
+        catch (HttpResponseException hre) {
+            if (cached == null || hre.getStatusCode() != HttpStatusCodes.STATUS_CODE_NOT_MODIFIED) throw hre;
+            hits.incrementAndGet();
+            touch(key);
+            return new Response<>(request, key, cached.etag, null, true);
+        }
+    }
+
+    /**
+     * for requests sent without a conditional header, e.g. as part of a batch where a 304 part can't
+     * be told apart from any other failure: compares the etag in a fresh response body with the one
+     * cached for the request's url. a match is counted as an etag match, not a hit, since the body was
+     * still transferred
+     *
+     * @return true if the response is the same as the cached one
+     */
+    public boolean isUnchanged(AbstractGoogleClientRequest<?> request, String etag) throws IOException {
+        String key = keyOf(request.buildHttpRequestUrl().build());
+        Entry cached;
+        synchronized (this) {
+            cached = entries.get(key);
+        }
+        if (cached == null || etag == null || !etag.equals(cached.etag)) {
+            misses.incrementAndGet();
+            return false;
+        }
+        etagMatches.incrementAndGet();
+        touch(key);
+        return true;
+    }
+
+    /**
+     * caches a response that was fetched outside of {@link #execute}, under the etag from its body.
+     * as with {@link Response#commit}, call it once everything derived from the response is written
+     */
+    public void put(AbstractGoogleJsonClientRequest<?> request, String etag, Object response) {
+        if (etag == null) return;
+        try {
+            String key = keyOf(request.buildHttpRequestUrl().build());
+            store(key, etag, request.getAbstractGoogleClient().getJsonFactory().toByteArray(response));
+        }
+        catch (IOException ioe) {
+            LOGGER.log(Level.WARNING, "response-cache | unable to cache response for " + request.buildHttpRequestUrl(), ioe);
+        }
+    }
+
+    public long getHits() { return hits.get(); }
+
+    public long getMisses() { return misses.get(); }
+
+    public long getEtagMatches() { return etagMatches.get(); }
+
+    /**
+     * @return the share of lookups answered with a 304
+     */
+    public double getHitRate() {
+        long total = hits.get() + misses.get() + etagMatches.get();
+        return total == 0 ? 0.0 : (double) hits.get() / total;
+    }
+
+    public synchronized int size() { return entries.size(); }
+
+    public synchronized long getTotalBytes() { return totalBytes; }
+
+    private void store(String key, String etag, byte[] body) throws IOException {
+        Path file = fileOf(key);
+        Path tmp = Paths.get(file + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tmp))) {
+            out.writeUTF(etag);
+            out.writeInt(body.length);
+            out.write(body);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        synchronized (this) {
+            put(key, new Entry(etag, Files.size(file)));
+            evict();
+        }
+    }
+
+    private byte[] load(String key) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(fileOf(key)))) {
+            in.readUTF();
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            return body;
+        }
+    }
+
+    private void put(String key, Entry entry) {
+        Entry previous = entries.put(key, entry);
+        if (previous != null) totalBytes -= previous.bytes;
+        totalBytes += entry.bytes;
+    }
+
+    private void evict() {
+        long maxBytes = ytProperties.getResponseCacheMaxMegabytes() * 1024L * 1024L;
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (eldest.hasNext() && (entries.size() > ytProperties.getResponseCacheMaxEntries() || totalBytes > maxBytes)) {
+            Map.Entry<String, Entry> evicted = eldest.next();
+            eldest.remove();
+            totalBytes -= evicted.getValue().bytes;
+            try {
+                Files.deleteIfExists(fileOf(evicted.getKey()));
+            }
+            catch (IOException ioe) {
+                LOGGER.log(Level.WARNING, "response-cache | unable to delete evicted entry " + evicted.getKey(), ioe);
+            }
+        }
+    }
+
+    private void touch(String key) {
+        synchronized (this) {
+            entries.get(key);
+        }
+        try {
+            Files.setLastModifiedTime(fileOf(key), FileTime.fromMillis(System.currentTimeMillis()));
+        }
+        catch (IOException ioe) {
+            LOGGER.log(Level.FINE, "response-cache | unable to touch " + key, ioe);
+        }
+    }
+
+    private Path fileOf(String key) {
+        return directory.resolve(key + ENTRY_SUFFIX);
+    }
+
+    private static FileTime lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        }
+        catch (IOException ioe) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    /**
+     * the request url (query string included) hashed down to something that's safe as a file name
+     */
+    static String keyOf(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(url.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) hex.append(String.format("%02x", b));
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae);
+        }
+    }
+
+    private static final class Entry {
+        private final String etag;
+        private final long bytes;
+
+        Entry(String etag, long bytes) {
+            this.etag = etag;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * the outcome of a cached request: either a fresh body or a 304 for the cached one
+     */
+    public final class Response<T> {
+        private final AbstractGoogleClientRequest<T> request;
+        private final String key;
+        private final String etag;
+        private final boolean notModified;
+        private byte[] body;
+
+        private Response(AbstractGoogleClientRequest<T> request, String key, String etag, byte[] body, boolean notModified) {
+            this.request = request;
+            this.key = key;
+            this.etag = etag;
+            this.body = body;
+            this.notModified = notModified;
+        }
+
+        /**
+         * @return true if the api answered 304 and the cached response still stands
+         */
+        public boolean isNotModified() { return notModified; }
+
+        public String getEtag() { return etag; }
+
+        /**
+         * parses the response body, reading it back from the cache for a 304
+         */
+        public T parse() throws IOException {
+            if (body == null) body = load(key);
+            try (InputStream in = new ByteArrayInputStream(body)) {
+                return request.getAbstractGoogleClient().getObjectParser()
+                    .parseAndClose(in, StandardCharsets.UTF_8, request.getResponseClass());
+            }
+        }
+
+        /**
+         * stores a fresh response so the next identical request can be sent conditionally; call it once
+         * everything derived from the response has been written. a no-op for a 304 or a response
+         * without an etag
+         */
+        public void commit() {
+            if (notModified || etag == null || body == null) return;
+            try {
+                store(key, etag, body);
+            }
+            catch (IOException ioe) {
+                LOGGER.log(Level.WARNING, "response-cache | unable to cache response " + key, ioe);
+            }
+        }
+    }
+}
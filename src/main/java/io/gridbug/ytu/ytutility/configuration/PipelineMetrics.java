@@ -0,0 +1,119 @@
+package io.gridbug.ytu.ytutility.configuration;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * the micrometer meters the pipeline publishes (through the actuator's metrics and prometheus
+ * endpoints). every name starts with ytu.:
+ *
+ * ytu.stage.duration        timer, per stage and result (success/error)
+ * ytu.stage.items           counter, per stage and outcome (success/failure)
+ * ytu.api.latency           timer with histogram, per endpoint and http status
+ * ytu.quota.units           counter, units charged per endpoint
+ * ytu.quota.rejected        counter, calls refused for lack of quota, per endpoint
+ * ytu.oauth.refresh         timer, per result
+ * ytu.download.exits        counter, per youtube-dl exit code (or timeout)
+ * ytu.download.bytes        summary of bytes written per completed download
+ *
+ * backlog and cache gauges are registered by the components that own the state.
+ */
+@Component
+public class PipelineMetrics {
+
+    @Autowired
+    private MeterRegistry registry;
+
+    public MeterRegistry getRegistry() { return registry; }
+
+    /**
+     * a stage body; the stage methods throw IOException, so Runnable won't do
+     */
+    public interface StageBody {
+        void run() throws IOException;
+    }
+
+    /**
+     * runs the stage body and records its duration, tagged with whether it threw
+     */
+    public void timeStage(String stage, StageBody body) throws IOException {
+        Timer.Sample sample = Timer.start(registry);
+        String result = "error";
+        try {
+            body.run();
+            result = "success";
+        }
+        finally {
+            sample.stop(Timer.builder("ytu.stage.duration")
+                .tag("stage", stage)
+                .tag("result", result)
+                .publishPercentileHistogram()
+                .register(registry));
+        }
+    }
+
+    public void recordOutcomes(String stage, List<Boolean> outcomes) {
+        long succeeded = outcomes.stream().filter(Boolean::booleanValue).count();
+        recordItems(stage, succeeded, outcomes.size() - succeeded);
+    }
+
+    public void recordItems(String stage, long succeeded, long failed) {
+        if (succeeded > 0) items(stage, "success").increment(succeeded);
+        if (failed > 0) items(stage, "failure").increment(failed);
+    }
+
+    public void recordApiCall(String endpoint, int status, long nanos) {
+        Timer.builder("ytu.api.latency")
+            .tag("endpoint", endpoint)
+            .tag("status", Integer.toString(status))
+            .publishPercentileHistogram()
+            .register(registry)
+            .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordQuotaUnits(String endpoint, int units) {
+        Counter.builder("ytu.quota.units").tag("endpoint", endpoint).register(registry).increment(units);
+    }
+
+    public void recordQuotaRejected(String endpoint) {
+        Counter.builder("ytu.quota.rejected").tag("endpoint", endpoint).register(registry).increment();
+    }
+
+    public void recordTokenRefresh(boolean refreshed, long nanos) {
+        Timer.builder("ytu.oauth.refresh")
+            .tag("result", refreshed ? "success" : "failure")
+            .register(registry)
+            .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param exit youtube-dl's exit code, or "timeout" for a download that was killed
+     */
+    public void recordDownloadExit(String exit) {
+        Counter.builder("ytu.download.exits").tag("exit", exit).register(registry).increment();
+    }
+
+    /**
+     * a fetch descriptor for a video that had already been downloaded
+     */
+    public void recordDownloadSkipped() {
+        Counter.builder("ytu.download.skipped").register(registry).increment();
+    }
+
+    public void recordDownloadedBytes(long bytes) {
+        DistributionSummary.builder("ytu.download.bytes").baseUnit("bytes").register(registry).record(bytes);
+    }
+
+    private Counter items(String stage, String outcome) {
+        return Counter.builder("ytu.stage.items").tag("stage", stage).tag("outcome", outcome).register(registry);
+    }
+}
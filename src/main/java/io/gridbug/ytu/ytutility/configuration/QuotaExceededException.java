@@ -0,0 +1,17 @@
+package io.gridbug.ytu.ytutility.configuration;
+
+import java.io.IOException;
+
+/**
+ * thrown instead of making an api call when the call would go over the daily quota or over the
+ * budget the calling stage reserved. it's an IOException so the stages treat it like any other
+ * failed call and leave the work queued for the next run
+ */
+public class QuotaExceededException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public QuotaExceededException(String message) {
+        super(message);
+    }
+}
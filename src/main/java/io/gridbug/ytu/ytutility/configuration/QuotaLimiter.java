@@ -0,0 +1,318 @@
+package io.gridbug.ytu.ytutility.configuration;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import io.gridbug.ytu.ytutility.storage.JsonCodec;
+import io.micrometer.core.instrument.Gauge;
+
+/**
+ * shared throttle for every youtube data api call.
+ *
+ * calls are paced by a token bucket holding quota units, refilled at ytu.core.quotaUnitsPerSecond up
+ * to ytu.core.quotaBurst, so the stages run as fast as the rate allows instead of sleeping a fixed
+ * time between calls. every unit spent is recorded in a ledger that resets when the api quota does
+ * (midnight pacific); a call that would take the day over ytu.core.quotaDailyLimit fails with
+ * {@link QuotaExceededException} without being sent. the ledger is written to a file, to survive
+ * restarts, every ytu.core.quotaLedgerFlushUnits units, when a budget is released and at shutdown.
+ *
+ * a stage can reserve part of the day's quota with {@link #reserve}; while the budget is open, calls
+ * made from that thread are charged to it and fail once it's used up, so one stage can't starve the
+ * ones scheduled after it. a stage that runs on several threads reserves once and {@link #share}s the
+ * budget with the others. stages can run at the same time, so any stage that might run alongside
+ * others needs a budget in ytu.core.quotaStageBudgets; one without gets the whole rest of the day.
+ */
+@Component
+public class QuotaLimiter {
+
+    private static final Logger LOGGER = Logger.getLogger(QuotaLimiter.class.getName());
+
+    /** the api's quota day starts at midnight pacific time */
+    private static final DateTimeZone QUOTA_ZONE = DateTimeZone.forID("America/Los_Angeles");
+
+    private static final String LEDGER_FILE = "quota-ledger.json";
+
+    /** unit cost of each endpoint we call; anything not listed is charged as a list call */
+    private static final Map<String, Integer> ENDPOINT_COSTS = new HashMap<>();
+    static {
+        ENDPOINT_COSTS.put("channels.list", 1);
+        ENDPOINT_COSTS.put("playlistItems.list", 1);
+        ENDPOINT_COSTS.put("videos.list", 1);
+        ENDPOINT_COSTS.put("subscriptions.list", 1);
+        ENDPOINT_COSTS.put("search.list", 100);
+    }
+    private static final int DEFAULT_COST = 1;
+
+    private final ThreadLocal<Budget> currentBudget = new ThreadLocal<>();
+
+    @Autowired
+    private YTUProperties ytProperties;
+
+    @Autowired
+    private JsonCodec codec;
+
+    @Autowired
+    private PipelineMetrics metrics;
+
+    private Ledger ledger;
+    /** units charged to the ledger since it was last written */
+    private long unsaved;
+    private long reserved;
+    private double tokens;
+    private long lastRefill;
+
+    @PostConstruct
+    private void initialize() {
+        ledger = loadLedger();
+        tokens = ytProperties.getQuotaBurst();
+        lastRefill = System.nanoTime();
+        Gauge.builder("ytu.quota.used", this, QuotaLimiter::getUsedToday).register(metrics.getRegistry());
+        Gauge.builder("ytu.quota.remaining", this, QuotaLimiter::getRemainingToday).register(metrics.getRegistry());
+    }
+
+    @PreDestroy
+    private synchronized void shutdown() {
+        if (unsaved > 0) saveLedger();
+    }
+
+    public static int costOf(String endpoint) {
+        Integer cost = ENDPOINT_COSTS.get(endpoint);
+        return cost == null ? DEFAULT_COST : cost;
+    }
+
+    /**
+     * reserves up to the given number of units for a stage and binds the budget to the calling thread
+     * until it's closed; unspent units go back to the pool on close. a stage with no configured
+     * budget (ytu.core.quotaStageBudgets) gets whatever is left of the day
+     */
+    public synchronized Budget reserve(String stage) {
+        rollLedger();
+        Long configured = ytProperties.getQuotaStageBudgets().get(stage);
+        long available = Math.max(0, ytProperties.getQuotaDailyLimit() - ledger.getUsed() - reserved);
+        long granted = configured == null ? available : Math.min(configured, available);
+        reserved += granted;
+        Budget budget = new Budget(stage, granted);
+        currentBudget.set(budget);
+        LOGGER.log(Level.INFO, "quota-limiter | " + stage + " reserved " + granted + " units; used today: " +
+            ledger.getUsed() + " of " + ytProperties.getQuotaDailyLimit());
+        return budget;
+    }
+
+    /**
+     * charges the calling thread's calls to a budget reserved on another thread, until the returned
+     * binding is closed. the budget is still released by closing it on the thread that reserved it
+     */
+    public Binding share(Budget budget) {
+        currentBudget.set(budget);
+        return () -> {
+            if (currentBudget.get() == budget) currentBudget.remove();
+        };
+    }
+
+    /**
+     * blocks until the bucket holds enough units for the endpoint, then charges them to the calling
+     * thread's budget (if any) and the daily ledger. waiting for tokens lets other callers in, so the
+     * budget and the day are checked again once they've arrived, and a call that no longer fits gives
+     * its tokens back
+     *
+     * @throws InterruptedIOException if the thread is interrupted while waiting; nothing is charged
+     */
+    public void acquire(String endpoint) throws IOException {
+        int cost = costOf(endpoint);
+        Budget budget = currentBudget.get();
+        synchronized (this) {
+            rollLedger();
+            checkQuota(endpoint, cost, budget);
+
+            waitForTokens(cost);
+
+            // a call that waited across midnight pacific is charged to the new day
+            rollLedger();
+            try {
+                checkQuota(endpoint, cost, budget);
+            }
+            catch (QuotaExceededException qee) {
+                tokens += cost;
+                throw qee;
+            }
+
+            if (budget != null) {
+                budget.remaining -= cost;
+                reserved -= cost;
+            }
+            ledger.setUsed(ledger.getUsed() + cost);
+            metrics.recordQuotaUnits(endpoint, cost);
+            Integer calls = ledger.getCalls().get(endpoint);
+            ledger.getCalls().put(endpoint, calls == null ? 1 : calls + 1);
+            unsaved += cost;
+            if (unsaved >= ytProperties.getQuotaLedgerFlushUnits()) saveLedger();
+        }
+    }
+
+    /**
+     * @throws QuotaExceededException if the call doesn't fit in the budget or, without one, in the
+     * day's unreserved units
+     */
+    private void checkQuota(String endpoint, int cost, Budget budget) throws QuotaExceededException {
+        if (budget != null && budget.remaining < cost) {
+            metrics.recordQuotaRejected(endpoint);
+            throw new QuotaExceededException("stage " + budget.stage + " has used its budget of " +
+                budget.granted + " units; not calling " + endpoint);
+        }
+        long unreserved = ytProperties.getQuotaDailyLimit() - ledger.getUsed() - reserved;
+        if (budget == null && unreserved < cost) {
+            metrics.recordQuotaRejected(endpoint);
+            throw new QuotaExceededException("daily quota exhausted (" + ledger.getUsed() + " of " +
+                ytProperties.getQuotaDailyLimit() + " used); not calling " + endpoint);
+        }
+    }
+
+    public synchronized long getUsedToday() {
+        rollLedger();
+        return ledger.getUsed();
+    }
+
+    public synchronized long getRemainingToday() {
+        rollLedger();
+        return ytProperties.getQuotaDailyLimit() - ledger.getUsed();
+    }
+
+    private synchronized void release(Budget budget) {
+        reserved -= budget.remaining;
+        LOGGER.log(Level.INFO, "quota-limiter | " + budget.stage + " used " + (budget.granted - budget.remaining) +
+            " of " + budget.granted + " reserved units");
+        budget.remaining = 0;
+        if (unsaved > 0) saveLedger();
+    }
+
+    private void waitForTokens(int cost) throws InterruptedIOException {
+        double rate = ytProperties.getQuotaUnitsPerSecond();
+        double capacity = Math.max(ytProperties.getQuotaBurst(), cost);
+        while (true) {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) / 1e9 * rate);
+            lastRefill = now;
+            if (tokens >= cost) {
+                tokens -= cost;
+                return;
+            }
+            long waitMillis = (long) Math.ceil((cost - tokens) / rate * 1000);
+            try {
+                wait(Math.max(1, waitMillis));
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for " + cost + " quota units");
+            }
+        }
+    }
+
+    private void rollLedger() {
+        String today = LocalDate.now(QUOTA_ZONE).toString();
+        if (!today.equals(ledger.getDay())) {
+            LOGGER.log(Level.INFO, "quota-limiter | new quota day " + today + "; " + ledger.getDay() + " used " +
+                ledger.getUsed() + " units " + ledger.getCalls());
+            ledger = new Ledger();
+            ledger.setDay(today);
+            saveLedger();
+        }
+    }
+
+    private Path ledgerPath() {
+        return Paths.get(ytProperties.getJsonPath() + File.separator + LEDGER_FILE);
+    }
+
+    private Ledger loadLedger() {
+        Path path = ledgerPath();
+        try {
+            if (Files.exists(path)) return codec.read(path, Ledger.class);
+        }
+        catch (IOException ioe) {
+            LOGGER.log(Level.WARNING, "quota-limiter | unable to read ledger " + path + ", starting a new one", ioe);
+        }
+        Ledger fresh = new Ledger();
+        fresh.setDay(LocalDate.now(QUOTA_ZONE).toString());
+        return fresh;
+    }
+
+    private void saveLedger() {
+        Path path = ledgerPath();
+        Path tmp = Paths.get(path + ".tmp");
+        try {
+            Files.createDirectories(path.getParent());
+            codec.write(ledger, tmp);
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            unsaved = 0;
+        }
+        catch (IOException ioe) {
+            LOGGER.log(Level.WARNING, "quota-limiter | unable to write ledger " + path, ioe);
+        }
+    }
+
+    /**
+     * a stage's share of the day's quota; close it when the stage finishes
+     */
+    public final class Budget implements AutoCloseable {
+        private final String stage;
+        private final long granted;
+        private long remaining;
+
+        private Budget(String stage, long granted) {
+            this.stage = stage;
+            this.granted = granted;
+            this.remaining = granted;
+        }
+
+        public String getStage() { return stage; }
+        public long getGranted() { return granted; }
+
+        @Override
+        public void close() {
+            if (currentBudget.get() == this) currentBudget.remove();
+            release(this);
+        }
+    }
+
+    /**
+     * a budget shared with another thread; closing it doesn't release the budget
+     */
+    public interface Binding extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    /**
+     * units spent on one quota day, persisted as json
+     */
+    public static class Ledger {
+        private String day;
+        private long used;
+        private Map<String, Integer> calls = new HashMap<>();
+
+        public String getDay() { return day; }
+        public void setDay(String day) { this.day = day; }
+
+        public long getUsed() { return used; }
+        public void setUsed(long used) { this.used = used; }
+
+        public Map<String, Integer> getCalls() { return calls; }
+        public void setCalls(Map<String, Integer> calls) { this.calls = calls; }
+    }
+}
@@ -0,0 +1,27 @@
+package io.gridbug.ytu.ytutility.configuration;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+
+/**
+ * the scheduler behind the @Scheduled triggers. spring's default is a single thread, which would
+ * hold the uploads pipeline behind a long daily channel check (and the token refresh behind
+ * both)
+ */
+@Configuration
+public class SchedulingConfiguration {
+
+    @Autowired
+    private YTUProperties ytProperties;
+
+    @Bean
+    public TaskScheduler taskScheduler() {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(ytProperties.getSchedulerThreads());
+        scheduler.setThreadNamePrefix("stage-trigger-");
+        return scheduler;
+    }
+}
@@ -0,0 +1,86 @@
+package io.gridbug.ytu.ytutility.configuration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import io.gridbug.ytu.ytutility.storage.ActionHistory;
+import io.gridbug.ytu.ytutility.storage.ChannelSegmentStore;
+import io.gridbug.ytu.ytutility.storage.DownloadArchive;
+import io.gridbug.ytu.ytutility.storage.JsonCodec;
+import io.gridbug.ytu.ytutility.storage.VideoStateIndex;
+
+/**
+ * the embedded stores the pipeline keeps under the json path
+ */
+@Configuration
+public class StorageConfiguration {
+
+    @Autowired
+    private YTUProperties ytProperties;
+
+    /**
+     * the json codec every component reads and writes through
+     */
+    @Bean
+    public JsonCodec jsonCodec() {
+        return new JsonCodec();
+    }
+
+    /**
+     * the per-channel playlist item and details records, kept in the channel data directory
+     */
+    @Bean(destroyMethod = "close")
+    public ChannelSegmentStore channelSegmentStore(JsonCodec codec) throws IOException {
+        return new ChannelSegmentStore(Paths.get(ytProperties.getChannelDataPath()), codec);
+    }
+
+    /**
+     * the archive of finished downloads, brought up to date with the videos directory on every start
+     */
+    @Bean(destroyMethod = "close")
+    public DownloadArchive downloadArchive(JsonCodec codec) throws IOException {
+        Path journal = Paths.get(ytProperties.getJsonPath() + File.separator + "download-archive" + File.separator + "downloads.log");
+        DownloadArchive archive = new DownloadArchive(journal, codec);
+        archive.rebuildFrom(Paths.get(ytProperties.getVideosPath()));
+        return archive;
+    }
+
+    /**
+     * the video state index; seeded from the channel data the first time it's opened, including any
+     * channel directories not yet migrated to segments, with the videos already in the download
+     * archive marked downloaded
+     */
+    @Bean(destroyMethod = "close")
+    public VideoStateIndex videoStateIndex(ChannelSegmentStore channelData, DownloadArchive archive) throws IOException {
+        Path journal = Paths.get(ytProperties.getJsonPath() + File.separator + "video-index" + File.separator + "videos.journal");
+        boolean fresh = !Files.exists(journal);
+        VideoStateIndex index = new VideoStateIndex(journal);
+        if (fresh) {
+            index.rebuildFrom(Paths.get(ytProperties.getChannelDataPath()));
+            index.rebuildFrom(channelData);
+            Map<String, String> downloaded = new LinkedHashMap<>();
+            for (String videoId : archive.videoIds()) {
+                if (index.channelOf(videoId) != null) downloaded.put(videoId, null);
+            }
+            index.markAll(downloaded, VideoStateIndex.DOWNLOADED);
+        }
+        return index;
+    }
+
+    /**
+     * the completed actions history, kept in the completed actions directory
+     */
+    @Bean(destroyMethod = "close")
+    public ActionHistory actionHistory(JsonCodec codec) throws IOException {
+        return new ActionHistory(Paths.get(ytProperties.getCompletedActionsPath()), codec);
+    }
+}
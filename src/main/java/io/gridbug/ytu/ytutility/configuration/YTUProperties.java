@@ -1,6 +1,8 @@
 package io.gridbug.ytu.ytutility.configuration;
 
 import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
@@ -9,6 +11,8 @@ import org.springframework.context.annotation.Configuration;
 @ConfigurationProperties("ytu.core")
 public class YTUProperties {
 
+    private static final int VIDEOS_PER_DETAILS_CALL = 50;
+
     /**
      * this is the root path for the various json directories
      */
@@ -62,6 +66,290 @@ public class YTUProperties {
     public String getVideoFetchSubpath() { return videoFetchSubpath; }
     public void setVideoFetchSubpath(String videoFetchSubpath) { this.videoFetchSubpath = videoFetchSubpath; }
 
+    /**
+     * number of channel ids sent per channels.list call; the api accepts at most 50
+     */
+    private int channelCheckBatchSize = 50;
+
+    public int getChannelCheckBatchSize() { return Math.max(1, Math.min(50, channelCheckBatchSize)); }
+    public void setChannelCheckBatchSize(int channelCheckBatchSize) { this.channelCheckBatchSize = channelCheckBatchSize; }
+
+    /**
+     * how many times a channel's uploads are checked in its average gap between uploads
+     */
+    private int videoChecksPerUpload = 4;
+
+    public int getVideoChecksPerUpload() { return Math.max(1, videoChecksPerUpload); }
+    public void setVideoChecksPerUpload(int videoChecksPerUpload) { this.videoChecksPerUpload = videoChecksPerUpload; }
+
+    /**
+     * the shortest time between checks of a channel's uploads
+     */
+    private int videoCheckMinMinutes = 60;
+
+    public int getVideoCheckMinMinutes() { return Math.max(5, videoCheckMinMinutes); }
+    public void setVideoCheckMinMinutes(int videoCheckMinMinutes) { this.videoCheckMinMinutes = videoCheckMinMinutes; }
+
+    /**
+     * the longest time between checks of a channel's uploads, however quiet it has gone
+     */
+    private int videoCheckMaxHours = 168;
+
+    public int getVideoCheckMaxHours() { return Math.max(1, videoCheckMaxHours); }
+    public void setVideoCheckMaxHours(int videoCheckMaxHours) { this.videoCheckMaxHours = videoCheckMaxHours; }
+
+    /**
+     * size at which the descriptor work queues roll over to a new segment file
+     */
+    private long queueSegmentBytes = 16 * 1024 * 1024;
+
+    public long getQueueSegmentBytes() { return queueSegmentBytes; }
+    public void setQueueSegmentBytes(long queueSegmentBytes) { this.queueSegmentBytes = queueSegmentBytes; }
+
+    /**
+     * youtube data api units available per quota day
+     */
+    private long quotaDailyLimit = 10000;
+
+    public long getQuotaDailyLimit() { return quotaDailyLimit; }
+    public void setQuotaDailyLimit(long quotaDailyLimit) { this.quotaDailyLimit = quotaDailyLimit; }
+
+    /**
+     * rate at which the api limiter's token bucket refills, in quota units per second
+     */
+    private double quotaUnitsPerSecond = 5.0;
+
+    public double getQuotaUnitsPerSecond() { return quotaUnitsPerSecond; }
+    public void setQuotaUnitsPerSecond(double quotaUnitsPerSecond) { this.quotaUnitsPerSecond = quotaUnitsPerSecond; }
+
+    /**
+     * most quota units the api limiter lets through in a burst
+     */
+    private int quotaBurst = 20;
+
+    public int getQuotaBurst() { return quotaBurst; }
+    public void setQuotaBurst(int quotaBurst) { this.quotaBurst = quotaBurst; }
+
+    /**
+     * quota units spent between writes of the ledger file; it's also written when a stage releases
+     * its budget and at shutdown, so a crash loses at most this many units from the day's count
+     */
+    private int quotaLedgerFlushUnits = 50;
+
+    public int getQuotaLedgerFlushUnits() { return Math.max(1, quotaLedgerFlushUnits); }
+    public void setQuotaLedgerFlushUnits(int quotaLedgerFlushUnits) { this.quotaLedgerFlushUnits = quotaLedgerFlushUnits; }
+
+    /**
+     * units each stage may reserve per run, by stage name (run-channel-check, uploads-pipeline...);
+     * stages not listed may use whatever is left of the day, so every stage that can run alongside
+     * another has to be listed
+     */
+    private Map<String, Long> quotaStageBudgets = new HashMap<>();
+
+    public Map<String, Long> getQuotaStageBudgets() { return quotaStageBudgets; }
+    public void setQuotaStageBudgets(Map<String, Long> quotaStageBudgets) { this.quotaStageBudgets = quotaStageBudgets; }
+
+    /**
+     * the youtube-dl executable the download engine runs
+     */
+    private String youtubeDlPath = "/app/BOOT-INF/classes/bin/youtube-dl";
+
+    public String getYoutubeDlPath() { return youtubeDlPath; }
+    public void setYoutubeDlPath(String youtubeDlPath) { this.youtubeDlPath = youtubeDlPath; }
+
+    /**
+     * number of youtube-dl processes the download engine runs at once
+     */
+    private int downloadWorkers = 2;
+
+    public int getDownloadWorkers() { return Math.max(1, downloadWorkers); }
+    public void setDownloadWorkers(int downloadWorkers) { this.downloadWorkers = downloadWorkers; }
+
+    /**
+     * a download still running after this long is killed and retried on the next run
+     */
+    private long downloadTimeoutMinutes = 120;
+
+    public long getDownloadTimeoutMinutes() { return downloadTimeoutMinutes; }
+    public void setDownloadTimeoutMinutes(long downloadTimeoutMinutes) { this.downloadTimeoutMinutes = downloadTimeoutMinutes; }
+
+    /**
+     * downloads from one channel that may run at once, so a channel's backfill can't take every worker
+     */
+    private int downloadsPerChannel = 1;
+
+    public int getDownloadsPerChannel() { return Math.max(1, downloadsPerChannel); }
+    public void setDownloadsPerChannel(int downloadsPerChannel) { this.downloadsPerChannel = downloadsPerChannel; }
+
+    /**
+     * bandwidth cap in kilobytes per second for all the download workers together; 0 for no cap.
+     * each download is limited to cap / downloadWorkers, busy or not
+     */
+    private long downloadRateLimitKilobytes = 0;
+
+    public long getDownloadRateLimitKilobytes() { return Math.max(0, downloadRateLimitKilobytes); }
+    public void setDownloadRateLimitKilobytes(long downloadRateLimitKilobytes) { this.downloadRateLimitKilobytes = downloadRateLimitKilobytes; }
+
+    /**
+     * how much newer a video is treated as, when ordering downloads, for every factor of ten in its
+     * channel's subscriber count
+     */
+    private int downloadSubscriberBoostHours = 24;
+
+    public int getDownloadSubscriberBoostHours() { return Math.max(0, downloadSubscriberBoostHours); }
+    public void setDownloadSubscriberBoostHours(int downloadSubscriberBoostHours) { this.downloadSubscriberBoostHours = downloadSubscriberBoostHours; }
+
+    /**
+     * downloads the pipeline and the descriptor watcher may each have waiting on the download engine,
+     * which starts them in priority order
+     */
+    private int downloadQueueCapacity = 2000;
+
+    public int getDownloadQueueCapacity() { return Math.max(getDownloadWorkers(), downloadQueueCapacity); }
+    public void setDownloadQueueCapacity(int downloadQueueCapacity) { this.downloadQueueCapacity = downloadQueueCapacity; }
+
+    /**
+     * rows per statement batch (or per multi-row upsert) on the bulk ingest paths
+     */
+    private int jdbcBatchSize = 500;
+
+    public int getJdbcBatchSize() { return Math.max(1, jdbcBatchSize); }
+    public void setJdbcBatchSize(int jdbcBatchSize) { this.jdbcBatchSize = jdbcBatchSize; }
+
+    /**
+     * bounds on the etag response cache; the least recently used entries go first
+     */
+    private int responseCacheMaxEntries = 20000;
+
+    public int getResponseCacheMaxEntries() { return Math.max(1, responseCacheMaxEntries); }
+    public void setResponseCacheMaxEntries(int responseCacheMaxEntries) { this.responseCacheMaxEntries = responseCacheMaxEntries; }
+
+    private long responseCacheMaxMegabytes = 256;
+
+    public long getResponseCacheMaxMegabytes() { return responseCacheMaxMegabytes; }
+    public void setResponseCacheMaxMegabytes(long responseCacheMaxMegabytes) { this.responseCacheMaxMegabytes = responseCacheMaxMegabytes; }
+
+    /**
+     * bounds on the in-memory channel info cache: entries past the count go least recently used
+     * first, and an entry older than the ttl is read from the database again
+     */
+    private int channelCacheMaxEntries = 50000;
+
+    public int getChannelCacheMaxEntries() { return Math.max(1, channelCacheMaxEntries); }
+    public void setChannelCacheMaxEntries(int channelCacheMaxEntries) { this.channelCacheMaxEntries = channelCacheMaxEntries; }
+
+    private int channelCacheTtlSeconds = 900;
+
+    public int getChannelCacheTtlSeconds() { return Math.max(1, channelCacheTtlSeconds); }
+    public void setChannelCacheTtlSeconds(int channelCacheTtlSeconds) { this.channelCacheTtlSeconds = channelCacheTtlSeconds; }
+
+    /**
+     * videos the uploads pipeline's scrape stage may hand to the details stage before it has to wait
+     */
+    private int pipelineHandoffCapacity = 1000;
+
+    public int getPipelineHandoffCapacity() { return Math.max(VIDEOS_PER_DETAILS_CALL, pipelineHandoffCapacity); }
+    public void setPipelineHandoffCapacity(int pipelineHandoffCapacity) { this.pipelineHandoffCapacity = pipelineHandoffCapacity; }
+
+    /**
+     * how long the details stage waits for a full batch of ids before sending a partial one
+     */
+    private int pipelineDetailsLingerSeconds = 10;
+
+    public int getPipelineDetailsLingerSeconds() { return Math.max(1, pipelineDetailsLingerSeconds); }
+    public void setPipelineDetailsLingerSeconds(int pipelineDetailsLingerSeconds) { this.pipelineDetailsLingerSeconds = pipelineDetailsLingerSeconds; }
+
+    /**
+     * threads for the scheduled stage triggers
+     */
+    private int schedulerThreads = 4;
+
+    public int getSchedulerThreads() { return Math.max(1, schedulerThreads); }
+    public void setSchedulerThreads(int schedulerThreads) { this.schedulerThreads = schedulerThreads; }
+
+    /**
+     * independent api calls sent together in one multipart batch request; the api takes up to 1000
+     * but recommends no more than 50
+     */
+    private int apiBatchMaxParts = 50;
+
+    public int getApiBatchMaxParts() { return Math.max(1, Math.min(1000, apiBatchMaxParts)); }
+    public void setApiBatchMaxParts(int apiBatchMaxParts) { this.apiBatchMaxParts = apiBatchMaxParts; }
+
+    /**
+     * details fetches a video can come back missing from (private, deleted...) before it's marked
+     * unavailable and no longer asked for; at most 7
+     */
+    private int detailsMaxMisses = 3;
+
+    public int getDetailsMaxMisses() { return Math.max(1, Math.min(7, detailsMaxMisses)); }
+    public void setDetailsMaxMisses(int detailsMaxMisses) { this.detailsMaxMisses = detailsMaxMisses; }
+
+    /**
+     * days of completed action history to keep; 0 keeps all of it
+     */
+    private int actionHistoryRetentionDays = 730;
+
+    public int getActionHistoryRetentionDays() { return Math.max(0, actionHistoryRetentionDays); }
+    public void setActionHistoryRetentionDays(int actionHistoryRetentionDays) { this.actionHistoryRetentionDays = actionHistoryRetentionDays; }
+
+    /**
+     * when running as a service, watch the descriptor directories and pick up what's staged there
+     * straight away instead of on the next cron tick
+     */
+    private boolean descriptorWatch = false;
+
+    public boolean isDescriptorWatch() { return descriptorWatch; }
+    public void setDescriptorWatch(boolean descriptorWatch) { this.descriptorWatch = descriptorWatch; }
+
+    /**
+     * video fetch descriptors the watcher may hold waiting for a download slot; past this, new ones
+     * wait for the reconciliation scan
+     */
+    private int watchQueueCapacity = 1000;
+
+    public int getWatchQueueCapacity() { return Math.max(1, watchQueueCapacity); }
+    public void setWatchQueueCapacity(int watchQueueCapacity) { this.watchQueueCapacity = watchQueueCapacity; }
+
+    /**
+     * how long after the first change to a queue directory its stage is run, so a burst of staging
+     * becomes one run
+     */
+    private int watchDebounceSeconds = 5;
+
+    public int getWatchDebounceSeconds() { return Math.max(1, watchDebounceSeconds); }
+    public void setWatchDebounceSeconds(int watchDebounceSeconds) { this.watchDebounceSeconds = watchDebounceSeconds; }
+
+    /**
+     * how often the watched directories are scanned for anything a lost watch event left behind
+     */
+    private int watchReconcileSeconds = 300;
+
+    public int getWatchReconcileSeconds() { return Math.max(10, watchReconcileSeconds); }
+    public void setWatchReconcileSeconds(int watchReconcileSeconds) { this.watchReconcileSeconds = watchReconcileSeconds; }
+
+    /**
+     * how long the reconciliation scan leaves a fetch descriptor alone after a download of it failed
+     */
+    private int watchRetryMinutes = 60;
+
+    public int getWatchRetryMinutes() { return Math.max(1, watchRetryMinutes); }
+    public void setWatchRetryMinutes(int watchRetryMinutes) { this.watchRetryMinutes = watchRetryMinutes; }
+
+    /**
+     * items in a page of an api list when the request doesn't ask for a number, and the most it may
+     * ask for
+     */
+    private int apiPageSize = 100;
+
+    public int getApiPageSize() { return Math.max(1, apiPageSize); }
+    public void setApiPageSize(int apiPageSize) { this.apiPageSize = apiPageSize; }
+
+    private int apiMaxPageSize = 1000;
+
+    public int getApiMaxPageSize() { return Math.max(1, apiMaxPageSize); }
+    public void setApiMaxPageSize(int apiMaxPageSize) { this.apiMaxPageSize = apiMaxPageSize; }
+
 
     public String getSubsPath() {
         return getJsonPath() + File.separator + getSubsSubpath();
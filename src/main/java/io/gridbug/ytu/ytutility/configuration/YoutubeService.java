@@ -7,6 +7,9 @@ import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.json.JsonFactory;
@@ -27,12 +30,16 @@ import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.annotation.PostConstruct;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.PropertySource;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 import com.google.api.services.youtube.YouTube;
@@ -64,9 +71,32 @@ public class YoutubeService {
         Arrays.asList(YouTubeScopes.YOUTUBE_READONLY, YouTubeScopes.YOUTUBE_FORCE_SSL);
         
 
+    private static final Logger LOGGER = Logger.getLogger(YoutubeService.class.getName());
+
+    /** refresh the access token once it has less than this long left */
+    private static final long REFRESH_AHEAD_SECONDS = 300;
+
+    /** the path segment and endpoint name of multipart batch requests */
+    static final String BATCH_ENDPOINT = "batch";
+
+    /** the authorized client every stage shares; built on first use */
+    private volatile YouTube youtube;
+
+    private volatile Credential credential;
+
+    private final AtomicLong refreshCount = new AtomicLong();
+    private final AtomicLong totalRefreshMillis = new AtomicLong();
+    private volatile long lastRefreshMillis;
+
     @Autowired
     private YTUProperties ytProperties;
 
+    @Autowired
+    private QuotaLimiter quotaLimiter;
+
+    @Autowired
+    private PipelineMetrics metrics;
+
     public YoutubeService() {
     }
 
@@ -115,9 +145,95 @@ public class YoutubeService {
 	 * @throws IOException
 	 */
 	public YouTube getYouTubeService() throws IOException {
-		Credential credential = authorize();
-		return new YouTube.Builder(HTTP_TRANSPORT, JSON_FACTORY, credential)
-				.setApplicationName(APPLICATION_NAME)
-				.build();
+		YouTube client = youtube;
+		if (client == null) {
+			synchronized (this) {
+				if (youtube == null) {
+					credential = authorize();
+					youtube = new YouTube.Builder(HTTP_TRANSPORT, JSON_FACTORY, quotaLimited(credential))
+							.setApplicationName(APPLICATION_NAME)
+							.build();
+					LOGGER.log(Level.INFO, "youtube-service | authorized and built shared client");
+				}
+				client = youtube;
+			}
+		}
+		return client;
+	}
+
+	/**
+	 * refreshes the shared credential's access token when it's close to expiring, so the stages
+	 * never have to stop and refresh it in the middle of a run
+	 */
+	@Scheduled(fixedDelay = 60000)
+	private void refreshIfExpiring() {
+		Credential current = credential;
+		if (current == null) return;
+		Long expiresIn = current.getExpiresInSeconds();
+		if (expiresIn != null && expiresIn > REFRESH_AHEAD_SECONDS) return;
+
+		long start = System.nanoTime();
+		try {
+			boolean refreshed = current.refreshToken();
+			metrics.recordTokenRefresh(refreshed, System.nanoTime() - start);
+			long millis = (System.nanoTime() - start) / 1000000;
+			refreshCount.incrementAndGet();
+			totalRefreshMillis.addAndGet(millis);
+			lastRefreshMillis = millis;
+			LOGGER.log(refreshed ? Level.INFO : Level.WARNING, "youtube-service | token refresh " +
+				(refreshed ? "succeeded" : "failed") + " in " + millis + "ms; expires in " + current.getExpiresInSeconds() + "s");
+		}
+		catch (IOException ioe) {
+			metrics.recordTokenRefresh(false, System.nanoTime() - start);
+			LOGGER.log(Level.WARNING, "youtube-service | token refresh failed", ioe);
+		}
+	}
+
+	/** number of proactive token refreshes since startup */
+	public long getRefreshCount() { return refreshCount.get(); }
+
+	/** how long the last proactive token refresh took */
+	public long getLastRefreshMillis() { return lastRefreshMillis; }
+
+	/** total time spent on proactive token refreshes since startup */
+	public long getTotalRefreshMillis() { return totalRefreshMillis.get(); }
+
+	/**
+	 * wraps the credential's request initializer so that every request the client sends first
+	 * goes through the quota limiter, and times each request from when it's let through to when
+	 * its response arrives
+	 */
+	private HttpRequestInitializer quotaLimited(Credential credential) {
+		return request -> {
+			credential.initialize(request);
+			HttpExecuteInterceptor auth = request.getInterceptor();
+			long[] sent = new long[1];
+			request.setInterceptor(limited -> {
+				// a batch's parts are charged one by one as the batch runs their interceptors
+				String endpoint = endpointOf(limited);
+				if (!BATCH_ENDPOINT.equals(endpoint)) quotaLimiter.acquire(endpoint);
+				if (auth != null) auth.intercept(limited);
+				sent[0] = System.nanoTime();
+			});
+			request.setResponseInterceptor(response ->
+				metrics.recordApiCall(endpointOf(response.getRequest()), response.getStatusCode(), System.nanoTime() - sent[0]));
+		};
+	}
+
+	/**
+	 * names the api endpoint a request is for the way the quota cost table does, e.g. a GET to
+	 * /youtube/v3/playlistItems is playlistItems.list. the multipart envelope of a batch is just
+	 * "batch"
+	 */
+	static String endpointOf(HttpRequest request) {
+		List<String> parts = request.getUrl().getPathParts();
+		if (parts != null && parts.contains(BATCH_ENDPOINT)) return BATCH_ENDPOINT;
+		String resource = parts == null || parts.isEmpty() ? "" : parts.get(parts.size() - 1);
+		switch (request.getRequestMethod()) {
+			case "POST": return resource + ".insert";
+			case "PUT": return resource + ".update";
+			case "DELETE": return resource + ".delete";
+			default: return resource + ".list";
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,268 @@
+package io.gridbug.ytu.ytutility.dao;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import org.joda.time.DateTime;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import io.gridbug.ytu.ytutility.configuration.YTUProperties;
+import io.gridbug.ytu.ytutility.model.ChannelInfo;
+import io.gridbug.ytu.ytutility.model.Subscription;
+import io.gridbug.ytu.ytutility.model.Video;
+
+/**
+ * bulk write paths for the tables the stages fill in large numbers. rows go out in batches of
+ * ytu.core.jdbcBatchSize instead of one statement (and one round trip) per entity
+ */
+@Repository
+public class BulkIngestDao {
+
+    private static final Logger LOGGER = Logger.getLogger(BulkIngestDao.class.getName());
+
+    private static final String[] CHANNEL_INFO_COLUMNS = { "id", "name", "description", "created_on", "custom_url",
+        "uploads_playlist_id", "thumbnail_url", "subscriber_count", "video_count", "view_count", "last_check" };
+
+    private static final String[] LISTED_VIDEO_COLUMNS = { "id", "channel_id", "title", "description",
+        "published_at", "thumbnail_url", "modified_on", "download_state" };
+
+    private static final String[] VIDEO_DETAILS_COLUMNS = { "id", "channel_id", "title", "description",
+        "published_at", "thumbnail_url", "duration", "privacy_status", "view_count", "like_count", "comment_count",
+        "details_fetched_on", "modified_on", "download_state" };
+
+    @Autowired
+    private JdbcTemplate jdbc;
+
+    @Autowired
+    private SubscriptionRepository subsdao;
+
+    @Autowired
+    private ChannelInfoCache channelCache;
+
+    @Autowired
+    private YTUProperties ytProperties;
+
+    /**
+     * @return yt channel id -> subscriptions row id for every subscription, from one query
+     */
+    public Map<String, Long> loadSubscriptionIds() {
+        Map<String, Long> ids = new HashMap<>();
+        jdbc.query("select yt_id, id from subscriptions", rs -> {
+            ids.put(rs.getString(1), rs.getLong(2));
+        });
+        return ids;
+    }
+
+    /**
+     * updates the subscriptions we already have with batched updates and inserts the rest through
+     * jpa (the ids come from hibernate's generator), which batches them per hibernate.jdbc.batch_size
+     *
+     * @return the number of rows written
+     */
+    @Transactional
+    public int ingestSubscriptions(List<Subscription> subs) {
+        long start = System.nanoTime();
+        Map<String, Long> existing = loadSubscriptionIds();
+
+        List<Object[]> updates = new ArrayList<>();
+        List<Subscription> inserts = new ArrayList<>();
+        for (Subscription sub : subs) {
+            Long id = existing.get(sub.getYtId());
+            if (id == null) {
+                inserts.add(sub);
+                continue;
+            }
+            sub.setId(id);
+            updates.add(new Object[] { sub.getName(), sub.getDescription(), timestamp(sub.getSubscribedOn()),
+                timestamp(sub.getLastCheck()), id });
+        }
+
+        int batchSize = ytProperties.getJdbcBatchSize();
+        for (int i = 0; i < updates.size(); i += batchSize) {
+            jdbc.batchUpdate("update subscriptions set name = ?, description = ?, subscribed_on = ?, last_check = ? where id = ?",
+                updates.subList(i, Math.min(i + batchSize, updates.size())));
+        }
+        subsdao.saveAll(inserts);
+
+        report("subscriptions", subs.size(), start);
+        return subs.size();
+    }
+
+    /**
+     * writes the channel infos with multi-row insert ... on duplicate key update statements. the
+     * uploads scraper's high-water mark columns aren't touched, so a channel check doesn't reset them.
+     * the channels are dropped from the channel info cache once the write commits, as they are by the
+     * other channel info writes below
+     *
+     * @return the number of rows written
+     */
+    @Transactional
+    public int upsertChannelInfos(List<ChannelInfo> chans) {
+        if (chans.isEmpty()) return 0;
+        long start = System.nanoTime();
+        int batchSize = ytProperties.getJdbcBatchSize();
+        for (int i = 0; i < chans.size(); i += batchSize) {
+            List<ChannelInfo> batch = chans.subList(i, Math.min(i + batchSize, chans.size()));
+            List<Object> args = new ArrayList<>();
+            for (ChannelInfo chan : batch) {
+                Collections.addAll(args, chan.getId(), chan.getName(), chan.getDescription(),
+                    timestamp(chan.getCreatedOn()), chan.getCustomUrl(), chan.getUploadsPlaylistId(),
+                    chan.getThumbnailUrl(), chan.getSubscriberCount(), chan.getVideoCount(), chan.getViewCount(),
+                    timestamp(chan.getLastCheck()));
+            }
+            jdbc.update(upsertSql("channelinfos", CHANNEL_INFO_COLUMNS, batch.size()), args.toArray());
+        }
+        channelCache.invalidateAfterCompletion(chans.stream().map(ChannelInfo::getId).collect(Collectors.toList()));
+        report("channelinfos", chans.size(), start);
+        return chans.size();
+    }
+
+    /**
+     * moves last_check forward on channels whose check found nothing new, with one batched update
+     */
+    @Transactional
+    public void touchChannelChecks(List<String> channelIds, DateTime checkedOn) {
+        List<Object[]> args = new ArrayList<>();
+        for (String id : channelIds) args.add(new Object[] { timestamp(checkedOn), id });
+        jdbc.batchUpdate("update channelinfos set last_check = ? where id = ?", args);
+        channelCache.invalidateAfterCompletion(channelIds);
+    }
+
+    /**
+     * brings the next uploads check of the given channels forward to the given time, with one batched
+     * update
+     */
+    @Transactional
+    public void scheduleVideoChecks(List<String> channelIds, DateTime checkAt) {
+        List<Object[]> args = new ArrayList<>();
+        for (String id : channelIds) args.add(new Object[] { timestamp(checkAt), id, timestamp(checkAt) });
+        jdbc.batchUpdate("update channelinfos set next_video_check = ? where id = ? and " +
+            "(next_video_check is null or next_video_check > ?)", args);
+        channelCache.invalidateAfterCompletion(channelIds);
+    }
+
+    /**
+     * writes what the uploads scraper owns on a channel info: its high-water mark and learned
+     * schedule. only those columns are set, so a channel check or subscription sync that wrote the
+     * row while the scrape ran keeps its last_check, title and counts
+     */
+    @Transactional
+    public void updateUploadsSchedule(ChannelInfo chan) {
+        // the caller changed the cached entity in place, so it goes whether or not the write does
+        channelCache.invalidateAfterCompletion(Collections.singletonList(chan.getId()));
+        jdbc.update("update channelinfos set newest_video_id = ?, newest_video_published_at = ?, " +
+            "upload_interval_minutes = ?, next_video_check = ? where id = ?",
+            chan.getNewestVideoId(), timestamp(chan.getNewestVideoPublishedAt()), chan.getUploadIntervalMinutes(),
+            timestamp(chan.getNextVideoCheck()), chan.getId());
+    }
+
+    /**
+     * writes videos as they're listed from an uploads playlist. a video that's already there only has
+     * its snippet columns refreshed; its details and download state are left alone
+     *
+     * @return the number of rows written
+     */
+    @Transactional
+    public int upsertListedVideos(List<Video> videos) {
+        if (videos.isEmpty()) return 0;
+        long start = System.nanoTime();
+        Timestamp modifiedOn = timestamp(DateTime.now());
+        int batchSize = ytProperties.getJdbcBatchSize();
+        for (int i = 0; i < videos.size(); i += batchSize) {
+            List<Video> batch = videos.subList(i, Math.min(i + batchSize, videos.size()));
+            List<Object> args = new ArrayList<>();
+            for (Video video : batch) {
+                Collections.addAll(args, video.getId(), video.getChannelId(), video.getTitle(), video.getDescription(),
+                    timestamp(video.getPublishedAt()), video.getThumbnailUrl(), modifiedOn,
+                    video.getDownloadState().name());
+            }
+            jdbc.update(upsertSql("videos", LISTED_VIDEO_COLUMNS, LISTED_VIDEO_COLUMNS.length - 1, batch.size()),
+                args.toArray());
+        }
+        report("videos (listed)", videos.size(), start);
+        return videos.size();
+    }
+
+    /**
+     * writes every column of videos whose details have been fetched, including their download state
+     *
+     * @return the number of rows written
+     */
+    @Transactional
+    public int upsertVideoDetails(List<Video> videos) {
+        if (videos.isEmpty()) return 0;
+        long start = System.nanoTime();
+        Timestamp modifiedOn = timestamp(DateTime.now());
+        int batchSize = ytProperties.getJdbcBatchSize();
+        for (int i = 0; i < videos.size(); i += batchSize) {
+            List<Video> batch = videos.subList(i, Math.min(i + batchSize, videos.size()));
+            List<Object> args = new ArrayList<>();
+            for (Video video : batch) {
+                Collections.addAll(args, video.getId(), video.getChannelId(), video.getTitle(), video.getDescription(),
+                    timestamp(video.getPublishedAt()), video.getThumbnailUrl(), video.getDuration(),
+                    video.getPrivacyStatus(), video.getViewCount(), video.getLikeCount(), video.getCommentCount(),
+                    timestamp(video.getDetailsFetchedOn()), modifiedOn, video.getDownloadState().name());
+            }
+            jdbc.update(upsertSql("videos", VIDEO_DETAILS_COLUMNS, batch.size()), args.toArray());
+        }
+        report("videos (details)", videos.size(), start);
+        return videos.size();
+    }
+
+    /**
+     * sets the download state of the given videos with one batched update
+     */
+    @Transactional
+    public void updateDownloadState(List<String> videoIds, Video.DownloadState state) {
+        List<Object[]> args = new ArrayList<>();
+        Timestamp modifiedOn = timestamp(DateTime.now());
+        for (String id : videoIds) args.add(new Object[] { state.name(), modifiedOn, id });
+        jdbc.batchUpdate("update videos set download_state = ?, modified_on = ? where id = ?", args);
+    }
+
+    /**
+     * builds insert into table (columns) values (?, ...), ... on duplicate key update column = values(column)
+     * for every column but the first, which is taken to be the key
+     */
+    static String upsertSql(String table, String[] columns, int rows) {
+        return upsertSql(table, columns, columns.length, rows);
+    }
+
+    /**
+     * as above, but only columns 1 to updatedColumns - 1 are updated on a duplicate key
+     */
+    static String upsertSql(String table, String[] columns, int updatedColumns, int rows) {
+        StringBuilder row = new StringBuilder("(");
+        for (int c = 0; c < columns.length; c++) row.append(c == 0 ? "?" : ", ?");
+        row.append(")");
+
+        StringBuilder sql = new StringBuilder("insert into ").append(table).append(" (")
+            .append(String.join(", ", columns)).append(") values ");
+        for (int r = 0; r < rows; r++) sql.append(r == 0 ? "" : ", ").append(row);
+        sql.append(" on duplicate key update ");
+        for (int c = 1; c < updatedColumns; c++) {
+            sql.append(c == 1 ? "" : ", ").append(columns[c]).append(" = values(").append(columns[c]).append(")");
+        }
+        return sql.toString();
+    }
+
+    static Timestamp timestamp(DateTime dateTime) {
+        return dateTime == null ? null : new Timestamp(dateTime.getMillis());
+    }
+
+    private void report(String table, int rows, long start) {
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+        LOGGER.log(Level.INFO, String.format("bulk-ingest | %s | %d rows in %.2fs, %.0f rows/s", table, rows,
+            seconds, rows / seconds));
+    }
+}
@@ -0,0 +1,234 @@
+package io.gridbug.ytu.ytutility.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import io.gridbug.ytu.ytutility.configuration.PipelineMetrics;
+import io.gridbug.ytu.ytutility.configuration.YTUProperties;
+import io.gridbug.ytu.ytutility.model.ChannelInfo;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * channel infos read through from the {@link ChannelInfoRepository}, so the stages that look the same
+ * channels up run after run (the uploads scraper per descriptor batch, the download engine per
+ * download, the channel check per batch) don't go to the database every time.
+ *
+ * entries are evicted least recently used first once there are more than
+ * ytu.core.channelCacheMaxEntries of them, and are reloaded once they're older than
+ * ytu.core.channelCacheTtlSeconds, which bounds how long a write made by another process goes
+ * unseen. writes made by this one, the {@link BulkIngestDao} channel info writes, invalidate the
+ * channels they touch once their transaction commits. a load that was running when an invalidation
+ * came in isn't cached, so it can't put back what was just invalidated.
+ *
+ * the cached entities are shared. a caller that changes one has to write the change through the
+ * {@link BulkIngestDao}, which drops it from the cache whether or not the write succeeds
+ */
+@Component
+public class ChannelInfoCache {
+
+    private static final Logger LOGGER = Logger.getLogger(ChannelInfoCache.class.getName());
+
+    @Autowired
+    private ChannelInfoRepository chandao;
+
+    @Autowired
+    private YTUProperties ytProperties;
+
+    @Autowired
+    private PipelineMetrics metrics;
+
+    /** channel id -> entry, in access order so the eldest entry is the least recently used */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(1024, 0.75f, true);
+
+    /** bumped by every invalidation; a load only caches what it read if this didn't move meanwhile */
+    private long invalidations;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private Counter evictions;
+    private Timer loads;
+
+    @PostConstruct
+    private void initialize() {
+        FunctionCounter.builder("ytu.channel.cache.requests", hits, AtomicLong::get).tag("result", "hit")
+            .register(metrics.getRegistry());
+        FunctionCounter.builder("ytu.channel.cache.requests", misses, AtomicLong::get).tag("result", "miss")
+            .register(metrics.getRegistry());
+        Gauge.builder("ytu.channel.cache.entries", this, ChannelInfoCache::size).register(metrics.getRegistry());
+        evictions = Counter.builder("ytu.channel.cache.evictions").register(metrics.getRegistry());
+        loads = Timer.builder("ytu.channel.cache.load")
+            .publishPercentileHistogram()
+            .register(metrics.getRegistry());
+    }
+
+    /**
+     * @return the channel info, from the cache if it's there and fresh
+     */
+    public Optional<ChannelInfo> get(String id) {
+        return Optional.ofNullable(getAll(Collections.singletonList(id)).get(id));
+    }
+
+    /**
+     * looks up every channel, loading the ones that aren't cached with one query per
+     * ytu.core.jdbcBatchSize ids
+     *
+     * @return channel id -> channel info for the channels that exist, in the order asked for
+     */
+    public Map<String, ChannelInfo> getAll(Collection<String> ids) {
+        Map<String, ChannelInfo> found = new LinkedHashMap<>();
+        List<String> missing = new ArrayList<>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            for (String id : new LinkedHashSet<>(ids)) {
+                ChannelInfo chan = fresh(id, now);
+                if (chan != null) found.put(id, chan);
+                else missing.add(id);
+            }
+        }
+        hits.addAndGet(found.size());
+        misses.addAndGet(missing.size());
+        if (missing.isEmpty()) return found;
+
+        Map<String, ChannelInfo> loaded = load(missing);
+        Map<String, ChannelInfo> ordered = new LinkedHashMap<>();
+        for (String id : new LinkedHashSet<>(ids)) {
+            ChannelInfo chan = found.containsKey(id) ? found.get(id) : loaded.get(id);
+            if (chan != null) ordered.put(id, chan);
+        }
+        return ordered;
+    }
+
+    /**
+     * loads whichever of the channels aren't cached, ahead of a stage that's about to look them up;
+     * doesn't count towards the hit ratio
+     *
+     * @return the number of channels loaded
+     */
+    public int warmUp(Collection<String> ids) {
+        List<String> missing = new ArrayList<>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            for (String id : new LinkedHashSet<>(ids)) {
+                if (fresh(id, now) == null) missing.add(id);
+            }
+        }
+        int loaded = missing.isEmpty() ? 0 : load(missing).size();
+        LOGGER.log(Level.INFO, "channel-cache | warmed up " + loaded + " of " + ids.size() + " channels, " +
+            size() + " cached");
+        return loaded;
+    }
+
+    /**
+     * drops the channels from the cache, and again once the current transaction (if there is one)
+     * commits or rolls back, so a lookup that reads the rows before the commit isn't kept
+     */
+    public void invalidateAfterCompletion(Collection<String> ids) {
+        if (ids.isEmpty()) return;
+        List<String> copy = new ArrayList<>(ids);
+        invalidate(copy);
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) return;
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                invalidate(copy);
+            }
+        });
+    }
+
+    public synchronized void invalidate(Collection<String> ids) {
+        invalidations++;
+        ids.forEach(entries::remove);
+    }
+
+    public synchronized void invalidateAll() {
+        invalidations++;
+        entries.clear();
+    }
+
+    public long getHits() { return hits.get(); }
+
+    public long getMisses() { return misses.get(); }
+
+    public double getHitRate() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0.0 : (double) hits.get() / total;
+    }
+
+    public synchronized int size() { return entries.size(); }
+
+    /**
+     * @return the cached channel info if it's younger than the ttl; an expired entry is dropped
+     */
+    private ChannelInfo fresh(String id, long now) {
+        Entry entry = entries.get(id);
+        if (entry == null) return null;
+        if (now - entry.loadedOn > TimeUnit.SECONDS.toMillis(ytProperties.getChannelCacheTtlSeconds())) {
+            entries.remove(id);
+            return null;
+        }
+        return entry.chan;
+    }
+
+    private Map<String, ChannelInfo> load(List<String> ids) {
+        long generation;
+        synchronized (this) {
+            generation = invalidations;
+        }
+        long loadedOn = System.currentTimeMillis();
+        Map<String, ChannelInfo> loaded = new HashMap<>();
+        int batchSize = ytProperties.getJdbcBatchSize();
+        for (int i = 0; i < ids.size(); i += batchSize) {
+            List<String> batch = ids.subList(i, Math.min(i + batchSize, ids.size()));
+            loads.record(() -> chandao.findAllById(batch).forEach(chan -> loaded.put(chan.getId(), chan)));
+        }
+
+        synchronized (this) {
+            if (generation != invalidations) return loaded;
+            for (ChannelInfo chan : loaded.values()) entries.put(chan.getId(), new Entry(chan, loadedOn));
+            evict();
+        }
+        return loaded;
+    }
+
+    private void evict() {
+        Iterator<String> eldest = entries.keySet().iterator();
+        while (eldest.hasNext() && entries.size() > ytProperties.getChannelCacheMaxEntries()) {
+            eldest.next();
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    private static final class Entry {
+        private final ChannelInfo chan;
+        private final long loadedOn;
+
+        Entry(ChannelInfo chan, long loadedOn) {
+            this.chan = chan;
+            this.loadedOn = loadedOn;
+        }
+    }
+}
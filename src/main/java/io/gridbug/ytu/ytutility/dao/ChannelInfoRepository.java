@@ -1,7 +1,21 @@
 package io.gridbug.ytu.ytutility.dao;
 
+import java.sql.Timestamp;
+import java.util.List;
+
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
 
 import io.gridbug.ytu.ytutility.model.ChannelInfo;
 
-public interface ChannelInfoRepository extends CrudRepository<ChannelInfo, String> {}
+public interface ChannelInfoRepository extends CrudRepository<ChannelInfo, String> {
+
+    /**
+     * the ids of channels whose uploads have never been checked or are due a check by now; a range
+     * scan on the next_video_check index plus the never-checked rows
+     */
+    @Query(value = "select c.id from channelinfos c where c.next_video_check is null or c.next_video_check <= :now",
+        nativeQuery = true)
+    List<String> findIdsDueForVideoCheck(@Param("now") Timestamp now);
+}
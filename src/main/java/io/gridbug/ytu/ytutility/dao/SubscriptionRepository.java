@@ -1,9 +1,16 @@
 package io.gridbug.ytu.ytutility.dao;
 
+import static org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE;
+
+import java.sql.Timestamp;
 import java.util.Optional;
 import java.util.stream.Stream;
 
+import javax.persistence.QueryHint;
+
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import org.springframework.data.repository.CrudRepository;
 
 import io.gridbug.ytu.ytutility.model.Subscription;
@@ -15,4 +22,21 @@ public interface SubscriptionRepository extends CrudRepository<Subscription, Lon
     @Query("select s from Subscription s")
     Stream<Subscription> findSubscriptions();
 
+    /**
+     * streams the channel id of every subscription that has never had a channel check, followed by
+     * those whose channel info was last checked before the threshold. the first half is an anti-join
+     * on channelinfos' primary key and the second a range scan on the last_check index, so the cost
+     * follows the number of channels due rather than the number of subscriptions. the fetch size
+     * hint makes the mysql driver stream rows instead of buffering the whole result; callers need
+     * an open transaction and must close the stream
+     */
+    @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "-2147483648"))
+    @Query(value = "select s.yt_id from subscriptions s " +
+            "where not exists (select 1 from channelinfos c where c.id = s.yt_id) " +
+            "union all " +
+            "select c.id from channelinfos c " +
+            "where c.last_check < :threshold and exists (select 1 from subscriptions s where s.yt_id = c.id)",
+        nativeQuery = true)
+    Stream<String> streamChannelIdsDueForCheck(@Param("threshold") Timestamp threshold);
+
 } 
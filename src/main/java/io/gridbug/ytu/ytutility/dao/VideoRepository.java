@@ -0,0 +1,8 @@
+package io.gridbug.ytu.ytutility.dao;
+
+import org.springframework.data.repository.CrudRepository;
+
+import io.gridbug.ytu.ytutility.model.Video;
+
+public interface VideoRepository extends CrudRepository<Video, String> {
+}
@@ -3,12 +3,15 @@ package io.gridbug.ytu.ytutility.model;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.Table;
 
 import org.joda.time.DateTime;
 
 @Entity
-@Table(name="channelinfos") 
+@Table(name="channelinfos", indexes = {
+    @Index(name="idx_channelinfos_last_check", columnList="last_check"),
+    @Index(name="idx_channelinfos_next_video_check", columnList="next_video_check") })
 public class ChannelInfo {
 
     /**
@@ -67,8 +70,31 @@ public class ChannelInfo {
     /** 
      * last time this channel was checked via api
      */
+    @Column(name="last_check")
     private DateTime lastCheck;
 
+    /**
+     * high-water mark for the uploads scraper: id of the newest upload seen so far
+     */
+    private String newestVideoId;
+
+    /**
+     * high-water mark for the uploads scraper: snippet.publishedAt of the newest upload seen so far
+     */
+    private DateTime newestVideoPublishedAt;
+
+    /**
+     * average minutes between the channel's uploads, as seen by the uploads scraper; null until it
+     * has seen two
+     */
+    private Long uploadIntervalMinutes;
+
+    /**
+     * when the channel's uploads are next due a check; null for a channel that's never been checked
+     */
+    @Column(name="next_video_check")
+    private DateTime nextVideoCheck;
+
     public String getId() { return id; }
     public void setId(String id) { this.id = id; }
 
@@ -102,4 +128,16 @@ public class ChannelInfo {
     public DateTime getLastCheck() { return lastCheck; }
     public void setLastCheck(DateTime lastCheck) { this.lastCheck = lastCheck; }
 
+    public String getNewestVideoId() { return newestVideoId; }
+    public void setNewestVideoId(String newestVideoId) { this.newestVideoId = newestVideoId; }
+
+    public DateTime getNewestVideoPublishedAt() { return newestVideoPublishedAt; }
+    public void setNewestVideoPublishedAt(DateTime newestVideoPublishedAt) { this.newestVideoPublishedAt = newestVideoPublishedAt; }
+
+    public Long getUploadIntervalMinutes() { return uploadIntervalMinutes; }
+    public void setUploadIntervalMinutes(Long uploadIntervalMinutes) { this.uploadIntervalMinutes = uploadIntervalMinutes; }
+
+    public DateTime getNextVideoCheck() { return nextVideoCheck; }
+    public void setNextVideoCheck(DateTime nextVideoCheck) { this.nextVideoCheck = nextVideoCheck; }
+
 }
\ No newline at end of file
@@ -5,12 +5,13 @@ import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.Table;
 
 import org.joda.time.DateTime;
 
 @Entity
-@Table(name="subscriptions") 
+@Table(name="subscriptions", indexes = @Index(name="idx_subscriptions_yt_id", columnList="yt_id"))
 public class Subscription {
 
     @Id
@@ -31,6 +32,7 @@ public class Subscription {
     /**
      * api field: snippet.resourceid.channelid
      */
+    @Column(name="yt_id")
     private String ytId;
 
     /**
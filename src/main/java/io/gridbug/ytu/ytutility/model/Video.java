@@ -0,0 +1,142 @@
+package io.gridbug.ytu.ytutility.model;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+
+import org.joda.time.DateTime;
+
+@Entity
+@Table(name="videos", indexes = {
+    @Index(name="idx_videos_channel_published", columnList="channel_id,published_at"),
+    @Index(name="idx_videos_published_at", columnList="published_at"),
+    @Index(name="idx_videos_download_state", columnList="download_state")
+})
+public class Video {
+
+    public enum DownloadState { NONE, QUEUED, DOWNLOADED }
+
+    /**
+     * api field: snippet.resourceId.videoId (playlist item) / id (video)
+     */
+    @Id
+    private String id;
+
+    /**
+     * api field: snippet.channelId
+     */
+    @Column(name="channel_id")
+    private String channelId;
+
+    /**
+     * api field: snippet.title
+     */
+    private String title;
+
+    /**
+     * api field: snippet.description
+     */
+    @Column(name="description", length=10240)
+    private String description;
+
+    /**
+     * api field: contentDetails.videoPublishedAt (playlist item) / snippet.publishedAt (video)
+     */
+    @Column(name="published_at")
+    private DateTime publishedAt;
+
+    /**
+     * api field: snippet.thumbnails.[high,medium,default]
+     */
+    @Column(name="thumbnail_url", length=2048)
+    private String thumbnailUrl;
+
+    /**
+     * api field: contentDetails.duration, as an iso 8601 duration
+     */
+    private String duration;
+
+    /**
+     * api field: status.privacyStatus
+     */
+    private String privacyStatus;
+
+    /**
+     * api field: statistics.viewCount
+     */
+    private long viewCount;
+
+    /**
+     * api field: statistics.likeCount
+     */
+    private long likeCount;
+
+    /**
+     * api field: statistics.commentCount
+     */
+    private long commentCount;
+
+    /**
+     * not from api; when the details were last fetched, null until they have been
+     */
+    private DateTime detailsFetchedOn;
+
+    /**
+     * not from api; when the row was last written, by any of the bulk writes
+     */
+    @Column(name="modified_on")
+    private DateTime modifiedOn;
+
+    /**
+     * not from api; how far the video has got through the download stage
+     */
+    @Enumerated(EnumType.STRING)
+    @Column(name="download_state", length=16)
+    private DownloadState downloadState = DownloadState.NONE;
+
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+
+    public String getChannelId() { return channelId; }
+    public void setChannelId(String channelId) { this.channelId = channelId; }
+
+    public String getTitle() { return title; }
+    public void setTitle(String title) { this.title = title; }
+
+    public String getDescription() { return description; }
+    public void setDescription(String description) { this.description = description; }
+
+    public DateTime getPublishedAt() { return publishedAt; }
+    public void setPublishedAt(DateTime publishedAt) { this.publishedAt = publishedAt; }
+
+    public String getThumbnailUrl() { return thumbnailUrl; }
+    public void setThumbnailUrl(String thumbnailUrl) { this.thumbnailUrl = thumbnailUrl; }
+
+    public String getDuration() { return duration; }
+    public void setDuration(String duration) { this.duration = duration; }
+
+    public String getPrivacyStatus() { return privacyStatus; }
+    public void setPrivacyStatus(String privacyStatus) { this.privacyStatus = privacyStatus; }
+
+    public long getViewCount() { return viewCount; }
+    public void setViewCount(long viewCount) { this.viewCount = viewCount; }
+
+    public long getLikeCount() { return likeCount; }
+    public void setLikeCount(long likeCount) { this.likeCount = likeCount; }
+
+    public long getCommentCount() { return commentCount; }
+    public void setCommentCount(long commentCount) { this.commentCount = commentCount; }
+
+    public DateTime getDetailsFetchedOn() { return detailsFetchedOn; }
+    public void setDetailsFetchedOn(DateTime detailsFetchedOn) { this.detailsFetchedOn = detailsFetchedOn; }
+
+    public DateTime getModifiedOn() { return modifiedOn; }
+    public void setModifiedOn(DateTime modifiedOn) { this.modifiedOn = modifiedOn; }
+
+    public DownloadState getDownloadState() { return downloadState; }
+    public void setDownloadState(DownloadState downloadState) { this.downloadState = downloadState; }
+}
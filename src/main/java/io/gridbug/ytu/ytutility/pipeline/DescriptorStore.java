@@ -0,0 +1,359 @@
+package io.gridbug.ytu.ytutility.pipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.joda.time.DateTime;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import io.gridbug.ytu.ytutility.configuration.PipelineMetrics;
+import io.gridbug.ytu.ytutility.configuration.YTUProperties;
+import io.gridbug.ytu.ytutility.model.ChannelCheck;
+import io.gridbug.ytu.ytutility.model.VideoForChannelCheck;
+import io.gridbug.ytu.ytutility.storage.ActionHistory;
+import io.gridbug.ytu.ytutility.storage.DownloadArchive;
+import io.gridbug.ytu.ytutility.storage.JsonCodec;
+import io.gridbug.ytu.ytutility.storage.WorkQueue;
+import io.micrometer.core.instrument.Gauge;
+
+/**
+ * reads and writes the json descriptors and api records that the pipeline stages use to hand
+ * work to each other on disk. channel-check and video-for-channel-check descriptors go through
+ * a durable {@link WorkQueue} kept in their directory, completed actions go to the
+ * {@link ActionHistory}, and video fetch descriptors are still one file each
+ */
+@Component
+public class DescriptorStore {
+
+    private static final Logger LOGGER = Logger.getLogger(DescriptorStore.class.getName());
+
+    public static final String CHANNEL_CHECK_QUEUE = "channel-check";
+
+    public static final String VIDEO_FOR_CHANNEL_CHECK_QUEUE = "video-for-channel-check";
+
+    private WorkQueue channelCheckQueue;
+
+    private WorkQueue videoForChannelCheckQueue;
+
+    /** held for the whole of a drain, so a cron run and a watcher-triggered run take turns */
+    private final Object channelCheckDrain = new Object();
+
+    private final Object videoForChannelCheckDrain = new Object();
+
+    @Autowired
+    private YTUProperties ytProperties;
+
+    @Autowired
+    private JsonCodec codec;
+
+    @Autowired
+    private PipelineMetrics metrics;
+
+    @Autowired
+    private ActionHistory history;
+
+    @Autowired
+    private DownloadArchive archive;
+
+    @PostConstruct
+    private void initialize() throws IOException {
+        channelCheckQueue = openQueue(ytProperties.getChannelCheckPath(), ChannelCheck.class);
+        videoForChannelCheckQueue = openQueue(ytProperties.getVideoForChannelCheckPath(), VideoForChannelCheck.class);
+        registerBacklog(CHANNEL_CHECK_QUEUE, channelCheckQueue);
+        registerBacklog(VIDEO_FOR_CHANNEL_CHECK_QUEUE, videoForChannelCheckQueue);
+        migrateCompletedActions();
+    }
+
+    @PreDestroy
+    private void shutdown() throws IOException {
+        channelCheckQueue.close();
+        videoForChannelCheckQueue.close();
+    }
+
+    /**
+     * @return the ids of the channels with a channel-check descriptor pending. reads the whole
+     * queue, so a staging run calls it once and passes the set to each of its writes
+     */
+    public Set<String> pendingChannelChecks() throws IOException {
+        Set<String> pending = new HashSet<>();
+        forEachPending(channelCheckQueue, ChannelCheck.class, check -> pending.add(check.getId()));
+        return pending;
+    }
+
+    /**
+     * queues a channel-check descriptor for each channel that isn't in the pending set, and adds the
+     * ones it queues to the set. a channel drained since the set was read is taken to be pending
+     * still; it was checked moments ago
+     */
+    public void writeChannelCheckDescriptors(Collection<String> channelIds, Set<String> pending) throws IOException {
+        List<ChannelCheck> checks = new ArrayList<>();
+        for (String channelId : channelIds) {
+            if (!pending.add(channelId)) continue;
+            ChannelCheck check = new ChannelCheck();
+            check.setId(channelId);
+            check.setRequestedOn(DateTime.now());
+            checks.add(check);
+        }
+        enqueue(channelCheckQueue, checks);
+    }
+
+    /**
+     * hands the pending channel-check descriptors to the handler in batches; see {@link #drain}
+     */
+    public int drainChannelChecks(int batchSize, Function<List<ChannelCheck>, List<ChannelCheck>> handler) throws IOException {
+        synchronized (channelCheckDrain) {
+            return drain(channelCheckQueue, ChannelCheck.class, batchSize, handler);
+        }
+    }
+
+    /**
+     * records completed channel checks in the action history, syncing once for the lot
+     */
+    public void writeCompletedChannelCheckDescriptors(List<ChannelCheck> checks) throws IOException {
+        history.append(checks.stream().map(DescriptorStore::toRecord).collect(Collectors.toList()));
+    }
+
+    /**
+     * writes a fetch descriptor for the video unless it's already in the download archive
+     *
+     * @return false if the video has already been downloaded and no descriptor was written
+     */
+    public boolean writeVideoFetchDescriptor(String videoId) throws IOException {
+        if (archive.contains(videoId)) return false;
+        ChannelCheck check = new ChannelCheck();
+        check.setId(videoId);
+        check.setRequestedOn(DateTime.now());
+        // written under a temporary name and moved into place, so whoever lists or watches the
+        // directory never sees half a descriptor
+        Path descriptor = Paths.get(ytProperties.getVideoFetchPath() + File.separator + videoId + ".json");
+        Path partial = Paths.get(descriptor + ".tmp");
+        codec.write(check, partial);
+        Files.move(partial, descriptor, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return true;
+    }
+
+    /**
+     * @return the ids of the channels with a video-for-channel-check descriptor pending; as with
+     * {@link #pendingChannelChecks}, read once per staging run
+     */
+    public Set<String> pendingVideoForChannelChecks() throws IOException {
+        Set<String> pending = new HashSet<>();
+        forEachPending(videoForChannelCheckQueue, VideoForChannelCheck.class, check -> pending.add(check.getChannelId()));
+        return pending;
+    }
+
+    /**
+     * queues a video-for-channel-check descriptor for each channel that isn't in the pending set, and
+     * adds the ones it queues to the set
+     */
+    public void writeVideoForChannelCheckDescriptors(Collection<String> channelIds, Set<String> pending)
+            throws IOException {
+        List<VideoForChannelCheck> checks = new ArrayList<>();
+        for (String channelId : channelIds) {
+            if (!pending.add(channelId)) continue;
+            VideoForChannelCheck check = new VideoForChannelCheck();
+            check.setChannelId(channelId);
+            check.setRequestedOn(DateTime.now());
+            checks.add(check);
+        }
+        enqueue(videoForChannelCheckQueue, checks);
+    }
+
+    /**
+     * hands the pending video-for-channel-check descriptors to the handler in batches; see {@link #drain}
+     */
+    public int drainVideoForChannelChecks(int batchSize,
+            Function<List<VideoForChannelCheck>, List<VideoForChannelCheck>> handler) throws IOException {
+        synchronized (videoForChannelCheckDrain) {
+            return drain(videoForChannelCheckQueue, VideoForChannelCheck.class, batchSize, handler);
+        }
+    }
+
+    /**
+     * records completed video-for-channel-checks in the action history, syncing once for the lot
+     */
+    public void writeCompletedVideoForChannelCheckDescriptors(List<VideoForChannelCheck> checks) throws IOException {
+        history.append(checks.stream().map(DescriptorStore::toRecord).collect(Collectors.toList()));
+    }
+
+    /**
+     * @return the offset just past the last descriptor on the named queue
+     */
+    public long endOffset(String queueName) throws IOException {
+        return queue(queueName).endOffset();
+    }
+
+    /**
+     * @return the offset of the first descriptor on the named queue that hasn't been drained
+     */
+    public long committedOffset(String queueName) {
+        return queue(queueName).committedOffset();
+    }
+
+    /**
+     * @return the directory the named queue keeps its segments in
+     */
+    public Path queueDirectory(String queueName) {
+        queue(queueName);
+        return Paths.get(CHANNEL_CHECK_QUEUE.equals(queueName) ? ytProperties.getChannelCheckPath() :
+            ytProperties.getVideoForChannelCheckPath());
+    }
+
+    private WorkQueue queue(String queueName) {
+        if (CHANNEL_CHECK_QUEUE.equals(queueName)) return channelCheckQueue;
+        if (VIDEO_FOR_CHANNEL_CHECK_QUEUE.equals(queueName)) return videoForChannelCheckQueue;
+        throw new IllegalArgumentException("no descriptor queue named " + queueName);
+    }
+
+    /**
+     * passes every descriptor that was pending when the drain started to the handler, batchSize at a
+     * time and in the order they were queued. the handler returns the descriptors it wants retried;
+     * those go back on the end of the queue for the next drain, and the batch is then committed. a
+     * crash before the commit replays the batch, so handlers must be safe to run twice on the same
+     * descriptor (all of ours overwrite rather than append)
+     *
+     * @return the number of descriptors handled
+     */
+    private <T> int drain(WorkQueue queue, Class<T> type, int batchSize, Function<List<T>, List<T>> handler) throws IOException {
+        long end = queue.endOffset();
+        int handled = 0;
+        while (true) {
+            List<WorkQueue.Entry> entries = queue.read(queue.committedOffset(), batchSize, end);
+            if (entries.isEmpty()) break;
+
+            List<T> batch = new ArrayList<>();
+            for (WorkQueue.Entry entry : entries) {
+                try {
+                    batch.add(codec.read(entry.getPayload(), type));
+                }
+                catch (IOException ioe) {
+                    LOGGER.log(Level.WARNING, "descriptor-store | dropping unreadable descriptor at offset " + entry.getOffset(), ioe);
+                }
+            }
+
+            enqueue(queue, handler.apply(batch));
+            queue.commit(entries.get(entries.size() - 1).getNextOffset());
+            handled += batch.size();
+        }
+        return handled;
+    }
+
+    private <T> void forEachPending(WorkQueue queue, Class<T> type, Consumer<T> action) throws IOException {
+        long end = queue.endOffset();
+        long offset = queue.committedOffset();
+        while (offset < end) {
+            List<WorkQueue.Entry> entries = queue.read(offset, 1024, end);
+            if (entries.isEmpty()) break;
+            for (WorkQueue.Entry entry : entries) {
+                action.accept(codec.read(entry.getPayload(), type));
+            }
+            offset = entries.get(entries.size() - 1).getNextOffset();
+        }
+    }
+
+    private void enqueue(WorkQueue queue, List<?> descriptors) throws IOException {
+        if (descriptors == null || descriptors.isEmpty()) return;
+        List<byte[]> records = new ArrayList<>();
+        for (Object descriptor : descriptors) records.add(codec.write(descriptor));
+        queue.enqueue(records);
+    }
+
+    private static ActionHistory.Record toRecord(ChannelCheck check) {
+        return new ActionHistory.Record(ActionHistory.Record.CHANNEL_CHECK, check.getId(), check.getRequestedOn(),
+            check.getPerformedOn(), check.getOutcome(), check.getOutcomeMessage());
+    }
+
+    private static ActionHistory.Record toRecord(VideoForChannelCheck check) {
+        return new ActionHistory.Record(ActionHistory.Record.VIDEO_FOR_CHANNEL_CHECK, check.getChannelId(),
+            check.getRequestedOn(), check.getPerformedOn(), check.getOutcome(), check.getOutcomeMessage());
+    }
+
+    /**
+     * moves the completed actions left as one json file each by the previous layout into the action
+     * history
+     */
+    private void migrateCompletedActions() throws IOException {
+        Path dir = Paths.get(ytProperties.getCompletedActionsPath());
+        if (!Files.isDirectory(dir)) return;
+        List<Path> legacy;
+        try (Stream<Path> files = Files.list(dir)) {
+            legacy = files.filter(Files::isRegularFile)
+                .filter(file -> file.getFileName().toString().endsWith(".json"))
+                .collect(Collectors.toList());
+        }
+        if (legacy.isEmpty()) return;
+
+        List<ActionHistory.Record> records = new ArrayList<>();
+        for (Path file : legacy) {
+            String name = file.getFileName().toString();
+            if (name.startsWith(ActionHistory.Record.VIDEO_FOR_CHANNEL_CHECK + "-")) {
+                records.add(toRecord(readDescriptor(file, VideoForChannelCheck.class)));
+            }
+            else if (name.startsWith(ActionHistory.Record.CHANNEL_CHECK + "-")) {
+                records.add(toRecord(readDescriptor(file, ChannelCheck.class)));
+            }
+        }
+        history.append(records);
+        for (Path file : legacy) Files.delete(file);
+        LOGGER.log(Level.INFO, "descriptor-store | moved " + records.size() + " completed actions into the action history");
+    }
+
+    private void registerBacklog(String queueName, WorkQueue queue) {
+        Gauge.builder("ytu.descriptor.backlog", queue, WorkQueue::pending)
+            .tag("queue", queueName)
+            .register(metrics.getRegistry());
+    }
+
+    /**
+     * opens the queue for a descriptor directory, moving any descriptors left there as individual
+     * json files by the previous layout onto the queue
+     */
+    private WorkQueue openQueue(String path, Class<?> type) throws IOException {
+        WorkQueue queue = new WorkQueue(Paths.get(path), ytProperties.getQueueSegmentBytes());
+        List<Path> legacy;
+        try (Stream<Path> files = Files.list(Paths.get(path))) {
+            legacy = files.filter(Files::isRegularFile)
+                .filter(file -> file.getFileName().toString().endsWith(".json"))
+                .collect(Collectors.toList());
+        }
+        if (legacy.isEmpty()) return queue;
+
+        List<Object> descriptors = new ArrayList<>();
+        for (Path file : legacy) descriptors.add(readDescriptor(file, type));
+        enqueue(queue, descriptors);
+        for (Path file : legacy) Files.delete(file);
+        LOGGER.log(Level.INFO, "descriptor-store | moved " + legacy.size() + " descriptors from " + path + " onto its queue");
+        return queue;
+    }
+
+    public <T> T readDescriptor(Path path, Class<T> type) throws IOException {
+        return codec.read(path, type);
+    }
+
+    public void writeJsonDescriptor(Object descriptor, String filename) throws IOException {
+        codec.write(descriptor, Paths.get(filename));
+    }
+
+    public void writeJsonGObject(Object googleObject, String filename) throws IOException {
+        codec.writeApiObject(googleObject, Paths.get(filename));
+    }
+}
@@ -0,0 +1,301 @@
+package io.gridbug.ytu.ytutility.pipeline;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Component;
+
+import io.gridbug.ytu.ytutility.configuration.PipelineMetrics;
+import io.gridbug.ytu.ytutility.configuration.YTUProperties;
+import io.gridbug.ytu.ytutility.storage.WorkQueue;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+
+/**
+ * picks descriptors up as they're staged instead of on the next cron tick, for when the app runs
+ * as a service with ytu.core.descriptorWatch on. a WatchService on the descriptor directories
+ * reports new files as they're written:
+ *
+ * a new video fetch descriptor goes onto a bounded queue of ytu.core.watchQueueCapacity and from
+ * there to the download engine, which queues up to ytu.core.downloadQueueCapacity of them and starts
+ * them in priority order. if the bounded queue is full the event is dropped and the reconciliation
+ * scan picks the file up later.
+ *
+ * channel-check and video-for-channel-check descriptors are records in a {@link WorkQueue} rather
+ * than files, so a change in either directory schedules a run of the stage that drains it,
+ * ytu.core.watchDebounceSeconds later so a burst of staging becomes one run. the stage only runs if
+ * something was queued after its last run finished; the retries a run puts back on its own queue
+ * wait for the crons, as before.
+ *
+ * watch events can be lost (the event queue overflows, or the platform drops them), so every
+ * ytu.core.watchReconcileSeconds the directories are checked the same way an event would check
+ * them. a fetch descriptor whose download failed is left alone by the scan for
+ * ytu.core.watchRetryMinutes, so a video that won't download isn't retried on every scan. idle, the
+ * watcher costs two parked threads and one directory listing per scan
+ */
+@Component
+public class DescriptorWatcher {
+
+    private static final Logger LOGGER = Logger.getLogger(DescriptorWatcher.class.getName());
+
+    private static final String STAGE = "descriptor-watch";
+
+    private static final String VIDEO_FETCH = "video-fetch";
+
+    @Autowired
+    private YTUProperties ytProperties;
+
+    @Autowired
+    private DescriptorStore store;
+
+    @Autowired
+    private DownloadEngine downloadEngine;
+
+    @Autowired
+    private PipelineMetrics metrics;
+
+    @Autowired
+    private TaskScheduler taskScheduler;
+
+    /** queue name -> the stage that drains it */
+    private final Map<String, PipelineMetrics.StageBody> stages = new ConcurrentHashMap<>();
+
+    /** queue name -> the queue's end offset when its last watcher-triggered run finished */
+    private final Map<String, Long> handledThrough = new ConcurrentHashMap<>();
+
+    /** queue name -> its pending or running stage trigger */
+    private final Map<String, ScheduledFuture<?>> triggers = new ConcurrentHashMap<>();
+
+    /** fetch descriptors on the bounded queue, so the same file isn't on it twice */
+    private final Set<Path> waiting = ConcurrentHashMap.newKeySet();
+
+    /** fetch descriptor -> when the watcher last handed it to the download engine */
+    private final Map<Path, Long> attempted = new ConcurrentHashMap<>();
+
+    /** watch key -> the queue name, or video-fetch, of the directory it watches */
+    private final Map<WatchKey, String> watched = new ConcurrentHashMap<>();
+
+    private BlockingQueue<Path> fetchQueue;
+    private Semaphore downloadSlots;
+    private WatchService watchService;
+    private Thread watchThread;
+    private Thread dispatchThread;
+    private ScheduledFuture<?> reconciliation;
+
+    /**
+     * registers the stage that drains a descriptor queue; once started, changes to the queue's
+     * directory trigger it
+     */
+    public void onQueued(String queueName, PipelineMetrics.StageBody stage) {
+        stages.put(queueName, stage);
+    }
+
+    /**
+     * starts watching the video fetch directory and the directory of every queue with a stage
+     * registered. descriptors that were already staged are picked up by the first reconciliation
+     * scan, a debounce interval from now
+     */
+    public synchronized void start() throws IOException {
+        if (watchService != null) return;
+        fetchQueue = new ArrayBlockingQueue<>(ytProperties.getWatchQueueCapacity());
+        downloadSlots = new Semaphore(ytProperties.getDownloadQueueCapacity());
+        watchService = FileSystems.getDefault().newWatchService();
+
+        register(Paths.get(ytProperties.getVideoFetchPath()), VIDEO_FETCH, StandardWatchEventKinds.ENTRY_CREATE);
+        for (String queue : stages.keySet()) {
+            handledThrough.put(queue, store.committedOffset(queue));
+            register(store.queueDirectory(queue), queue, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+        Gauge.builder("ytu.watch.queued", fetchQueue, BlockingQueue::size)
+            .register(metrics.getRegistry());
+
+        watchThread = daemonThread(this::watch, "descriptor-watch");
+        dispatchThread = daemonThread(this::dispatch, "descriptor-watch-dispatch");
+        watchThread.start();
+        dispatchThread.start();
+
+        long debounce = TimeUnit.SECONDS.toMillis(ytProperties.getWatchDebounceSeconds());
+        reconciliation = taskScheduler.scheduleWithFixedDelay(this::reconcile, new Date(System.currentTimeMillis() + debounce),
+            TimeUnit.SECONDS.toMillis(ytProperties.getWatchReconcileSeconds()));
+        LOGGER.log(Level.INFO, STAGE + " | watching " + watched.size() + " descriptor directories");
+    }
+
+    @PreDestroy
+    private synchronized void shutdown() throws IOException {
+        if (watchService == null) return;
+        reconciliation.cancel(false);
+        watchThread.interrupt();
+        dispatchThread.interrupt();
+        watchService.close();
+    }
+
+    private void register(Path dir, String name, WatchEvent.Kind<?>... kinds) throws IOException {
+        watched.put(dir.register(watchService, kinds), name);
+    }
+
+    private void watch() {
+        while (!Thread.currentThread().isInterrupted()) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            }
+            catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            String name = watched.get(key);
+            if (name == null) continue;
+
+            boolean changed = false;
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    LOGGER.log(Level.INFO, STAGE + " | " + name + " | events lost, reconciling now");
+                    taskScheduler.schedule(this::reconcile, new Date());
+                    continue;
+                }
+                Counter.builder("ytu.watch.events").tag("dir", name).register(metrics.getRegistry()).increment();
+                if (VIDEO_FETCH.equals(name)) offer(((Path) key.watchable()).resolve((Path) event.context()));
+                else changed = true;
+            }
+            if (changed) trigger(name);
+            if (!key.reset()) {
+                LOGGER.log(Level.WARNING, STAGE + " | " + key.watchable() + " is no longer watched");
+                watched.remove(key);
+            }
+        }
+    }
+
+    /**
+     * puts a fetch descriptor on the bounded queue unless it's already there; a full queue drops it
+     * for the reconciliation scan to find
+     */
+    private void offer(Path descriptor) {
+        if (!descriptor.getFileName().toString().endsWith(".json")) return;
+        if (!waiting.add(descriptor)) return;
+        if (!fetchQueue.offer(descriptor)) {
+            waiting.remove(descriptor);
+            Counter.builder("ytu.watch.dropped").register(metrics.getRegistry()).increment();
+        }
+    }
+
+    /**
+     * hands queued fetch descriptors to the download engine, blocking while all the slots are taken
+     */
+    private void dispatch() {
+        try {
+            while (true) {
+                Path descriptor = fetchQueue.take();
+                downloadSlots.acquire();
+                waiting.remove(descriptor);
+                if (!Files.exists(descriptor)) {
+                    // a pipeline run got to it first
+                    downloadSlots.release();
+                    continue;
+                }
+                attempted.put(descriptor, System.currentTimeMillis());
+                downloadEngine.submit(descriptor).whenComplete((outcome, error) -> {
+                    downloadSlots.release();
+                    boolean downloaded = Boolean.TRUE.equals(outcome);
+                    if (downloaded) attempted.remove(descriptor);
+                    metrics.recordItems("fetch-videos", downloaded ? 1 : 0, downloaded ? 0 : 1);
+                });
+            }
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * schedules a run of the queue's stage a debounce interval from now, unless one is already
+     * scheduled or running
+     */
+    private void trigger(String queue) {
+        long at = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ytProperties.getWatchDebounceSeconds());
+        triggers.compute(queue, (name, pending) -> pending != null && !pending.isDone() ? pending :
+            taskScheduler.schedule(() -> runIfQueued(name), new Date(at)));
+    }
+
+    /**
+     * runs the queue's stage if anything was queued since its last watcher-triggered run finished.
+     * whatever the run leaves on the queue (its retries, and anything staged while it ran) is
+     * counted as handled, so a failing descriptor doesn't keep the stage running
+     */
+    private void runIfQueued(String queue) {
+        try {
+            if (store.endOffset(queue) <= handledThrough.get(queue)) return;
+            LOGGER.log(Level.INFO, STAGE + " | " + queue + " | new descriptors queued, running its stage");
+            try {
+                stages.get(queue).run();
+            }
+            finally {
+                handledThrough.put(queue, store.endOffset(queue));
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, STAGE + " | " + queue + " | stage run failed; the cron will pick the queue up", e);
+        }
+    }
+
+    /**
+     * does what the watch events would have done, for anything they missed
+     */
+    private void reconcile() {
+        stages.keySet().forEach(this::trigger);
+
+        long retryBefore = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(ytProperties.getWatchRetryMinutes());
+        List<Path> descriptors;
+        try (Stream<Path> files = Files.list(Paths.get(ytProperties.getVideoFetchPath()))) {
+            descriptors = files.filter(path -> path.getFileName().toString().endsWith(".json"))
+                .collect(Collectors.toList());
+        }
+        catch (IOException ioe) {
+            LOGGER.log(Level.WARNING, STAGE + " | unable to list the video fetch descriptors", ioe);
+            return;
+        }
+        attempted.keySet().retainAll(new HashSet<>(descriptors));
+
+        List<Path> missed = new ArrayList<>();
+        for (Path descriptor : descriptors) {
+            if (waiting.contains(descriptor) || downloadEngine.isQueued(descriptor)) continue;
+            if (attempted.getOrDefault(descriptor, 0L) > retryBefore) continue;
+            missed.add(descriptor);
+        }
+        missed.forEach(this::offer);
+        if (!missed.isEmpty()) LOGGER.log(Level.INFO, STAGE + " | reconciliation queued " + missed.size() + " fetch descriptors");
+    }
+
+    private static Thread daemonThread(Runnable body, String name) {
+        Thread thread = new Thread(body, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
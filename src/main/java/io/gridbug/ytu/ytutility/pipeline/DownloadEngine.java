@@ -0,0 +1,497 @@
+package io.gridbug.ytu.ytutility.pipeline;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.stereotype.Component;
+
+import io.gridbug.ytu.ytutility.configuration.PipelineMetrics;
+import io.gridbug.ytu.ytutility.configuration.YTUProperties;
+import io.gridbug.ytu.ytutility.dao.BulkIngestDao;
+import io.gridbug.ytu.ytutility.dao.ChannelInfoCache;
+import io.gridbug.ytu.ytutility.model.ChannelCheck;
+import io.gridbug.ytu.ytutility.model.ChannelInfo;
+import io.gridbug.ytu.ytutility.model.Video;
+import io.gridbug.ytu.ytutility.storage.ChannelSegmentStore;
+import io.gridbug.ytu.ytutility.storage.DownloadArchive;
+import io.gridbug.ytu.ytutility.storage.VideoStateIndex;
+import io.micrometer.core.instrument.Gauge;
+
+/**
+ * runs youtube-dl for video fetch descriptors on a fixed pool of ytu.core.downloadWorkers threads.
+ * queued downloads start newest first, weighted by channel size, with no more than
+ * ytu.core.downloadsPerChannel from one channel at once (see {@link DownloadScheduler}), and
+ * ytu.core.downloadRateLimitKilobytes caps the bandwidth of all the workers together. the cap is
+ * split evenly between the workers when each download starts, since youtube-dl's rate limit can't be
+ * changed once it's running, so a download running on its own gets only its worker's share.
+ *
+ * each download's stdout and stderr are drained on their own threads so a chatty process can't
+ * block on a full pipe, and a download that runs past ytu.core.downloadTimeoutMinutes is killed
+ * along with the processes it started (ffmpeg and friends). a descriptor is only deleted when
+ * youtube-dl exits with 0; anything else leaves it in place for the next run. the same descriptor
+ * is never downloading twice at once, whichever of the pipeline, the cli and the descriptor watcher
+ * hands it over.
+ *
+ * every finished download goes into the {@link DownloadArchive}. a descriptor for a video that's
+ * already archived, or already in the videos directory, is deleted without starting youtube-dl.
+ */
+@Component
+public class DownloadEngine {
+
+    private static final Logger LOGGER = Logger.getLogger(DownloadEngine.class.getName());
+
+    private static final String OUTPUT_TEMPLATE = "%(id)s-%(title)s.%(ext)s";
+
+    @Autowired
+    private YTUProperties ytProperties;
+
+    @Autowired
+    private DescriptorStore store;
+
+    @Autowired
+    private VideoStateIndex videoIndex;
+
+    @Autowired
+    private DownloadArchive archive;
+
+    @Autowired
+    private ChannelSegmentStore channelData;
+
+    @Autowired
+    private ChannelInfoCache channelCache;
+
+    @Autowired
+    private BulkIngestDao bulkdao;
+
+    @Autowired
+    private PipelineMetrics metrics;
+
+    private DownloadScheduler workers;
+
+    private ExecutorService drainers;
+
+    /** descriptor -> its download, from being queued until it finishes */
+    private final ConcurrentMap<Path, CompletableFuture<Boolean>> inFlight = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void initialize() {
+        workers = new DownloadScheduler(ytProperties.getDownloadWorkers(), ytProperties.getDownloadsPerChannel(),
+            namedThreads("youtube-dl-worker"));
+        drainers = Executors.newCachedThreadPool(namedThreads("youtube-dl-output"));
+        Gauge.builder("ytu.descriptor.backlog", videoIndex,
+                index -> index.count(VideoStateIndex.DOWNLOAD_QUEUED, VideoStateIndex.DOWNLOADED))
+            .tag("queue", "video-fetch")
+            .register(metrics.getRegistry());
+        Gauge.builder("ytu.download.queued", workers, DownloadScheduler::queuedCount)
+            .register(metrics.getRegistry());
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        workers.shutdownNow();
+        drainers.shutdownNow();
+    }
+
+    /**
+     * downloads every descriptor on the worker pool and waits for them all to finish
+     *
+     * @return one outcome per descriptor, in the order given
+     */
+    public List<Boolean> downloadAll(List<Path> descriptors) {
+        ensureExecutable();
+
+        long start = System.nanoTime();
+        List<Future<Boolean>> pending = new ArrayList<>();
+        for (Path descriptor : descriptors) pending.add(submit(descriptor));
+
+        List<Boolean> outcomes = new ArrayList<>();
+        for (Future<Boolean> download : pending) {
+            try {
+                outcomes.add(download.get());
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                outcomes.add(false);
+            }
+            catch (ExecutionException ee) {
+                LOGGER.log(Level.WARNING, "download-engine | download failed", ee.getCause());
+                outcomes.add(false);
+            }
+        }
+
+        double minutes = Math.max(System.nanoTime() - start, 1) / 6e10;
+        long completed = outcomes.stream().filter(Boolean::booleanValue).count();
+        LOGGER.log(Level.INFO, String.format("download-engine | %d of %d downloads completed in %.1f minutes "
+            + "on %d workers; %.2f downloads/minute", completed, outcomes.size(), minutes,
+            ytProperties.getDownloadWorkers(), completed / minutes));
+        return outcomes;
+    }
+
+    /**
+     * queues one descriptor on the worker pool, ranked as {@link #rankOf} says. a descriptor that's
+     * already queued or downloading isn't queued again; the caller gets the download that's already
+     * under way
+     *
+     * @return the download's outcome once it finishes; false if it failed for any reason
+     */
+    public CompletableFuture<Boolean> submit(Path descriptor) {
+        Path key = descriptor.toAbsolutePath().normalize();
+        CompletableFuture<Boolean> queued = new CompletableFuture<>();
+        CompletableFuture<Boolean> existing = inFlight.putIfAbsent(key, queued);
+        if (existing != null) return existing;
+        String videoId = videoIdOf(descriptor);
+        String channelId = videoIndex.channelOf(videoId);
+        try {
+            workers.schedule(channelId, rankOf(descriptor, videoId, channelId), () -> {
+                boolean outcome = false;
+                try {
+                    outcome = download(descriptor);
+                }
+                catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+                catch (IOException | RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "download-engine | download failed for " + descriptor, e);
+                }
+                finally {
+                    // out of the map before completing, so whoever reacts to the outcome can queue it again
+                    inFlight.remove(key, queued);
+                    queued.complete(outcome);
+                }
+            });
+        }
+        catch (RejectedExecutionException ree) {
+            inFlight.remove(key, queued);
+            queued.complete(false);
+        }
+        return queued;
+    }
+
+    /**
+     * @return true if the descriptor is queued on the worker pool or downloading
+     */
+    public boolean isQueued(Path descriptor) {
+        return inFlight.containsKey(descriptor.toAbsolutePath().normalize());
+    }
+
+    /**
+     * @return the number of downloads waiting for a worker
+     */
+    public int queuedCount() {
+        return workers.queuedCount();
+    }
+
+    /**
+     * the order downloads start in: the video's publish time, moved later by
+     * ytu.core.downloadSubscriberBoostHours for every factor of ten in its channel's subscriber
+     * count, so a fresh upload goes ahead of an old channel's backfill, and of the fresh uploads the
+     * bigger channels' go first. a video whose details can't be found ranks by when its descriptor
+     * was written
+     */
+    private long rankOf(Path descriptor, String videoId, String channelId) {
+        long published = 0;
+        int subscribers = 0;
+        try {
+            com.google.api.services.youtube.model.Video details = channelId == null ? null :
+                channelData.get(channelId, ChannelSegmentStore.Kind.DETAILS, videoId,
+                    com.google.api.services.youtube.model.Video.class);
+            published = details != null ? details.getSnippet().getPublishedAt().getValue() :
+                Files.getLastModifiedTime(descriptor).toMillis();
+        }
+        catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.FINE, "download-engine | no publish time for " + videoId + ", ranking it last", e);
+        }
+        try {
+            if (channelId != null) subscribers = channelCache.get(channelId).map(ChannelInfo::getSubscriberCount).orElse(0);
+        }
+        catch (DataAccessException dae) {
+            LOGGER.log(Level.FINE, "download-engine | no subscriber count for " + channelId, dae);
+        }
+        return published + (long) (Math.log10(1 + Math.max(0, subscribers)) *
+            TimeUnit.HOURS.toMillis(ytProperties.getDownloadSubscriberBoostHours()));
+    }
+
+    private static String videoIdOf(Path descriptor) {
+        String name = descriptor.getFileName().toString();
+        return name.endsWith(".json") ? name.substring(0, name.length() - ".json".length()) : name;
+    }
+
+    public void ensureExecutable() {
+        File youtubeDl = new File(ytProperties.getYoutubeDlPath());
+        if (!youtubeDl.canExecute() && !youtubeDl.setExecutable(true, false)) {
+            LOGGER.log(Level.WARNING, "download-engine | unable to make " + youtubeDl + " executable");
+        }
+    }
+
+    private boolean download(Path descriptor) throws IOException, InterruptedException {
+        ChannelCheck check = store.readDescriptor(descriptor, ChannelCheck.class);
+        if (alreadyDownloaded(check.getId())) {
+            LOGGER.log(Level.INFO, "download-engine | " + check.getId() + " is already downloaded, skipping");
+            metrics.recordDownloadSkipped();
+            markDownloaded(check.getId());
+            descriptor.toFile().delete();
+            return true;
+        }
+        LOGGER.log(Level.INFO, "download-engine | going to fetch: " + check.getId());
+
+        List<String> command = new ArrayList<>(Arrays.asList(ytProperties.getYoutubeDlPath(),
+            "-o", ytProperties.getVideosPath() + File.separator + OUTPUT_TEMPLATE));
+        if (ytProperties.getDownloadRateLimitKilobytes() > 0) {
+            // the cap is for all the workers together, so each process gets a fixed share whether or
+            // not the other workers are busy
+            long share = Math.max(1, ytProperties.getDownloadRateLimitKilobytes() / ytProperties.getDownloadWorkers());
+            command.addAll(Arrays.asList("--limit-rate", share + "K"));
+        }
+        command.addAll(Arrays.asList("--", check.getId()));
+        if (!runYoutubeDl(command, check.getId())) return false;
+
+        metrics.recordDownloadedBytes(downloadedBytes(check.getId()));
+        archive(check.getId());
+        markDownloaded(check.getId());
+        descriptor.toFile().delete();
+        return true;
+    }
+
+    /**
+     * checks the archive, then the videos directory in case the video was downloaded outside the
+     * pipeline or the archive missed it; a download found on disk is archived
+     */
+    private boolean alreadyDownloaded(String videoId) {
+        return archive.contains(videoId) || (findOutput(videoId) != null && archive(videoId));
+    }
+
+    /**
+     * archives the video's output file
+     *
+     * @return false if there's no output to archive or it couldn't be recorded
+     */
+    private boolean archive(String videoId) {
+        Path output = findOutput(videoId);
+        if (output == null) {
+            LOGGER.log(Level.WARNING, "download-engine | no output found for " + videoId + ", not archiving it");
+            return false;
+        }
+        try {
+            archive.record(videoId, output, Files.size(output));
+            return true;
+        }
+        catch (IOException ioe) {
+            // the descriptor still goes, so the worst case is the archive missing it until the next
+            // start's scan of the videos directory
+            LOGGER.log(Level.WARNING, "download-engine | unable to archive the download of " + videoId, ioe);
+            return false;
+        }
+    }
+
+    private void markDownloaded(String videoId) throws IOException {
+        videoIndex.mark(videoId, null, VideoStateIndex.DOWNLOADED);
+        try {
+            bulkdao.updateDownloadState(Collections.singletonList(videoId), Video.DownloadState.DOWNLOADED);
+        }
+        catch (DataAccessException dae) {
+            LOGGER.log(Level.WARNING, "download-engine | unable to update the video row for " + videoId, dae);
+        }
+    }
+
+    /**
+     * the finished file youtube-dl wrote for the video, found by the id prefix of the output template;
+     * the largest if there's more than one
+     */
+    private Path findOutput(String videoId) {
+        Path output = null;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(ytProperties.getVideosPath()), videoId + "-*")) {
+            long largest = -1;
+            for (Path file : files) {
+                if (!videoId.equals(DownloadArchive.videoIdOf(file)) || !Files.isRegularFile(file)) continue;
+                long size = Files.size(file);
+                if (size > largest) {
+                    output = file;
+                    largest = size;
+                }
+            }
+        }
+        catch (IOException ioe) {
+            LOGGER.log(Level.FINE, "download-engine | unable to look for the output of " + videoId, ioe);
+        }
+        return output;
+    }
+
+    /**
+     * the size of what youtube-dl wrote for the video, found by the id prefix of the output template
+     */
+    private long downloadedBytes(String videoId) {
+        long bytes = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(ytProperties.getVideosPath()), videoId + "-*")) {
+            for (Path file : files) bytes += Files.size(file);
+        }
+        catch (IOException ioe) {
+            LOGGER.log(Level.FINE, "download-engine | unable to size the output of " + videoId, ioe);
+        }
+        return bytes;
+    }
+
+    private void drain(InputStream stream, String videoId) {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                LOGGER.log(Level.INFO, videoId + " | " + line);
+            }
+        }
+        catch (IOException ioe) {
+            LOGGER.log(Level.FINE, "download-engine | output stream closed for " + videoId, ioe);
+        }
+    }
+
+    /**
+     * runs youtube-dl to completion or the timeout, whichever comes first
+     *
+     * @return true if it exited with 0
+     */
+    private boolean runYoutubeDl(List<String> command, String videoId) throws IOException, InterruptedException {
+        Path pidFile = Files.createTempFile("ytu-download-", ".pid");
+        try {
+            Process process = new ProcessBuilder(recordingPid(pidFile, command)).start();
+            // until youtube-dl has exited, any way out of here kills it and everything it started
+            boolean exited = false;
+            try {
+                Future<?> stdout = drainers.submit(() -> drain(process.getInputStream(), videoId));
+                Future<?> stderr = drainers.submit(() -> drain(process.getErrorStream(), videoId));
+
+                if (!process.waitFor(ytProperties.getDownloadTimeoutMinutes(), TimeUnit.MINUTES)) {
+                    LOGGER.log(Level.WARNING, "download-engine | " + videoId + " timed out after " +
+                        ytProperties.getDownloadTimeoutMinutes() + " minutes, killing it");
+                    metrics.recordDownloadExit("timeout");
+                    return false;
+                }
+                exited = true;
+                awaitQuietly(stdout);
+                awaitQuietly(stderr);
+
+                int exit = process.exitValue();
+                metrics.recordDownloadExit(Integer.toString(exit));
+                LOGGER.log(exit == 0 ? Level.INFO : Level.WARNING, "download-engine | " + videoId + " exited with " + exit);
+                return exit == 0;
+            }
+            catch (InterruptedException ie) {
+                // the workers are interrupted at shutdown, and the downloads mustn't outlive the jvm.
+                // the tree is killed before the flag is restored, since the kill waits on pgrep
+                LOGGER.log(Level.WARNING, "download-engine | " + videoId + " interrupted, killing it");
+                killTree(process, pidFile);
+                exited = true;
+                Thread.currentThread().interrupt();
+                throw ie;
+            }
+            finally {
+                if (!exited) killTree(process, pidFile);
+            }
+        }
+        finally {
+            Files.deleteIfExists(pidFile);
+        }
+    }
+
+    private void awaitQuietly(Future<?> drain) {
+        try {
+            drain.get(10, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ie) {
+            drain.cancel(true);
+            Thread.currentThread().interrupt();
+        }
+        catch (Exception e) {
+            drain.cancel(true);
+        }
+    }
+
+    /**
+     * wraps the command in a shell that writes its pid to the pid file and then execs it, so the
+     * command runs under that pid and its process tree can be found without the pid being read out of
+     * the jdk's process implementation
+     */
+    private static List<String> recordingPid(Path pidFile, List<String> command) {
+        List<String> wrapped = new ArrayList<>(Arrays.asList("/bin/sh", "-c", "echo $$ > \"$0\" && exec \"$@\"",
+            pidFile.toString()));
+        wrapped.addAll(command);
+        return wrapped;
+    }
+
+    /**
+     * kills the process and every process under it, however deep; youtube-dl hands merging and
+     * conversion to ffmpeg, which may start processes of its own, and any of them would otherwise be
+     * left running. the whole tree is found before anything is killed, since a child whose parent
+     * has died is moved under init and can't be found from the tree any more
+     */
+    private void killTree(Process process, Path pidFile) {
+        try {
+            String pid = new String(Files.readAllBytes(pidFile), StandardCharsets.US_ASCII).trim();
+            if (!pid.isEmpty()) {
+                List<String> kill = new ArrayList<>(Arrays.asList("kill", "-KILL"));
+                collectTree(pid, kill);
+                new ProcessBuilder(kill).start().waitFor(10, TimeUnit.SECONDS);
+            }
+        }
+        catch (IOException ioe) {
+            LOGGER.log(Level.WARNING, "download-engine | unable to kill the process tree", ioe);
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        process.destroyForcibly();
+    }
+
+    /**
+     * adds the pid and the pids of all its descendants to the list, parents before their children
+     */
+    private static void collectTree(String pid, List<String> tree) throws IOException, InterruptedException {
+        tree.add(pid);
+        Process pgrep = new ProcessBuilder("pgrep", "-P", pid).start();
+        List<String> children = new ArrayList<>();
+        try (BufferedReader out = new BufferedReader(new InputStreamReader(pgrep.getInputStream(), StandardCharsets.US_ASCII))) {
+            String line;
+            while ((line = out.readLine()) != null) {
+                if (!line.trim().isEmpty()) children.add(line.trim());
+            }
+        }
+        pgrep.waitFor(10, TimeUnit.SECONDS);
+        for (String child : children) collectTree(child, tree);
+    }
+
+    private static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,141 @@
+package io.gridbug.ytu.ytutility.pipeline;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * the download engine's worker threads and the queue they take downloads from. queued downloads are
+ * kept per channel, each channel's in rank order, and a free worker takes the highest ranked download
+ * among the channels that have fewer than the per-channel cap running, so one channel's backlog can't
+ * take every worker however highly it ranks. downloads of equal rank start in the order they were
+ * queued. downloads whose channel isn't known aren't held to the cap, since nothing says they come
+ * from the same channel
+ */
+class DownloadScheduler {
+
+    private static final Logger LOGGER = Logger.getLogger(DownloadScheduler.class.getName());
+
+    /** downloads for videos whose channel isn't known share this queue, which has no cap */
+    private static final String NO_CHANNEL = "";
+
+    private final int perChannel;
+    private final List<Thread> workers = new ArrayList<>();
+
+    private final Map<String, PriorityQueue<Task>> queued = new HashMap<>();
+    private final Map<String, Integer> running = new HashMap<>();
+    private int size;
+    private long sequence;
+    private boolean shutdown;
+
+    DownloadScheduler(int workerCount, int perChannel, ThreadFactory threads) {
+        this.perChannel = Math.max(1, perChannel);
+        for (int i = 0; i < workerCount; i++) workers.add(threads.newThread(this::work));
+        workers.forEach(Thread::start);
+    }
+
+    /**
+     * queues the download
+     *
+     * @param channelId the video's channel, or null if it isn't known
+     * @param rank higher ranks start first
+     * @throws RejectedExecutionException once the scheduler has been shut down
+     */
+    synchronized void schedule(String channelId, long rank, Runnable download) {
+        if (shutdown) throw new RejectedExecutionException("download scheduler is shut down");
+        String channel = channelId == null ? NO_CHANNEL : channelId;
+        queued.computeIfAbsent(channel, c -> new PriorityQueue<>()).add(new Task(channel, rank, sequence++, download));
+        size++;
+        notifyAll();
+    }
+
+    /**
+     * @return the number of downloads waiting for a worker
+     */
+    synchronized int queuedCount() {
+        return size;
+    }
+
+    /**
+     * stops the workers, interrupting the downloads they're running; queued downloads never start
+     */
+    void shutdownNow() {
+        synchronized (this) {
+            shutdown = true;
+            notifyAll();
+        }
+        workers.forEach(Thread::interrupt);
+    }
+
+    private void work() {
+        while (true) {
+            Task task = null;
+            synchronized (this) {
+                try {
+                    while (!shutdown && (task = next()) == null) wait();
+                }
+                catch (InterruptedException ie) {
+                    return;
+                }
+                if (task == null) return;
+                running.merge(task.channel, 1, Integer::sum);
+            }
+            try {
+                task.download.run();
+            }
+            catch (RuntimeException re) {
+                LOGGER.log(Level.WARNING, "download-scheduler | download failed", re);
+            }
+            finally {
+                synchronized (this) {
+                    running.merge(task.channel, -1, (a, b) -> a + b == 0 ? null : a + b);
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * takes the highest ranked download among the channels under their cap off the queue
+     *
+     * @return null if there isn't one
+     */
+    private Task next() {
+        PriorityQueue<Task> best = null;
+        for (Map.Entry<String, PriorityQueue<Task>> channel : queued.entrySet()) {
+            if (!channel.getKey().equals(NO_CHANNEL) && running.getOrDefault(channel.getKey(), 0) >= perChannel) continue;
+            if (best == null || channel.getValue().peek().compareTo(best.peek()) < 0) best = channel.getValue();
+        }
+        if (best == null) return null;
+        Task task = best.poll();
+        if (best.isEmpty()) queued.remove(task.channel);
+        size--;
+        return task;
+    }
+
+    private static final class Task implements Comparable<Task> {
+        private final String channel;
+        private final long rank;
+        private final long sequence;
+        private final Runnable download;
+
+        Task(String channel, long rank, long sequence, Runnable download) {
+            this.channel = channel;
+            this.rank = rank;
+            this.sequence = sequence;
+            this.download = download;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (rank != other.rank) return rank > other.rank ? -1 : 1;
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
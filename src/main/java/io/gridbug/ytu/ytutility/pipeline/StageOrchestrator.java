@@ -0,0 +1,333 @@
+package io.gridbug.ytu.ytutility.pipeline;
+
+import com.google.api.services.youtube.YouTube;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import io.gridbug.ytu.ytutility.configuration.PipelineMetrics;
+import io.gridbug.ytu.ytutility.configuration.QuotaLimiter;
+import io.gridbug.ytu.ytutility.configuration.YTUProperties;
+import io.gridbug.ytu.ytutility.configuration.YoutubeService;
+import io.gridbug.ytu.ytutility.storage.DownloadArchive;
+import io.micrometer.core.instrument.Gauge;
+
+/**
+ * runs the uploads pipeline (scrape -> details -> download) as three stages connected in process,
+ * instead of three cron jobs spaced out on the clock.
+ *
+ * each stage has its own executor: the scraper drains the video-for-channel-check queue on one
+ * thread and hands each channel's new uploads to the details stage through a bounded queue of
+ * ytu.core.pipelineHandoffCapacity videos; the details stage, on its own thread, sends a videos.list
+ * call as soon as it has 50 ids or the queue has been quiet for ytu.core.pipelineDetailsLingerSeconds,
+ * and hands every video it fetches straight to the download engine, which may have at most
+ * ytu.core.downloadQueueCapacity of them queued at once and starts them in priority order, not in
+ * the order they arrive. a full queue blocks the stage feeding it, so a slow stage slows the ones
+ * upstream rather than piling work up in memory.
+ *
+ * a run is over once the scrape and details stages have drained; the downloads it queued carry on
+ * in the background, still held to the download queue capacity, and their outcomes are recorded as
+ * each one finishes. the next run can therefore start while long downloads are still going, so new
+ * uploads keep reaching the download queue.
+ *
+ * work left over from an earlier run (listed videos without details, fetch descriptors not yet
+ * downloaded or queued) is picked up at the start of each run.
+ */
+@Component
+public class StageOrchestrator {
+
+    private static final Logger LOGGER = Logger.getLogger(StageOrchestrator.class.getName());
+
+    private static final String STAGE = "uploads-pipeline";
+
+    @Autowired
+    private YTUProperties ytProperties;
+
+    @Autowired
+    private YoutubeService ytService;
+
+    @Autowired
+    private QuotaLimiter quotaLimiter;
+
+    @Autowired
+    private PipelineMetrics metrics;
+
+    @Autowired
+    private UploadsScraper uploadsScraper;
+
+    @Autowired
+    private VideoDetailsFetcher detailsFetcher;
+
+    @Autowired
+    private DownloadEngine downloadEngine;
+
+    @Autowired
+    private DownloadArchive archive;
+
+    private ExecutorService scrapeExecutor;
+    private ExecutorService detailsExecutor;
+
+    private BlockingQueue<Map.Entry<String, String>> detailsInbox;
+    private Semaphore downloadSlots;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    @PostConstruct
+    private void initialize() {
+        scrapeExecutor = Executors.newSingleThreadExecutor(namedThread("pipeline-scrape"));
+        detailsExecutor = Executors.newSingleThreadExecutor(namedThread("pipeline-details"));
+        detailsInbox = new ArrayBlockingQueue<>(ytProperties.getPipelineHandoffCapacity());
+        downloadSlots = new Semaphore(ytProperties.getDownloadQueueCapacity());
+
+        Gauge.builder("ytu.pipeline.handoff", detailsInbox, BlockingQueue::size)
+            .tag("to", "details")
+            .register(metrics.getRegistry());
+        Gauge.builder("ytu.pipeline.handoff", downloadSlots, slots -> ytProperties.getDownloadQueueCapacity() - slots.availablePermits())
+            .tag("to", "download")
+            .register(metrics.getRegistry());
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        scrapeExecutor.shutdownNow();
+        detailsExecutor.shutdownNow();
+    }
+
+    /**
+     * runs the pipeline over every channel queued for a video check, returning once the details
+     * stage has drained; the downloads it queued finish on their own. a run that's triggered while
+     * another's scrape or details stage is still going is skipped
+     */
+    public void run() throws IOException {
+        if (!running.compareAndSet(false, true)) {
+            LOGGER.log(Level.INFO, STAGE + " | previous run still in progress, skipping");
+            return;
+        }
+        try {
+            metrics.timeStage(STAGE, this::runStages);
+        }
+        finally {
+            running.set(false);
+        }
+    }
+
+    private void runStages() throws IOException {
+        YouTube youtube = ytService.getYouTubeService();
+        downloadEngine.ensureExecutable();
+
+        // leftovers are collected before anything starts, so nothing this run produces is picked up twice
+        Map<String, String> detailsBacklog = detailsFetcher.findPendingVideos();
+        // descriptors an earlier run's downloads still have queued or running are theirs
+        List<Path> downloadBacklog = listFetchDescriptors().stream()
+            .filter(descriptor -> !downloadEngine.isQueued(descriptor))
+            .collect(Collectors.toList());
+        LOGGER.log(Level.INFO, STAGE + " | starting; carried over " + detailsBacklog.size() + " videos without details and " +
+            downloadBacklog.size() + " undownloaded videos");
+
+        detailsInbox.clear();
+        AtomicBoolean scrapeDone = new AtomicBoolean();
+        AtomicBoolean detailsDone = new AtomicBoolean();
+        AtomicInteger downloads = new AtomicInteger();
+
+        // one budget for the run, shared by the scrape and details threads, so neither can take the
+        // rest of the day's quota from the other or from the stages that run alongside the pipeline
+        try (QuotaLimiter.Budget budget = quotaLimiter.reserve(STAGE)) {
+            Future<?> scrape = scrapeExecutor.submit(() -> {
+                try (QuotaLimiter.Binding binding = quotaLimiter.share(budget)) {
+                    scrape(youtube, detailsDone);
+                }
+                finally {
+                    scrapeDone.set(true);
+                }
+                return null;
+            });
+            Future<?> details = detailsExecutor.submit(() -> {
+                try (QuotaLimiter.Binding binding = quotaLimiter.share(budget)) {
+                    fetchDetails(youtube, detailsBacklog, scrapeDone, downloads);
+                }
+                finally {
+                    detailsDone.set(true);
+                }
+                return null;
+            });
+            // the backlog only takes the free download slots, so a big one doesn't hold the run open;
+            // what doesn't fit stays on disk for the next run
+            int deferred = 0;
+            for (Path descriptor : downloadBacklog) {
+                if (downloadSlots.tryAcquire()) submitDownload(descriptor, downloads);
+                else deferred++;
+            }
+            if (deferred > 0) {
+                LOGGER.log(Level.INFO, STAGE + " | download queue full, left " + deferred +
+                    " carried over videos for the next run");
+            }
+
+            await(scrape);
+            await(details);
+        }
+        LOGGER.log(Level.INFO, STAGE + " | finished; queued " + downloads.get() + " downloads, " +
+            downloadEngine.queuedCount() + " waiting for a worker");
+    }
+
+    /**
+     * scrape stage: each channel's new uploads go onto the details inbox, blocking while it's full.
+     * if the details stage has stopped the uploads are left for the next run's backlog
+     */
+    private void scrape(YouTube youtube, AtomicBoolean detailsDone) throws IOException {
+        List<Boolean> outcomes = new ArrayList<>();
+        try {
+            uploadsScraper.scrapeQueuedChannels(youtube, outcomes, listed -> {
+                try {
+                    for (Map.Entry<String, String> video : listed.entrySet()) {
+                        Map.Entry<String, String> handoff = new AbstractMap.SimpleImmutableEntry<>(video.getKey(), video.getValue());
+                        while (!detailsInbox.offer(handoff, 1, TimeUnit.SECONDS)) {
+                            if (detailsDone.get()) return;
+                        }
+                    }
+                }
+                catch (InterruptedException ie) {
+                    // the videos are in the index as listed, so the next run's backlog picks them up
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        finally {
+            metrics.recordOutcomes("run-video-for-channel-check", outcomes);
+        }
+    }
+
+    /**
+     * details stage: the carried-over videos first, then whatever the scraper hands over, in
+     * videos.list batches of up to 50; each video fetched goes straight to the download stage
+     */
+    private void fetchDetails(YouTube youtube, Map<String, String> backlog, AtomicBoolean scrapeDone,
+            AtomicInteger downloads) throws InterruptedException {
+        List<Boolean> outcomes = new ArrayList<>();
+        try {
+            Map<String, String> batch = new LinkedHashMap<>();
+            for (Map.Entry<String, String> video : backlog.entrySet()) {
+                batch.put(video.getKey(), video.getValue());
+                if (batch.size() == VideoDetailsFetcher.MAX_IDS_PER_CALL) fetchBatch(youtube, batch, outcomes, downloads);
+            }
+
+            long linger = TimeUnit.SECONDS.toMillis(ytProperties.getPipelineDetailsLingerSeconds());
+            while (true) {
+                Map.Entry<String, String> video = detailsInbox.poll(linger, TimeUnit.MILLISECONDS);
+                if (video != null) batch.put(video.getKey(), video.getValue());
+                boolean drained = video == null && scrapeDone.get() && detailsInbox.isEmpty();
+                if (batch.size() == VideoDetailsFetcher.MAX_IDS_PER_CALL || (video == null && !batch.isEmpty()) || drained) {
+                    fetchBatch(youtube, batch, outcomes, downloads);
+                }
+                if (drained) break;
+            }
+        }
+        finally {
+            metrics.recordOutcomes("fetch-video-details", outcomes);
+        }
+    }
+
+    private void fetchBatch(YouTube youtube, Map<String, String> batch, List<Boolean> outcomes,
+            AtomicInteger downloads) throws InterruptedException {
+        if (batch.isEmpty()) return;
+        List<String> ids = new ArrayList<>(batch.keySet());
+        List<Boolean> fetched = detailsFetcher.fetchBatch(youtube, ids, batch);
+        outcomes.addAll(fetched);
+        for (int i = 0; i < ids.size(); i++) {
+            // an archived video was fetched without a descriptor; there's nothing to download
+            if (fetched.get(i) && !archive.contains(ids.get(i))) download(fetchDescriptor(ids.get(i)), downloads);
+        }
+        batch.clear();
+    }
+
+    /**
+     * download stage: blocks while the engine already has its share of downloads queued. the outcome
+     * is recorded when the download finishes, which may be after the run is over
+     */
+    private void download(Path descriptor, AtomicInteger downloads) {
+        try {
+            downloadSlots.acquire();
+        }
+        catch (InterruptedException ie) {
+            // the descriptor stays on disk for the next run
+            Thread.currentThread().interrupt();
+            return;
+        }
+        submitDownload(descriptor, downloads);
+    }
+
+    /**
+     * hands the descriptor to the engine; the caller holds a download slot, released when it's done
+     */
+    private void submitDownload(Path descriptor, AtomicInteger downloads) {
+        downloads.incrementAndGet();
+        downloadEngine.submit(descriptor).whenComplete((outcome, error) -> {
+            downloadSlots.release();
+            boolean downloaded = Boolean.TRUE.equals(outcome);
+            metrics.recordItems("fetch-videos", downloaded ? 1 : 0, downloaded ? 0 : 1);
+            if (!downloaded) LOGGER.log(Level.INFO, STAGE + " | download failed, left for the next run: " + descriptor);
+        });
+    }
+
+    private Path fetchDescriptor(String videoId) {
+        return Paths.get(ytProperties.getVideoFetchPath() + File.separator + videoId + ".json");
+    }
+
+    private List<Path> listFetchDescriptors() throws IOException {
+        try (Stream<Path> descriptors = Files.list(Paths.get(ytProperties.getVideoFetchPath()))) {
+            return descriptors.filter(Files::isRegularFile)
+                .filter(path -> path.toString().endsWith(".json"))
+                .collect(Collectors.toList());
+        }
+    }
+
+    private void await(Future<?> stage) throws IOException {
+        try {
+            stage.get();
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException(STAGE + " interrupted", ie);
+        }
+        catch (ExecutionException ee) {
+            if (ee.getCause() instanceof IOException) throw (IOException) ee.getCause();
+            throw new IOException(STAGE + " stage failed", ee.getCause());
+        }
+    }
+
+    private static ThreadFactory namedThread(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
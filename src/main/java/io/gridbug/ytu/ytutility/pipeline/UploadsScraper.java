@@ -0,0 +1,299 @@
+package io.gridbug.ytu.ytutility.pipeline;
+
+import com.google.api.services.youtube.YouTube;
+import com.google.api.services.youtube.model.PlaylistItem;
+import com.google.api.services.youtube.model.PlaylistItemListResponse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import org.joda.time.DateTime;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.stereotype.Component;
+
+import io.gridbug.ytu.ytutility.configuration.ApiBatch;
+import io.gridbug.ytu.ytutility.configuration.ConditionalRequestCache;
+import io.gridbug.ytu.ytutility.configuration.YTUProperties;
+import io.gridbug.ytu.ytutility.dao.BulkIngestDao;
+import io.gridbug.ytu.ytutility.dao.ChannelInfoCache;
+import io.gridbug.ytu.ytutility.model.ChannelInfo;
+import io.gridbug.ytu.ytutility.model.Video;
+import io.gridbug.ytu.ytutility.model.VideoForChannelCheck;
+import io.gridbug.ytu.ytutility.storage.ChannelSegmentStore;
+import io.gridbug.ytu.ytutility.storage.VideoStateIndex;
+
+/**
+ * pages through a channel's uploads playlist and appends each upload's playlist item to the
+ * channel's segment in the {@link ChannelSegmentStore}. the first scrape of a channel follows every
+ * page; after that the newest upload seen is kept on the channel info as a high-water mark and paging
+ * stops as soon as it's reached, so a steady-state check costs one page and only writes records for
+ * new uploads. each page's new uploads are also written to the videos table in one batched statement.
+ * every scrape, whatever it finds, sets the channel's next check (see {@link VideoCheckScheduler}).
+ *
+ * first pages are fetched for many channels at once in batch requests and compared with the etag
+ * cache; a channel whose first page hasn't changed since the last completed scrape has no new
+ * uploads and nothing else is fetched or written
+ */
+@Component
+public class UploadsScraper {
+
+    private static final Logger LOGGER = Logger.getLogger(UploadsScraper.class.getName());
+
+    private static final long PAGE_SIZE = 50L;
+
+    @Autowired
+    private DescriptorStore store;
+
+    @Autowired
+    private ChannelInfoCache channelCache;
+
+    @Autowired
+    private VideoStateIndex videoIndex;
+
+    @Autowired
+    private ChannelSegmentStore channelData;
+
+    @Autowired
+    private BulkIngestDao bulkdao;
+
+    @Autowired
+    private ConditionalRequestCache responseCache;
+
+    @Autowired
+    private VideoCheckScheduler checkScheduler;
+
+    @Autowired
+    private YTUProperties ytProperties;
+
+    /** descriptors taken off the video-for-channel-check queue at a time */
+    private static final int DESCRIPTOR_BATCH_SIZE = 50;
+
+    /**
+     * scrapes every channel queued for a video check. the first uploads page of every channel in a
+     * descriptor batch is fetched in one multipart batch request; only channels with more than a
+     * page of new uploads make calls of their own. the uploads found for each channel are handed to
+     * the listener (video id -> channel id) as soon as that channel is done; a channel that fails
+     * with an io exception is requeued for the next run, and the rest are recorded in the action
+     * history
+     *
+     * @param outcomes gets one outcome per channel
+     */
+    public void scrapeQueuedChannels(YouTube youtube, List<Boolean> outcomes, Consumer<Map<String, String>> listener)
+            throws IOException {
+        store.drainVideoForChannelChecks(DESCRIPTOR_BATCH_SIZE, batch -> {
+            List<VideoForChannelCheck> retries = new ArrayList<>();
+            List<VideoForChannelCheck> completed = new ArrayList<>();
+            Map<String, ChannelInfo> chans = new HashMap<>();
+            chans.putAll(channelCache.getAll(batch.stream().map(VideoForChannelCheck::getChannelId)
+                .collect(Collectors.toList())));
+
+            Map<String, PlaylistItemListResponse> firstPages = new HashMap<>();
+            Map<String, IOException> failures = new HashMap<>();
+            try {
+                fetchFirstPages(youtube, chans.values(), firstPages, failures);
+            }
+            catch (IOException ioe) {
+                LOGGER.log(Level.WARNING, "run-video-for-channel-check | unable to batch first pages, requeueing " +
+                    batch.size() + " channels", ioe);
+                batch.forEach(check -> outcomes.add(false));
+                return batch;
+            }
+
+            for (VideoForChannelCheck check : batch) {
+                try {
+                    LOGGER.log(Level.INFO, "run-video-for-channel-check | running channel check: " +
+                        check.getChannelId());
+
+                    ChannelInfo chan = chans.get(check.getChannelId());
+                    if (chan == null) {
+                        LOGGER.log(Level.INFO, "run-video-for-channel-check | no channel info found for: " +
+                            check.getChannelId());
+                        outcomes.add(false);
+                        continue;
+                    }
+                    if (failures.containsKey(chan.getId())) throw failures.get(chan.getId());
+                    PlaylistItemListResponse firstPage = firstPages.get(chan.getId());
+                    if (firstPage == null) throw new IOException("no response in the batch for " + chan.getId());
+
+                    List<PlaylistItem> fresh = scrapeNewUploads(youtube, chan, firstPage);
+                    LOGGER.log(Level.INFO, "run-video-for-channel-check | " + fresh.size() + " new uploads for: " +
+                        check.getChannelId());
+                    Map<String, String> listed = new LinkedHashMap<>();
+                    fresh.forEach(item -> listed.put(item.getSnippet().getResourceId().getVideoId(), check.getChannelId()));
+                    if (!listed.isEmpty()) listener.accept(listed);
+                    outcomes.add(true);
+                    check.setOutcome(true);
+                    check.setOutcomeMessage(fresh.size() + " new uploads");
+                    check.setPerformedOn(DateTime.now());
+                    completed.add(check);
+                }
+                catch (IOException ioe) {
+                    LOGGER.log(Level.INFO, "run-video-for-channel-check | io exception on channel: " +
+                        check.getChannelId() + ", requeueing", ioe);
+                    retries.add(check);
+                    outcomes.add(false);
+                }
+            }
+            try {
+                store.writeCompletedVideoForChannelCheckDescriptors(completed);
+            }
+            catch (IOException ioe) {
+                // the scrapes themselves are done and their marks saved; only the history is short
+                LOGGER.log(Level.WARNING, "run-video-for-channel-check | unable to record " + completed.size() +
+                    " completed checks", ioe);
+            }
+            return retries;
+        });
+    }
+
+    /**
+     * scrapes the uploads newer than the channel's high-water mark, or all uploads if it has none,
+     * and advances the mark once the scrape completes
+     *
+     * @return the playlist items that were new on this run, newest first
+     */
+    public List<PlaylistItem> scrapeNewUploads(YouTube youtube, ChannelInfo chan) throws IOException {
+        return scrapeNewUploads(youtube, chan, pageRequest(youtube, chan, null).execute());
+    }
+
+    /**
+     * queues a first-page request per channel and sends them as batches of ytu.core.apiBatchMaxParts
+     */
+    private void fetchFirstPages(YouTube youtube, Collection<ChannelInfo> chans,
+            Map<String, PlaylistItemListResponse> firstPages, Map<String, IOException> failures) throws IOException {
+        ApiBatch requests = new ApiBatch(youtube, ytProperties.getApiBatchMaxParts());
+        for (ChannelInfo chan : chans) {
+            requests.queue(pageRequest(youtube, chan, null), new ApiBatch.Callback<PlaylistItemListResponse>() {
+                @Override
+                public void onSuccess(PlaylistItemListResponse page) {
+                    firstPages.put(chan.getId(), page);
+                }
+
+                @Override
+                public void onFailure(IOException error) {
+                    failures.put(chan.getId(), error);
+                }
+            });
+        }
+        requests.flush();
+        LOGGER.log(Level.INFO, "uploads-scraper | first pages of " + requests.getPartsSent() + " channels in " +
+            requests.getBatchesSent() + " batch requests, " + failures.size() + " failed");
+    }
+
+    /**
+     * as {@link #scrapeNewUploads(YouTube, ChannelInfo)}, starting from a first page that's already been fetched. the first page is checked
+     * against the etag cache by the etag in its body; when it's unchanged since the last completed
+     * scrape the channel has no new uploads and nothing is written
+     */
+    private List<PlaylistItem> scrapeNewUploads(YouTube youtube, ChannelInfo chan, PlaylistItemListResponse firstPage)
+            throws IOException {
+        String markId = chan.getNewestVideoId();
+        DateTime markPublishedAt = chan.getNewestVideoPublishedAt();
+        boolean backfill = markId == null || markPublishedAt == null;
+
+        List<PlaylistItem> fresh = new ArrayList<>();
+        YouTube.PlaylistItems.List firstRequest = pageRequest(youtube, chan, null);
+        if (responseCache.isUnchanged(firstRequest, firstPage.getEtag())) {
+            LOGGER.log(Level.INFO, "uploads-scraper | " + chan.getId() + " | uploads unchanged, skipping");
+            reschedule(chan, markPublishedAt, fresh);
+            return fresh;
+        }
+        LOGGER.log(Level.INFO, "uploads-scraper | " + chan.getId() + (backfill ? " | full backfill" :
+            " | incremental from " + markId + " / " + markPublishedAt));
+
+        PlaylistItem newest = null;
+        DateTime newestPublishedAt = null;
+        String nextPageToken = null;
+        int pages = 0;
+        boolean reachedMark = false;
+        do {
+            PlaylistItemListResponse response = nextPageToken == null ? firstPage :
+                pageRequest(youtube, chan, nextPageToken).execute();
+            pages++;
+
+            Map<String, String> listed = new LinkedHashMap<>();
+            Map<String, PlaylistItem> items = new LinkedHashMap<>();
+            List<Video> rows = new ArrayList<>();
+            for (PlaylistItem video : response.getItems()) {
+                String videoId = video.getSnippet().getResourceId().getVideoId();
+                DateTime publishedAt = new DateTime(video.getSnippet().getPublishedAt().getValue());
+                if (!backfill && (videoId.equals(markId) || !publishedAt.isAfter(markPublishedAt))) {
+                    reachedMark = true;
+                    break;
+                }
+
+                LOGGER.log(Level.INFO, "uploads-scraper | " + chan.getId() + " | new video entry: " + videoId);
+                items.put(videoId, video);
+                fresh.add(video);
+                listed.put(videoId, chan.getId());
+                rows.add(VideoRows.fromPlaylistItem(video));
+
+                if (newestPublishedAt == null || publishedAt.isAfter(newestPublishedAt)) {
+                    newest = video;
+                    newestPublishedAt = publishedAt;
+                }
+            }
+            // the page's items go into the channel's segment in one append
+            channelData.putAll(chan.getId(), ChannelSegmentStore.Kind.PLAYLIST_ITEM, items);
+            videoIndex.markAll(listed, VideoStateIndex.LISTED);
+            ingest(chan, rows);
+            nextPageToken = response.getNextPageToken();
+        }
+        while (!reachedMark && nextPageToken != null && !nextPageToken.equals(""));
+
+        // the mark only moves once every page down to it has been written, so a failed scrape is
+        // simply repeated from the same point on the next run
+        if (newest != null) {
+            chan.setNewestVideoId(newest.getSnippet().getResourceId().getVideoId());
+            chan.setNewestVideoPublishedAt(newestPublishedAt);
+        }
+        reschedule(chan, markPublishedAt, fresh);
+        responseCache.put(firstRequest, firstPage.getEtag(), firstPage);
+        LOGGER.log(Level.INFO, "uploads-scraper | " + chan.getId() + " | " + pages + " pages, " +
+            fresh.size() + " new uploads");
+        return fresh;
+    }
+
+    /**
+     * sets the channel's next check from what the scrape found and writes it, along with the mark,
+     * without touching the columns the channel check owns
+     */
+    private void reschedule(ChannelInfo chan, DateTime previousNewest, List<PlaylistItem> fresh) {
+        List<DateTime> published = new ArrayList<>();
+        fresh.forEach(item -> published.add(new DateTime(item.getSnippet().getPublishedAt().getValue())));
+        checkScheduler.reschedule(chan, previousNewest, published, DateTime.now());
+        bulkdao.updateUploadsSchedule(chan);
+        LOGGER.log(Level.INFO, "uploads-scraper | " + chan.getId() + " | next check " + chan.getNextVideoCheck() +
+            ", uploads every " + chan.getUploadIntervalMinutes() + " minutes on average");
+    }
+
+    private YouTube.PlaylistItems.List pageRequest(YouTube youtube, ChannelInfo chan, String pageToken)
+            throws IOException {
+        YouTube.PlaylistItems.List videos = youtube.playlistItems().list("snippet,contentDetails");
+        videos.setPlaylistId(chan.getUploadsPlaylistId());
+        videos.setMaxResults(PAGE_SIZE);
+        if (pageToken != null) videos.setPageToken(pageToken);
+        return videos;
+    }
+
+    private void ingest(ChannelInfo chan, List<Video> rows) {
+        try {
+            bulkdao.upsertListedVideos(rows);
+        }
+        catch (DataAccessException dae) {
+            // the json files and the index are what the later stages work from; the table catches up
+            // when the details for these videos are written
+            LOGGER.log(Level.WARNING, "uploads-scraper | " + chan.getId() + " | unable to write video rows", dae);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package io.gridbug.ytu.ytutility.pipeline;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.Minutes;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import io.gridbug.ytu.ytutility.configuration.YTUProperties;
+import io.gridbug.ytu.ytutility.model.ChannelInfo;
+
+/**
+ * decides when each channel's uploads are next checked, from how often the channel uploads.
+ *
+ * every scrape feeds the publish times of the uploads it found into an exponentially weighted
+ * average of the gap between uploads, kept on the channel info. the next check is that gap, or the
+ * time since the channel's newest upload if that's longer, divided by ytu.core.videoChecksPerUpload
+ * and held between ytu.core.videoCheckMinMinutes and ytu.core.videoCheckMaxHours. a daily uploader
+ * is checked every few hours, and a channel that goes quiet backs off on its own as its newest
+ * upload ages, until it's checked once every max hours.
+ *
+ * each channel has a fixed minute of the hour, taken from a hash of its id, and its checks are
+ * rounded up to that minute. the checks therefore spread evenly over the hour instead of all falling
+ * on the hour
+ */
+@Component
+public class VideoCheckScheduler {
+
+    /** weight of the newest gap in the average */
+    private static final double ALPHA = 0.3;
+
+    @Autowired
+    private YTUProperties ytProperties;
+
+    /**
+     * learns from a scrape's uploads and sets the channel's next check; the caller writes both with
+     * BulkIngestDao.updateUploadsSchedule, so the rest of the row isn't overwritten
+     *
+     * @param previousNewest publish time of the newest upload before the scrape, or null if there was none
+     * @param published publish times of the uploads the scrape found, in any order
+     */
+    public void reschedule(ChannelInfo chan, DateTime previousNewest, List<DateTime> published, DateTime now) {
+        List<DateTime> times = new ArrayList<>(published);
+        Collections.sort(times);
+        if (previousNewest != null) times.add(0, previousNewest);
+
+        Long average = chan.getUploadIntervalMinutes();
+        for (int i = 1; i < times.size(); i++) {
+            long gap = Math.max(1, Minutes.minutesBetween(times.get(i - 1), times.get(i)).getMinutes());
+            average = average == null ? gap : Math.round(ALPHA * gap + (1 - ALPHA) * average);
+        }
+        chan.setUploadIntervalMinutes(average);
+        chan.setNextVideoCheck(nextCheck(chan, now));
+    }
+
+    /**
+     * @return when the channel should next be checked, rounded up to its minute of the hour
+     */
+    public DateTime nextCheck(ChannelInfo chan, DateTime now) {
+        long expected = chan.getUploadIntervalMinutes() == null ? 0 : chan.getUploadIntervalMinutes();
+        long quiet = chan.getNewestVideoPublishedAt() == null ? 0 :
+            Math.max(0, Minutes.minutesBetween(chan.getNewestVideoPublishedAt(), now).getMinutes());
+        long interval = Math.max(expected, quiet) / ytProperties.getVideoChecksPerUpload();
+        interval = Math.max(ytProperties.getVideoCheckMinMinutes(),
+            Math.min(ytProperties.getVideoCheckMaxHours() * 60L, interval));
+
+        DateTime earliest = now.plusMinutes((int) interval);
+        DateTime slotted = earliest.withMinuteOfHour(minuteOf(chan.getId())).withSecondOfMinute(0).withMillisOfSecond(0);
+        return slotted.isBefore(earliest) ? slotted.plusHours(1) : slotted;
+    }
+
+    /**
+     * @return the minute of the hour the channel's checks fall on
+     */
+    public static int minuteOf(String channelId) {
+        return Math.floorMod(channelId.hashCode(), 60);
+    }
+}
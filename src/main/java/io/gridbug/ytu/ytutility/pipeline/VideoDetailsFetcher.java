@@ -0,0 +1,234 @@
+package io.gridbug.ytu.ytutility.pipeline;
+
+import com.google.api.services.youtube.YouTube;
+import com.google.api.services.youtube.model.Video;
+import com.google.api.services.youtube.model.VideoListResponse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.stereotype.Component;
+
+import io.gridbug.ytu.ytutility.configuration.ApiBatch;
+import io.gridbug.ytu.ytutility.configuration.YTUProperties;
+import io.gridbug.ytu.ytutility.dao.BulkIngestDao;
+import io.gridbug.ytu.ytutility.storage.ChannelSegmentStore;
+import io.gridbug.ytu.ytutility.storage.VideoStateIndex;
+
+/**
+ * fetches video details for every listed video that the video state index has no details for yet.
+ * ids are sent to videos.list in groups of up to 50, so a run costs one quota
+ * unit per 50 videos instead of one per video, and those calls go out together in multipart batch
+ * requests. each batch's results are written to the videos table in one batched statement. a video
+ * the api doesn't return (private, deleted...) is asked for again on the next runs, up to
+ * ytu.core.detailsMaxMisses times, and is then marked unavailable in the video state index
+ */
+@Component
+public class VideoDetailsFetcher {
+
+    private static final Logger LOGGER = Logger.getLogger(VideoDetailsFetcher.class.getName());
+
+    /** the most ids the videos endpoint accepts in one call */
+    public static final int MAX_IDS_PER_CALL = 50;
+
+    @Autowired
+    private DescriptorStore store;
+
+    @Autowired
+    private VideoStateIndex videoIndex;
+
+    @Autowired
+    private ChannelSegmentStore channelData;
+
+    @Autowired
+    private BulkIngestDao bulkdao;
+
+    @Autowired
+    private YTUProperties ytProperties;
+
+    /**
+     * collects the pending video ids, fetches their details in batches and writes a details record and
+     * a video fetch descriptor for each video returned. the videos.list calls go out together in
+     * multipart batch requests of ytu.core.apiBatchMaxParts calls
+     *
+     * @return one outcome per pending video
+     */
+    public List<Boolean> fetchMissingDetails(YouTube youtube) throws IOException {
+        long start = System.nanoTime();
+        Map<String, String> pending = findPendingVideos();
+        LOGGER.log(Level.INFO, "fetch-video-details | " + pending.size() + " videos without details");
+
+        List<String> ids = new ArrayList<>(pending.keySet());
+        List<List<String>> batches = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i += MAX_IDS_PER_CALL) {
+            batches.add(ids.subList(i, Math.min(i + MAX_IDS_PER_CALL, ids.size())));
+        }
+
+        // one batch request's worth of calls at a time, written before the next is sent, so a big
+        // backlog doesn't sit in memory as responses
+        List<Boolean> outcomes = new ArrayList<>();
+        int fetched = 0;
+        int parts = ytProperties.getApiBatchMaxParts();
+        ApiBatch requests = new ApiBatch(youtube, parts);
+        for (int first = 0; first < batches.size(); first += parts) {
+            List<List<String>> chunk = batches.subList(first, Math.min(first + parts, batches.size()));
+            List<VideoListResponse> responses = new ArrayList<>(Collections.nCopies(chunk.size(), null));
+            for (int b = 0; b < chunk.size(); b++) {
+                int index = b;
+                requests.queue(detailsRequest(youtube, chunk.get(b)), new ApiBatch.Callback<VideoListResponse>() {
+                    @Override
+                    public void onSuccess(VideoListResponse response) {
+                        responses.set(index, response);
+                    }
+
+                    @Override
+                    public void onFailure(IOException error) {
+                        LOGGER.log(Level.WARNING, "fetch-video-details | io exception on batch: " + chunk.get(index), error);
+                    }
+                });
+            }
+            requests.flush();
+
+            for (int b = 0; b < chunk.size(); b++) {
+                List<Boolean> batchOutcomes = writeBatch(chunk.get(b), responses.get(b), pending);
+                fetched += batchOutcomes.stream().filter(Boolean::booleanValue).count();
+                outcomes.addAll(batchOutcomes);
+            }
+        }
+
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+        LOGGER.log(Level.INFO, String.format("fetch-video-details | fetched %d of %d videos in %d calls, %d batch "
+            + "requests, %.1fs; %.2f videos/s, %.2f videos/quota unit", fetched, ids.size(), batches.size(),
+            requests.getBatchesSent(), seconds, fetched / seconds,
+            batches.isEmpty() ? 0.0 : (double) fetched / batches.size()));
+        return outcomes;
+    }
+
+    /**
+     * @return video id -> channel id for every listed video the index has no details for and that
+     * hasn't been marked unavailable
+     */
+    public Map<String, String> findPendingVideos() {
+        return videoIndex.find(VideoStateIndex.LISTED, VideoStateIndex.DETAILS_FETCHED | VideoStateIndex.UNAVAILABLE);
+    }
+
+    /**
+     * fetches one videos.list call's worth of ids (at most {@link #MAX_IDS_PER_CALL}) and writes the
+     * details record and fetch descriptor for each video returned
+     *
+     * @param pending video id -> channel id for at least every id in the batch
+     * @return one outcome per id in the batch, in order
+     */
+    public List<Boolean> fetchBatch(YouTube youtube, List<String> batch, Map<String, String> pending) {
+        VideoListResponse response = null;
+        try {
+            response = detailsRequest(youtube, batch).execute();
+        }
+        catch (IOException ioe) {
+            LOGGER.log(Level.WARNING, "fetch-video-details | io exception on batch: " + batch, ioe);
+        }
+        return writeBatch(batch, response, pending);
+    }
+
+    private YouTube.Videos.List detailsRequest(YouTube youtube, List<String> batch) throws IOException {
+        YouTube.Videos.List request = youtube.videos().list("snippet,contentDetails,status,statistics");
+        request.setId(String.join(",", batch));
+        request.setMaxResults((long) batch.size());
+        return request;
+    }
+
+    /**
+     * writes the details record, fetch descriptor and video row for each video in the response. a
+     * video that has already been downloaded counts as fetched but gets no fetch descriptor
+     *
+     * @param response the batch's videos.list response, or null if the call failed
+     */
+    private List<Boolean> writeBatch(List<String> batch, VideoListResponse response, Map<String, String> pending) {
+        List<Boolean> outcomes = new ArrayList<>();
+        if (response == null) {
+            batch.forEach(id -> outcomes.add(false));
+            return outcomes;
+        }
+        Map<String, Video> videos = new LinkedHashMap<>();
+        if (response.getItems() != null) response.getItems().forEach(video -> videos.put(video.getId(), video));
+
+        // map every video first, so one that can't be mapped isn't written anywhere
+        Map<String, io.gridbug.ytu.ytutility.model.Video> mapped = new LinkedHashMap<>();
+        Map<String, Map<String, Video>> byChannel = new LinkedHashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String id : batch) {
+            Video video = videos.get(id);
+            if (video == null) {
+                // private, deleted or otherwise unavailable; retried next run until it's missed too often
+                LOGGER.log(Level.INFO, "fetch-video-details | no details returned for: " + id);
+                missing.add(id);
+                continue;
+            }
+            try {
+                mapped.put(id, VideoRows.fromDetails(video));
+                byChannel.computeIfAbsent(pending.get(id), channel -> new LinkedHashMap<>()).put(id, video);
+            }
+            catch (RuntimeException re) {
+                LOGGER.log(Level.WARNING, "fetch-video-details | malformed details for: " + id, re);
+            }
+        }
+
+        // append the details to each channel's segment in one write, then the fetch descriptors; a
+        // video that's already in the download archive gets no descriptor and goes straight to downloaded
+        Map<String, String> fetched = new LinkedHashMap<>();
+        Map<String, String> archived = new LinkedHashMap<>();
+        List<io.gridbug.ytu.ytutility.model.Video> rows = new ArrayList<>();
+        for (Map.Entry<String, Map<String, Video>> channel : byChannel.entrySet()) {
+            try {
+                channelData.putAll(channel.getKey(), ChannelSegmentStore.Kind.DETAILS, channel.getValue());
+            }
+            catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "fetch-video-details | unable to write details for: " + channel.getValue().keySet(), e);
+                continue;
+            }
+            for (String id : channel.getValue().keySet()) {
+                try {
+                    if (!store.writeVideoFetchDescriptor(id)) {
+                        mapped.get(id).setDownloadState(io.gridbug.ytu.ytutility.model.Video.DownloadState.DOWNLOADED);
+                        archived.put(id, channel.getKey());
+                    }
+                    fetched.put(id, channel.getKey());
+                    rows.add(mapped.get(id));
+                }
+                catch (IOException ioe) {
+                    LOGGER.log(Level.WARNING, "fetch-video-details | unable to write the fetch descriptor for: " + id, ioe);
+                }
+            }
+        }
+        batch.forEach(id -> outcomes.add(fetched.containsKey(id)));
+
+        try {
+            bulkdao.upsertVideoDetails(rows);
+        }
+        catch (DataAccessException dae) {
+            LOGGER.log(Level.WARNING, "fetch-video-details | unable to write video rows for: " + fetched.keySet(), dae);
+        }
+        try {
+            videoIndex.markAll(fetched, VideoStateIndex.DETAILS_FETCHED | VideoStateIndex.DOWNLOAD_QUEUED);
+            videoIndex.markAll(archived, VideoStateIndex.DOWNLOADED);
+            Map<String, String> unavailable = videoIndex.markMissed(missing, ytProperties.getDetailsMaxMisses());
+            if (!unavailable.isEmpty()) {
+                LOGGER.log(Level.INFO, "fetch-video-details | no details after " + ytProperties.getDetailsMaxMisses() +
+                    " tries, marked unavailable: " + unavailable.keySet());
+            }
+        }
+        catch (IOException ioe) {
+            // the details are written, so the worst case is refetching this batch next run
+            LOGGER.log(Level.WARNING, "fetch-video-details | io exception updating the video index for: " + fetched.keySet(), ioe);
+        }
+        return outcomes;
+    }
+}
@@ -0,0 +1,75 @@
+package io.gridbug.ytu.ytutility.pipeline;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.youtube.model.PlaylistItem;
+import com.google.api.services.youtube.model.Thumbnail;
+import com.google.api.services.youtube.model.ThumbnailDetails;
+
+import java.math.BigInteger;
+
+import io.gridbug.ytu.ytutility.model.Video;
+
+/**
+ * maps the api's playlist item and video resources onto rows of the videos table
+ */
+final class VideoRows {
+
+    private VideoRows() {}
+
+    /**
+     * the columns a playlist entry can fill: ids, title, description, publish time and thumbnail
+     */
+    static Video fromPlaylistItem(PlaylistItem item) {
+        Video video = new Video();
+        video.setId(item.getSnippet().getResourceId().getVideoId());
+        video.setChannelId(item.getSnippet().getChannelId());
+        video.setTitle(item.getSnippet().getTitle());
+        video.setDescription(item.getSnippet().getDescription());
+        // snippet.publishedAt is when the video was added to the playlist, which for an uploads
+        // playlist is near enough when it went up if the content details don't say
+        DateTime published = item.getContentDetails() != null && item.getContentDetails().getVideoPublishedAt() != null
+            ? item.getContentDetails().getVideoPublishedAt() : item.getSnippet().getPublishedAt();
+        video.setPublishedAt(toJoda(published));
+        video.setThumbnailUrl(bestThumbnail(item.getSnippet().getThumbnails()));
+        return video;
+    }
+
+    /**
+     * every column the details stage fills; statistics the channel has hidden come back as 0
+     */
+    static Video fromDetails(com.google.api.services.youtube.model.Video details) {
+        Video video = new Video();
+        video.setId(details.getId());
+        video.setChannelId(details.getSnippet().getChannelId());
+        video.setTitle(details.getSnippet().getTitle());
+        video.setDescription(details.getSnippet().getDescription());
+        video.setPublishedAt(toJoda(details.getSnippet().getPublishedAt()));
+        video.setThumbnailUrl(bestThumbnail(details.getSnippet().getThumbnails()));
+        if (details.getContentDetails() != null) video.setDuration(details.getContentDetails().getDuration());
+        if (details.getStatus() != null) video.setPrivacyStatus(details.getStatus().getPrivacyStatus());
+        if (details.getStatistics() != null) {
+            video.setViewCount(count(details.getStatistics().getViewCount()));
+            video.setLikeCount(count(details.getStatistics().getLikeCount()));
+            video.setCommentCount(count(details.getStatistics().getCommentCount()));
+        }
+        video.setDetailsFetchedOn(org.joda.time.DateTime.now());
+        video.setDownloadState(Video.DownloadState.QUEUED);
+        return video;
+    }
+
+    private static org.joda.time.DateTime toJoda(DateTime dateTime) {
+        return dateTime == null ? null : new org.joda.time.DateTime(dateTime.getValue());
+    }
+
+    private static long count(BigInteger count) {
+        return count == null ? 0L : count.longValue();
+    }
+
+    private static String bestThumbnail(ThumbnailDetails thumbnails) {
+        if (thumbnails == null) return null;
+        for (Thumbnail thumbnail : new Thumbnail[] { thumbnails.getHigh(), thumbnails.getMedium(), thumbnails.getDefault() }) {
+            if (thumbnail != null) return thumbnail.getUrl();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,512 @@
+package io.gridbug.ytu.ytutility.storage;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+/**
+ * the history of completed pipeline actions (channel checks, uploads scrapes), one record each.
+ *
+ * records are appended as json lines to a segment per utc day (actions-2018-07-21.log). once the day
+ * is over the segment is sealed: gzipped to actions-2018-07-21.log.gz next to a small index file
+ * (.idx) holding its record count, the range of times it covers and the channel ids in it. the sealed
+ * days of a finished month are merged into one segment for the month, and segments that ended
+ * before the retention period are deleted. a lookup only decompresses the segments whose index
+ * covers the time range asked for and lists the channel.
+ *
+ * on open, a line torn by a crash at the end of an unsealed segment is truncated.
+ */
+public class ActionHistory implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(ActionHistory.class.getName());
+
+    private static final String SEGMENT_PREFIX = "actions-";
+    private static final String LOG_SUFFIX = ".log";
+    private static final String SEALED_SUFFIX = ".log.gz";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final DateTimeFormatter DAY = DateTimeFormat.forPattern("yyyy-MM-dd").withZoneUTC();
+    private static final DateTimeFormatter MONTH = DateTimeFormat.forPattern("yyyy-MM").withZoneUTC();
+
+    private final Path dir;
+    private final JsonCodec codec;
+
+    /** segments by period, a day (2018-07-21) or a month (2018-07) */
+    private final TreeMap<String, Segment> segments = new TreeMap<>();
+
+    private Segment active;
+    private FileChannel activeChannel;
+
+    public ActionHistory(Path dir, JsonCodec codec) throws IOException {
+        this.dir = dir;
+        this.codec = codec;
+        Files.createDirectories(dir);
+
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(dir)) {
+            files = listing.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            if (!name.startsWith(SEGMENT_PREFIX)) continue;
+            if (name.endsWith(TMP_SUFFIX)) {
+                // left by a seal or merge that didn't finish; its inputs are still in place
+                Files.delete(file);
+                continue;
+            }
+            boolean sealed = name.endsWith(SEALED_SUFFIX);
+            if (!sealed && !name.endsWith(LOG_SUFFIX)) continue;
+            String period = name.substring(SEGMENT_PREFIX.length(), name.length() - (sealed ? SEALED_SUFFIX : LOG_SUFFIX).length());
+            if (startOf(period) == null) {
+                LOGGER.log(Level.WARNING, "action-history | ignoring " + file + ", not a segment name");
+                continue;
+            }
+            if (!sealed) recoverTail(file);
+            Segment segment = new Segment(period, file, sealed);
+            segment.index = sealed ? readIndex(segment) : scanIndex(segment);
+            segments.put(period, segment);
+        }
+        dropMergedDays();
+        LOGGER.log(Level.INFO, "action-history | loaded " + segments.size() + " segments, " + getRecordCount() +
+            " records from " + dir);
+    }
+
+    /**
+     * appends the records to today's segment and syncs it once for the whole batch
+     */
+    public synchronized void append(List<Record> records) throws IOException {
+        if (records.isEmpty()) return;
+        DateTime now = DateTime.now(DateTimeZone.UTC);
+        Segment segment = activeSegment(DAY.print(now));
+
+        ByteArrayOutputStream lines = new ByteArrayOutputStream();
+        for (Record record : records) {
+            if (record.getPerformedOn() == null) record.setPerformedOn(now);
+            lines.write(codec.write(record));
+            lines.write('\n');
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(lines.toByteArray());
+        while (buffer.hasRemaining()) activeChannel.write(buffer);
+        activeChannel.force(false);
+        records.forEach(segment.index::add);
+    }
+
+    public void append(Record record) throws IOException {
+        append(Collections.singletonList(record));
+    }
+
+    /**
+     * @param channelId the channel to find records for, or null for every channel
+     * @param from the earliest time performed, inclusive; null for no lower bound
+     * @param to the latest time performed, exclusive; null for no upper bound
+     * @return the matching records, oldest first
+     */
+    public synchronized List<Record> find(String channelId, DateTime from, DateTime to) throws IOException {
+        long fromMillis = from == null ? Long.MIN_VALUE : from.getMillis();
+        long toMillis = to == null ? Long.MAX_VALUE : to.getMillis();
+        List<Record> found = new ArrayList<>();
+        for (Segment segment : segments.values()) {
+            SegmentIndex index = segment.index;
+            if (index.getRecords() == 0 || index.getLastMillis() < fromMillis || index.getFirstMillis() >= toMillis) continue;
+            if (channelId != null && !index.getChannels().contains(channelId)) continue;
+            scan(segment, record -> {
+                long performed = record.getPerformedOn().getMillis();
+                if (performed < fromMillis || performed >= toMillis) return;
+                if (channelId == null || channelId.equals(record.getChannelId())) found.add(record);
+            });
+        }
+        found.sort(Comparator.comparing(record -> record.getPerformedOn().getMillis()));
+        return found;
+    }
+
+    /**
+     * seals the segments of days before today, merges the sealed days of months before this one into
+     * a segment per month, and deletes segments that ended more than retentionDays ago (none if
+     * retentionDays is 0)
+     */
+    public synchronized void compact(int retentionDays) throws IOException {
+        DateTime now = DateTime.now(DateTimeZone.UTC);
+        String today = DAY.print(now);
+        String thisMonth = MONTH.print(now);
+
+        int sealed = 0;
+        for (Segment segment : new ArrayList<>(segments.values())) {
+            if (segment.sealed || segment.period.equals(today)) continue;
+            seal(segment);
+            sealed++;
+        }
+
+        Map<String, List<Segment>> finishedMonths = new TreeMap<>();
+        for (Segment segment : segments.values()) {
+            if (!segment.isDay() || !segment.sealed) continue;
+            String month = segment.period.substring(0, 7);
+            if (!month.equals(thisMonth)) finishedMonths.computeIfAbsent(month, m -> new ArrayList<>()).add(segment);
+        }
+        int merged = 0;
+        for (Map.Entry<String, List<Segment>> month : finishedMonths.entrySet()) {
+            merge(month.getKey(), month.getValue());
+            merged += month.getValue().size();
+        }
+
+        int expired = 0;
+        if (retentionDays > 0) {
+            DateTime cutoff = now.minusDays(retentionDays);
+            for (Segment segment : new ArrayList<>(segments.values())) {
+                if (!segment.sealed || endOf(segment.period).isAfter(cutoff)) continue;
+                delete(segment);
+                expired++;
+            }
+        }
+        LOGGER.log(Level.INFO, "action-history | compacted: " + sealed + " days sealed, " + merged + " merged into months, " +
+            expired + " segments expired; " + segments.size() + " segments, " + getRecordCount() + " records");
+    }
+
+    public synchronized int getSegmentCount() { return segments.size(); }
+
+    public synchronized long getRecordCount() {
+        long records = 0;
+        for (Segment segment : segments.values()) records += segment.index.getRecords();
+        return records;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (activeChannel != null) activeChannel.close();
+        activeChannel = null;
+        active = null;
+    }
+
+    private Segment activeSegment(String today) throws IOException {
+        if (active != null && active.period.equals(today)) return active;
+        if (activeChannel != null) activeChannel.close();
+
+        Segment segment = segments.get(today);
+        if (segment == null || segment.sealed) {
+            // a day sealed early (only if the clock went back) gets a fresh log; it's sealed over the
+            // old one's records on the next compaction
+            segment = new Segment(today, segmentPath(today, false), false);
+            segment.index = segments.containsKey(today) ? segments.get(today).index : new SegmentIndex();
+            segments.put(today, segment);
+        }
+        activeChannel = FileChannel.open(segment.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.APPEND);
+        active = segment;
+        return segment;
+    }
+
+    /**
+     * gzips an unsealed day and writes its index; the log is only deleted once both are in place
+     */
+    private void seal(Segment segment) throws IOException {
+        if (segment == active) {
+            activeChannel.close();
+            activeChannel = null;
+            active = null;
+        }
+        Path sealedFile = segmentPath(segment.period, true);
+        Path tmp = Paths.get(sealedFile + TMP_SUFFIX);
+        try (InputStream in = Files.newInputStream(segment.file);
+             OutputStream out = new GZIPOutputStream(Files.newOutputStream(tmp), 64 * 1024)) {
+            copy(in, out);
+        }
+        if (Files.exists(sealedFile)) {
+            // the clock went back after the day was sealed; keep both lots of records
+            Path appended = Paths.get(tmp + ".cat");
+            try (OutputStream out = Files.newOutputStream(appended)) {
+                Files.copy(sealedFile, out);
+                Files.copy(tmp, out);
+            }
+            Files.move(appended, tmp, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.move(tmp, sealedFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        Segment sealed = new Segment(segment.period, sealedFile, true);
+        sealed.index = segment.index;
+        writeIndex(sealed);
+        Files.delete(segment.file);
+        segments.put(segment.period, sealed);
+    }
+
+    /**
+     * concatenates the sealed days (and the month's existing segment, if it has one) into the month's
+     * segment. gzip members can simply be concatenated, so nothing is decompressed. the days merged
+     * are listed in the month's index, so a crash before they're deleted doesn't merge them twice
+     */
+    private void merge(String month, List<Segment> days) throws IOException {
+        Segment existing = segments.get(month);
+        Path monthFile = segmentPath(month, true);
+        Path tmp = Paths.get(monthFile + TMP_SUFFIX);
+
+        SegmentIndex index = new SegmentIndex();
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            if (existing != null) {
+                Files.copy(existing.file, out);
+                index.addAll(existing.index);
+            }
+            for (Segment day : days) {
+                Files.copy(day.file, out);
+                index.addAll(day.index);
+                index.getMerged().add(day.period);
+            }
+        }
+        Files.move(tmp, monthFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        Segment merged = new Segment(month, monthFile, true);
+        merged.index = index;
+        writeIndex(merged);
+        segments.put(month, merged);
+        for (Segment day : days) delete(day);
+    }
+
+    /**
+     * deletes the day segments a month's index says are already merged into it
+     */
+    private void dropMergedDays() throws IOException {
+        for (Segment segment : new ArrayList<>(segments.values())) {
+            if (segment.isDay()) continue;
+            for (String day : segment.index.getMerged()) {
+                Segment leftover = segments.get(day);
+                if (leftover != null && leftover.sealed) delete(leftover);
+            }
+        }
+    }
+
+    private void delete(Segment segment) throws IOException {
+        Files.deleteIfExists(segment.file);
+        Files.deleteIfExists(indexPath(segment.period));
+        segments.remove(segment.period);
+    }
+
+    private void scan(Segment segment, Consumer<Record> action) throws IOException {
+        InputStream raw = Files.newInputStream(segment.file);
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                segment.sealed ? new GZIPInputStream(raw, 64 * 1024) : raw, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                action.accept(codec.read(line.getBytes(StandardCharsets.UTF_8), Record.class));
+            }
+        }
+    }
+
+    private SegmentIndex scanIndex(Segment segment) throws IOException {
+        SegmentIndex index = new SegmentIndex();
+        scan(segment, index::add);
+        return index;
+    }
+
+    private SegmentIndex readIndex(Segment segment) throws IOException {
+        Path path = indexPath(segment.period);
+        if (Files.exists(path)) {
+            try {
+                return codec.read(path, SegmentIndex.class);
+            }
+            catch (IOException ioe) {
+                LOGGER.log(Level.WARNING, "action-history | unreadable index " + path + ", rebuilding it", ioe);
+            }
+        }
+        SegmentIndex index = scanIndex(segment);
+        writeIndex(segment, index);
+        return index;
+    }
+
+    private void writeIndex(Segment segment) throws IOException {
+        writeIndex(segment, segment.index);
+    }
+
+    private void writeIndex(Segment segment, SegmentIndex index) throws IOException {
+        Path path = indexPath(segment.period);
+        Path tmp = Paths.get(path + TMP_SUFFIX);
+        codec.write(index, tmp);
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * truncates anything after the last complete line
+     */
+    private static void recoverTail(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            ByteBuffer one = ByteBuffer.allocate(1);
+            long end = size;
+            while (end > 0) {
+                one.clear();
+                channel.read(one, end - 1);
+                if (one.get(0) == '\n') break;
+                end--;
+            }
+            if (end < size) {
+                LOGGER.log(Level.WARNING, "action-history | truncating incomplete record at the end of " + file);
+                channel.truncate(end);
+            }
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+    }
+
+    private Path segmentPath(String period, boolean sealed) {
+        return dir.resolve(SEGMENT_PREFIX + period + (sealed ? SEALED_SUFFIX : LOG_SUFFIX));
+    }
+
+    private Path indexPath(String period) {
+        return dir.resolve(SEGMENT_PREFIX + period + INDEX_SUFFIX);
+    }
+
+    /**
+     * @return the start of a day or month period, or null if it's neither
+     */
+    private static DateTime startOf(String period) {
+        try {
+            if (period.length() == 10) return DAY.parseDateTime(period);
+            if (period.length() == 7) return MONTH.parseDateTime(period);
+        }
+        catch (IllegalArgumentException iae) {
+            // not a period
+        }
+        return null;
+    }
+
+    private static DateTime endOf(String period) {
+        DateTime start = startOf(period);
+        return period.length() == 10 ? start.plusDays(1) : start.plusMonths(1);
+    }
+
+    private static final class Segment {
+        private final String period;
+        private final Path file;
+        private final boolean sealed;
+        private SegmentIndex index;
+
+        Segment(String period, Path file, boolean sealed) {
+            this.period = period;
+            this.file = file;
+            this.sealed = sealed;
+        }
+
+        boolean isDay() { return period.length() == 10; }
+    }
+
+    /**
+     * what a segment holds, kept next to it so lookups can skip it without decompressing it
+     */
+    static final class SegmentIndex {
+        private long records;
+        private long firstMillis = Long.MAX_VALUE;
+        private long lastMillis = Long.MIN_VALUE;
+        private Set<String> channels = new TreeSet<>();
+        private List<String> merged = new ArrayList<>();
+
+        void add(Record record) {
+            records++;
+            long performed = record.getPerformedOn().getMillis();
+            firstMillis = Math.min(firstMillis, performed);
+            lastMillis = Math.max(lastMillis, performed);
+            if (record.getChannelId() != null) channels.add(record.getChannelId());
+        }
+
+        void addAll(SegmentIndex other) {
+            records += other.records;
+            firstMillis = Math.min(firstMillis, other.firstMillis);
+            lastMillis = Math.max(lastMillis, other.lastMillis);
+            channels.addAll(other.channels);
+            merged.addAll(other.merged);
+        }
+
+        public long getRecords() { return records; }
+        public void setRecords(long records) { this.records = records; }
+
+        public long getFirstMillis() { return firstMillis; }
+        public void setFirstMillis(long firstMillis) { this.firstMillis = firstMillis; }
+
+        public long getLastMillis() { return lastMillis; }
+        public void setLastMillis(long lastMillis) { this.lastMillis = lastMillis; }
+
+        public Set<String> getChannels() { return channels; }
+        public void setChannels(Set<String> channels) { this.channels = channels; }
+
+        public List<String> getMerged() { return merged; }
+        public void setMerged(List<String> merged) { this.merged = merged; }
+    }
+
+    /**
+     * one completed action
+     */
+    public static class Record {
+        public static final String CHANNEL_CHECK = "channel-check";
+        public static final String VIDEO_FOR_CHANNEL_CHECK = "video-for-channel-check";
+
+        private String action;
+        private String channelId;
+        private DateTime requestedOn;
+        private DateTime performedOn;
+        private boolean outcome;
+        private String outcomeMessage;
+
+        public Record() {}
+
+        public Record(String action, String channelId, DateTime requestedOn, DateTime performedOn,
+                boolean outcome, String outcomeMessage) {
+            this.action = action;
+            this.channelId = channelId;
+            this.requestedOn = requestedOn;
+            this.performedOn = performedOn;
+            this.outcome = outcome;
+            this.outcomeMessage = outcomeMessage;
+        }
+
+        public String getAction() { return action; }
+        public void setAction(String action) { this.action = action; }
+
+        public String getChannelId() { return channelId; }
+        public void setChannelId(String channelId) { this.channelId = channelId; }
+
+        public DateTime getRequestedOn() { return requestedOn; }
+        public void setRequestedOn(DateTime requestedOn) { this.requestedOn = requestedOn; }
+
+        public DateTime getPerformedOn() { return performedOn; }
+        public void setPerformedOn(DateTime performedOn) { this.performedOn = performedOn; }
+
+        public boolean getOutcome() { return outcome; }
+        public void setOutcome(boolean outcome) { this.outcome = outcome; }
+
+        public String getOutcomeMessage() { return outcomeMessage; }
+        public void setOutcomeMessage(String outcomeMessage) { this.outcomeMessage = outcomeMessage; }
+    }
+}
@@ -0,0 +1,595 @@
+package io.gridbug.ytu.ytutility.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * per-channel storage for the api records kept about each video: its uploads playlist item and its
+ * details. replaces the two small json files per video in the channel data directory with one
+ * segment file per channel.
+ *
+ * a channel's records are appended to channelId.seg, each framed as
+ * [length][crc32][kind][video id length][video id][deflated json], and every append also adds a
+ * fixed-width entry ([kind][video id][offset]) to channelId.idx, so a record is read by video id with
+ * one positioned read. writing a record again appends a new copy and the index points at the newest;
+ * a channel's segment is rewritten without the superseded copies once they make up most of it.
+ *
+ * the index is a shortcut, not the source of truth: when it's missing, torn or behind its segment
+ * (a crash between the two appends) the missing entries are recovered by scanning the segment, and a
+ * segment record torn by a crash is truncated. indexes are loaded per channel on first use, and
+ * those of the most recently used channels are kept in memory.
+ */
+public class ChannelSegmentStore implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(ChannelSegmentStore.class.getName());
+
+    public enum Kind {
+        PLAYLIST_ITEM((byte) 1),
+        DETAILS((byte) 2);
+
+        private final byte code;
+
+        Kind(byte code) {
+            this.code = code;
+        }
+
+        static Kind of(byte code) {
+            for (Kind kind : values()) {
+                if (kind.code == code) return kind;
+            }
+            return null;
+        }
+    }
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String DETAILS_PREFIX = "details-";
+    private static final String JSON_SUFFIX = ".json";
+
+    private static final int HEADER_BYTES = 8;
+    private static final int VIDEO_ID_BYTES = 16;
+    private static final int INDEX_ENTRY_BYTES = 1 + VIDEO_ID_BYTES + 8;
+    private static final int MAX_LOADED_CHANNELS = 256;
+    private static final int MIGRATION_BATCH = 1000;
+
+    private final Path dir;
+    private final JsonCodec codec;
+
+    private final Map<String, ChannelIndex> loaded = new LinkedHashMap<String, ChannelIndex>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ChannelIndex> eldest) {
+            return size() > MAX_LOADED_CHANNELS;
+        }
+    };
+
+    public ChannelSegmentStore(Path dir, JsonCodec codec) throws IOException {
+        this.dir = dir;
+        this.codec = codec;
+        Files.createDirectories(dir);
+    }
+
+    public void put(String channelId, Kind kind, String videoId, Object apiObject) throws IOException {
+        putAll(channelId, kind, Collections.singletonMap(videoId, apiObject));
+    }
+
+    /**
+     * appends the api objects (video id -> object) to the channel's segment, syncing once for the batch
+     */
+    public void putAll(String channelId, Kind kind, Map<String, ?> apiObjects) throws IOException {
+        Map<String, byte[]> json = new LinkedHashMap<>();
+        for (Map.Entry<String, ?> apiObject : apiObjects.entrySet()) {
+            json.put(apiObject.getKey(), codec.writeApiObject(apiObject.getValue()));
+        }
+        putRaw(channelId, kind, json);
+    }
+
+    /**
+     * @return the newest record of the kind for the video, or null if there isn't one
+     */
+    public <T> T get(String channelId, Kind kind, String videoId, Class<T> type) throws IOException {
+        byte[] json = getRaw(channelId, kind, videoId);
+        return json == null ? null : codec.readApiObject(json, type);
+    }
+
+    /**
+     * @return the json of the newest record of the kind for the video, or null if there isn't one
+     */
+    public synchronized byte[] getRaw(String channelId, Kind kind, String videoId) throws IOException {
+        ChannelIndex index = indexOf(channelId);
+        Long offset = index.offsets.get(key(kind, videoId));
+        if (offset == null) return null;
+        try (FileChannel segment = FileChannel.open(segmentPath(channelId), StandardOpenOption.READ)) {
+            Record record = readRecord(segment, offset, index.segmentBytes);
+            if (record == null) throw new IOException("corrupt record at offset " + offset + " in " + segmentPath(channelId));
+            return record.json();
+        }
+    }
+
+    public synchronized boolean contains(String channelId, Kind kind, String videoId) throws IOException {
+        return indexOf(channelId).offsets.containsKey(key(kind, videoId));
+    }
+
+    /**
+     * @return the ids of the videos the channel has a record of the kind for
+     */
+    public synchronized Set<String> videoIds(String channelId, Kind kind) throws IOException {
+        Set<String> ids = new LinkedHashSet<>();
+        for (String key : indexOf(channelId).offsets.keySet()) {
+            if (key.charAt(0) == kind.code) ids.add(key.substring(1));
+        }
+        return ids;
+    }
+
+    /**
+     * reads the channel's segment front to back, handing the newest record of the kind for each video
+     * to the action
+     *
+     * @return the number of records read
+     */
+    public synchronized <T> int forEach(String channelId, Kind kind, Class<T> type, BiConsumer<String, T> action)
+            throws IOException {
+        ChannelIndex index = indexOf(channelId);
+        if (index.segmentBytes == 0) return 0;
+        int records = 0;
+        try (FileChannel segment = FileChannel.open(segmentPath(channelId), StandardOpenOption.READ)) {
+            long position = 0;
+            while (position < index.segmentBytes) {
+                Record record = readRecord(segment, position, index.segmentBytes);
+                if (record == null) break;
+                Long newest = index.offsets.get(key(record.kind, record.videoId));
+                if (record.kind == kind && newest != null && newest == position) {
+                    action.accept(record.videoId, codec.readApiObject(record.json(), type));
+                    records++;
+                }
+                position = record.next;
+            }
+        }
+        return records;
+    }
+
+    /**
+     * @return the ids of every channel with a segment
+     */
+    public List<String> channelIds() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(file -> file.getFileName().toString())
+                .filter(name -> name.endsWith(SEGMENT_SUFFIX))
+                .map(name -> name.substring(0, name.length() - SEGMENT_SUFFIX.length()))
+                .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * moves every channel directory of the previous layout (videoId.json and details-videoId.json per
+     * video) under the store's directory into its channel's segment
+     *
+     * @return the number of files migrated
+     */
+    public int migrateLegacyLayout() throws IOException {
+        List<Path> channelDirs;
+        try (Stream<Path> entries = Files.list(dir)) {
+            channelDirs = entries.filter(Files::isDirectory).collect(Collectors.toList());
+        }
+        long start = System.nanoTime();
+        int files = 0;
+        int channels = 0;
+        for (Path channelDir : channelDirs) {
+            files += migrateDirectory(channelDir);
+            if (++channels % 100 == 0) {
+                LOGGER.log(Level.INFO, "channel-segments | migrated " + channels + " of " + channelDirs.size() + " channels");
+            }
+        }
+        LOGGER.log(Level.INFO, String.format("channel-segments | migrated %d files from %d channel directories in %.1fs",
+            files, channels, Math.max(System.nanoTime() - start, 1) / 1e9));
+        return files;
+    }
+
+    /**
+     * moves one channel directory of the previous layout into the channel's segment and deletes it.
+     * a directory a crash left half migrated can simply be migrated again; its records are written a
+     * second time and the newer copies win
+     *
+     * @return the number of files migrated
+     */
+    public int migrateDirectory(Path channelDir) throws IOException {
+        String channelId = channelDir.getFileName().toString();
+        List<Path> files;
+        try (Stream<Path> entries = Files.list(channelDir)) {
+            files = entries.filter(Files::isRegularFile)
+                .filter(file -> file.getFileName().toString().endsWith(JSON_SUFFIX))
+                .collect(Collectors.toList());
+        }
+
+        Map<String, byte[]> items = new LinkedHashMap<>();
+        Map<String, byte[]> details = new LinkedHashMap<>();
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            String id = name.substring(0, name.length() - JSON_SUFFIX.length());
+            if (id.startsWith(DETAILS_PREFIX)) details.put(id.substring(DETAILS_PREFIX.length()), Files.readAllBytes(file));
+            else items.put(id, Files.readAllBytes(file));
+
+            if (items.size() + details.size() >= MIGRATION_BATCH) {
+                putRaw(channelId, Kind.PLAYLIST_ITEM, items);
+                putRaw(channelId, Kind.DETAILS, details);
+                items.clear();
+                details.clear();
+            }
+        }
+        putRaw(channelId, Kind.PLAYLIST_ITEM, items);
+        putRaw(channelId, Kind.DETAILS, details);
+
+        for (Path file : files) Files.delete(file);
+        try {
+            Files.delete(channelDir);
+        }
+        catch (DirectoryNotEmptyException dnee) {
+            LOGGER.log(Level.WARNING, "channel-segments | left " + channelDir + " in place, it holds more than json records");
+        }
+        return files.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        loaded.clear();
+    }
+
+    private synchronized void putRaw(String channelId, Kind kind, Map<String, byte[]> records) throws IOException {
+        if (records.isEmpty()) return;
+        ChannelIndex index = indexOf(channelId);
+
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        ByteBuffer entries = ByteBuffer.allocate(INDEX_ENTRY_BYTES * records.size());
+        Map<String, Long> offsets = new HashMap<>();
+        long offset = index.segmentBytes;
+        for (Map.Entry<String, byte[]> record : records.entrySet()) {
+            byte[] frame = frame(kind, record.getKey(), record.getValue());
+            frames.write(frame);
+            writeEntry(entries, kind, record.getKey(), offset);
+            offsets.put(key(kind, record.getKey()), offset);
+            offset += frame.length;
+        }
+
+        try (FileChannel segment = FileChannel.open(segmentPath(channelId), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            writeFully(segment, ByteBuffer.wrap(frames.toByteArray()), index.segmentBytes);
+            segment.force(false);
+        }
+        // the index isn't synced; anything it loses in a crash is recovered from the segment
+        entries.flip();
+        try (FileChannel idx = FileChannel.open(indexPath(channelId), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            writeFully(idx, entries, index.entries * INDEX_ENTRY_BYTES);
+        }
+        index.segmentBytes = offset;
+        index.entries += records.size();
+        index.offsets.putAll(offsets);
+    }
+
+    private ChannelIndex indexOf(String channelId) throws IOException {
+        ChannelIndex index = loaded.get(channelId);
+        if (index == null) {
+            index = load(channelId);
+            loaded.put(channelId, index);
+        }
+        return index;
+    }
+
+    /**
+     * reads the channel's index, recovers whatever it's missing from the segment and compacts the
+     * segment if most of it is superseded records
+     */
+    private ChannelIndex load(String channelId) throws IOException {
+        ChannelIndex index = new ChannelIndex();
+        Path segmentPath = segmentPath(channelId);
+        Path indexPath = indexPath(channelId);
+        if (!Files.exists(segmentPath)) {
+            Files.deleteIfExists(indexPath);
+            return index;
+        }
+
+        try (FileChannel segment = FileChannel.open(segmentPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = segment.size();
+            long newest = readIndex(indexPath, size, index);
+
+            // the end of the newest indexed record is where recovery starts; an index that points at a
+            // record that isn't there is thrown away and rebuilt from the whole segment, and one with
+            // entries that couldn't be used is rewritten so appends don't land among them
+            long position = 0;
+            boolean rewrite = Files.exists(indexPath) && Files.size(indexPath) != index.entries * INDEX_ENTRY_BYTES;
+            if (newest >= 0) {
+                Record last = readRecord(segment, newest, size);
+                if (last == null) {
+                    index = new ChannelIndex();
+                    rewrite = true;
+                }
+                else position = last.next;
+            }
+
+            int recovered = 0;
+            while (position < size) {
+                Record record = readRecord(segment, position, size);
+                if (record == null) {
+                    LOGGER.log(Level.WARNING, "channel-segments | truncating incomplete record at " + position + " in " + segmentPath);
+                    segment.truncate(position);
+                    size = position;
+                    break;
+                }
+                index.offsets.put(key(record.kind, record.videoId), position);
+                recovered++;
+                position = record.next;
+            }
+            index.segmentBytes = size;
+            if (recovered > 0 || rewrite) {
+                if (recovered > 0) LOGGER.log(Level.INFO, "channel-segments | recovered " + recovered + " index entries for " + channelId);
+                writeIndex(channelId, index);
+            }
+        }
+
+        if (index.entries > 2L * index.offsets.size() + 64) compact(channelId, index);
+        return index;
+    }
+
+    /**
+     * reads the index file's entries into the index, stopping at the first that points past the
+     * segment
+     *
+     * @return the offset of the newest record indexed, or -1 if none
+     */
+    private long readIndex(Path indexPath, long segmentBytes, ChannelIndex index) throws IOException {
+        if (!Files.exists(indexPath)) return -1;
+        long newest = -1;
+        try (FileChannel idx = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+            long count = idx.size() / INDEX_ENTRY_BYTES;
+            ByteBuffer buffer = ByteBuffer.allocate((int) (count * INDEX_ENTRY_BYTES));
+            while (buffer.hasRemaining() && idx.read(buffer, buffer.position()) > 0) {
+                // keep reading until the buffer is full
+            }
+            buffer.flip();
+            byte[] videoId = new byte[VIDEO_ID_BYTES];
+            for (long i = 0; i < count; i++) {
+                Kind kind = Kind.of(buffer.get());
+                buffer.get(videoId);
+                long offset = buffer.getLong();
+                if (kind == null || offset >= segmentBytes) break;
+                index.offsets.put(key(kind, decode(videoId)), offset);
+                index.entries++;
+                newest = Math.max(newest, offset);
+            }
+        }
+        return newest;
+    }
+
+    /**
+     * replaces the index file with one entry per live record
+     */
+    private void writeIndex(String channelId, ChannelIndex index) throws IOException {
+        Path path = indexPath(channelId);
+        Path tmp = Paths.get(path + TMP_SUFFIX);
+        ByteBuffer entries = ByteBuffer.allocate(INDEX_ENTRY_BYTES * index.offsets.size());
+        for (Map.Entry<String, Long> entry : index.offsets.entrySet()) {
+            writeEntry(entries, Kind.of((byte) entry.getKey().charAt(0)), entry.getKey().substring(1), entry.getValue());
+        }
+        entries.flip();
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(out, entries, 0);
+            out.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        index.entries = index.offsets.size();
+    }
+
+    /**
+     * rewrites the channel's segment with only the newest record for each video
+     */
+    private void compact(String channelId, ChannelIndex index) throws IOException {
+        Path segmentPath = segmentPath(channelId);
+        Path tmp = Paths.get(segmentPath + TMP_SUFFIX);
+        List<Map.Entry<String, Long>> live = new ArrayList<>(index.offsets.entrySet());
+        live.sort(Map.Entry.comparingByValue());
+
+        Map<String, Long> offsets = new HashMap<>();
+        long position = 0;
+        try (FileChannel in = FileChannel.open(segmentPath, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                 StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Map.Entry<String, Long> entry : live) {
+                Record record = readRecord(in, entry.getValue(), index.segmentBytes);
+                if (record == null) continue;
+                ByteBuffer frame = ByteBuffer.allocate((int) (record.next - entry.getValue()));
+                while (frame.hasRemaining() && in.read(frame, entry.getValue() + frame.position()) > 0) {
+                    // keep reading until the frame is complete
+                }
+                frame.flip();
+                offsets.put(entry.getKey(), position);
+                position += writeFully(out, frame, position);
+            }
+            out.force(true);
+        }
+        Files.move(tmp, segmentPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        long before = index.segmentBytes;
+        index.offsets.clear();
+        index.offsets.putAll(offsets);
+        index.segmentBytes = position;
+        writeIndex(channelId, index);
+        LOGGER.log(Level.INFO, "channel-segments | compacted " + channelId + " from " + before + " to " + position + " bytes");
+    }
+
+    /**
+     * @return the record at the offset, or null if it's torn or fails its checksum
+     */
+    private static Record readRecord(FileChannel segment, long offset, long limit) throws IOException {
+        if (offset + HEADER_BYTES > limit) return null;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (header.hasRemaining() && segment.read(header, offset + header.position()) > 0) {
+            // keep reading until the header is complete
+        }
+        if (header.hasRemaining()) return null;
+        header.flip();
+        int length = header.getInt();
+        int crc = header.getInt();
+        if (length < 2 || offset + HEADER_BYTES + length > limit) return null;
+
+        ByteBuffer body = ByteBuffer.allocate(length);
+        while (body.hasRemaining() && segment.read(body, offset + HEADER_BYTES + body.position()) > 0) {
+            // keep reading until the body is complete
+        }
+        if (body.hasRemaining() || checksum(body.array()) != crc) return null;
+        body.flip();
+        Kind kind = Kind.of(body.get());
+        int idLength = body.get();
+        if (kind == null || idLength < 0 || idLength > body.remaining()) return null;
+        byte[] id = new byte[idLength];
+        body.get(id);
+        byte[] deflated = new byte[body.remaining()];
+        body.get(deflated);
+        return new Record(kind, new String(id, StandardCharsets.US_ASCII), deflated, offset + HEADER_BYTES + length);
+    }
+
+    private static byte[] frame(Kind kind, String videoId, byte[] json) {
+        byte[] id = videoId.getBytes(StandardCharsets.US_ASCII);
+        if (id.length > VIDEO_ID_BYTES) throw new IllegalArgumentException("video id longer than " + VIDEO_ID_BYTES + " bytes: " + videoId);
+        byte[] deflated = deflate(json);
+        ByteBuffer body = ByteBuffer.allocate(2 + id.length + deflated.length);
+        body.put(kind.code);
+        body.put((byte) id.length);
+        body.put(id);
+        body.put(deflated);
+
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_BYTES + body.capacity());
+        frame.putInt(body.capacity());
+        frame.putInt(checksum(body.array()));
+        frame.put(body.array());
+        return frame.array();
+    }
+
+    private static void writeEntry(ByteBuffer buffer, Kind kind, String videoId, long offset) {
+        byte[] id = videoId.getBytes(StandardCharsets.US_ASCII);
+        byte[] padded = new byte[VIDEO_ID_BYTES];
+        System.arraycopy(id, 0, padded, 0, Math.min(id.length, VIDEO_ID_BYTES));
+        buffer.put(kind.code);
+        buffer.put(padded);
+        buffer.putLong(offset);
+    }
+
+    private static String decode(byte[] bytes) {
+        int length = 0;
+        while (length < bytes.length && bytes[length] != 0) length++;
+        return new String(bytes, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    private static long writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long written = 0;
+        while (buffer.hasRemaining()) written += channel.write(buffer, position + written);
+        return written;
+    }
+
+    private static byte[] deflate(byte[] json) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(json);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(json.length / 2 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) out.write(buffer, 0, deflater.deflate(buffer));
+            return out.toByteArray();
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] deflated) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(deflated);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(deflated.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(buffer);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("truncated record");
+                }
+                out.write(buffer, 0, inflated);
+            }
+            return out.toByteArray();
+        }
+        catch (DataFormatException dfe) {
+            throw new IOException("corrupt record", dfe);
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    private static int checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+
+    private static String key(Kind kind, String videoId) {
+        return (char) kind.code + videoId;
+    }
+
+    private Path segmentPath(String channelId) {
+        return dir.resolve(channelId + SEGMENT_SUFFIX);
+    }
+
+    private Path indexPath(String channelId) {
+        return dir.resolve(channelId + INDEX_SUFFIX);
+    }
+
+    private static final class ChannelIndex {
+        /** kind code + video id -> offset of the newest record */
+        private final Map<String, Long> offsets = new HashMap<>();
+        /** entries in the index file, superseded ones included */
+        private long entries;
+        private long segmentBytes;
+    }
+
+    private static final class Record {
+        private final Kind kind;
+        private final String videoId;
+        private final byte[] deflated;
+        private final long next;
+
+        Record(Kind kind, String videoId, byte[] deflated, long next) {
+            this.kind = kind;
+            this.videoId = videoId;
+            this.deflated = deflated;
+            this.next = next;
+        }
+
+        byte[] json() throws IOException {
+            return inflate(deflated);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package io.gridbug.ytu.ytutility.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.joda.time.DateTime;
+
+/**
+ * every video that has been downloaded, with the file it was written to, its size and when it
+ * finished, so a video is never fetched twice: the details stage doesn't write a fetch descriptor for
+ * an archived video and the download engine checks again before starting youtube-dl.
+ *
+ * the archive lives in memory and is backed by a journal of json lines, one per download, synced
+ * once per batch. on open the journal is replayed, the last line for a video winning, a line torn
+ * by a crash is truncated, and the journal is rewritten without superseded lines once they make up
+ * most of it. {@link #rebuildFrom(Path)} adds whatever finished downloads are in the videos directory
+ * that the archive doesn't know about. a video stays archived after its file is moved or deleted.
+ */
+public class DownloadArchive implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(DownloadArchive.class.getName());
+
+    /** youtube-dl's output template starts every file name with the 11 character video id and a dash */
+    private static final int VIDEO_ID_LENGTH = 11;
+    private static final Pattern VIDEO_ID = Pattern.compile("[A-Za-z0-9_-]{11}");
+
+    /** what youtube-dl leaves while it works: partial files, and the per-format files it then merges */
+    private static final Pattern INCOMPLETE = Pattern.compile(".*(\\.part|\\.ytdl|\\.temp|\\.f\\d+\\.\\w+)$");
+
+    private final Path journal;
+    private final JsonCodec codec;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private FileChannel channel;
+    private long records;
+
+    public DownloadArchive(Path journal, JsonCodec codec) throws IOException {
+        this.journal = journal;
+        this.codec = codec;
+        Files.createDirectories(journal.getParent());
+        replay();
+        if (records > 2L * entries.size() + 1024) compact();
+        channel = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        LOGGER.log(Level.INFO, "download-archive | loaded " + entries.size() + " downloads from " + journal);
+    }
+
+    public boolean contains(String videoId) { return entries.containsKey(videoId); }
+
+    public Entry get(String videoId) { return entries.get(videoId); }
+
+    public Set<String> videoIds() { return Collections.unmodifiableSet(entries.keySet()); }
+
+    public int size() { return entries.size(); }
+
+    public void record(String videoId, Path file, long size) throws IOException {
+        recordAll(Collections.singletonList(new Entry(videoId, file.toString(), size, DateTime.now())));
+    }
+
+    /**
+     * archives the downloads and syncs the journal once for the whole batch
+     */
+    public synchronized void recordAll(List<Entry> downloads) throws IOException {
+        if (downloads.isEmpty()) return;
+        ByteArrayOutputStream lines = new ByteArrayOutputStream();
+        for (Entry download : downloads) {
+            lines.write(codec.write(download));
+            lines.write('\n');
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(lines.toByteArray());
+        while (buffer.hasRemaining()) channel.write(buffer);
+        channel.force(false);
+        downloads.forEach(download -> entries.put(download.getVideoId(), download));
+        records += downloads.size();
+    }
+
+    /**
+     * archives the finished downloads in the videos directory that aren't archived yet. the file
+     * names are matched against youtube-dl's output template and the matches sized on the common
+     * fork-join pool, so a big directory on a slow disk isn't statted one file at a time; where a
+     * video has several files the largest is taken as the download
+     *
+     * @return the number of videos added
+     */
+    public int rebuildFrom(Path videos) throws IOException {
+        if (!Files.isDirectory(videos)) return 0;
+        long start = System.nanoTime();
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(videos)) {
+            files = listing.collect(Collectors.toList());
+        }
+
+        List<Entry> found = files.parallelStream()
+            .filter(file -> {
+                String videoId = videoIdOf(file);
+                return videoId != null && !entries.containsKey(videoId);
+            })
+            .map(DownloadArchive::scan)
+            .filter(Objects::nonNull)
+            .collect(Collectors.toList());
+        Map<String, Entry> largest = new HashMap<>();
+        for (Entry entry : found) largest.merge(entry.getVideoId(), entry, (a, b) -> a.getSize() >= b.getSize() ? a : b);
+        recordAll(new ArrayList<>(largest.values()));
+
+        LOGGER.log(Level.INFO, String.format("download-archive | scanned %d files in %s in %.1fs, archived %d new downloads",
+            files.size(), videos, (System.nanoTime() - start) / 1e9, largest.size()));
+        return largest.size();
+    }
+
+    /**
+     * @return the video id a finished download's file name starts with, or null if the file isn't
+     * one youtube-dl finished writing
+     */
+    public static String videoIdOf(Path file) {
+        String name = file.getFileName().toString();
+        if (name.length() <= VIDEO_ID_LENGTH + 1 || name.charAt(VIDEO_ID_LENGTH) != '-') return null;
+        if (INCOMPLETE.matcher(name).matches()) return null;
+        String videoId = name.substring(0, VIDEO_ID_LENGTH);
+        return VIDEO_ID.matcher(videoId).matches() ? videoId : null;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private static Entry scan(Path file) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) return null;
+            return new Entry(videoIdOf(file), file.toString(), attributes.size(),
+                new DateTime(attributes.lastModifiedTime().toMillis()));
+        }
+        catch (IOException ioe) {
+            LOGGER.log(Level.FINE, "download-archive | unable to read the attributes of " + file, ioe);
+            return null;
+        }
+    }
+
+    private void replay() throws IOException {
+        if (!Files.exists(journal)) return;
+        byte[] bytes = Files.readAllBytes(journal);
+        int lineStart = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] != '\n') continue;
+            if (i > lineStart) {
+                try {
+                    Entry entry = codec.read(Arrays.copyOfRange(bytes, lineStart, i), Entry.class);
+                    entries.put(entry.getVideoId(), entry);
+                    records++;
+                }
+                catch (IOException ioe) {
+                    LOGGER.log(Level.WARNING, "download-archive | skipping unreadable line at byte " + lineStart + " of " + journal, ioe);
+                }
+            }
+            lineStart = i + 1;
+        }
+        if (lineStart < bytes.length) {
+            // a line torn by a crash; drop it so the next append starts on a line of its own
+            LOGGER.log(Level.WARNING, "download-archive | truncating incomplete line at the end of " + journal);
+            try (FileChannel out = FileChannel.open(journal, StandardOpenOption.WRITE)) {
+                out.truncate(lineStart);
+            }
+        }
+    }
+
+    private void compact() throws IOException {
+        Path tmp = Paths.get(journal + ".compact");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteArrayOutputStream lines = new ByteArrayOutputStream();
+            for (Entry entry : entries.values()) {
+                lines.write(codec.write(entry));
+                lines.write('\n');
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(lines.toByteArray());
+            while (buffer.hasRemaining()) out.write(buffer);
+            out.force(true);
+        }
+        Files.move(tmp, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        records = entries.size();
+        LOGGER.log(Level.INFO, "download-archive | compacted journal to " + records + " lines");
+    }
+
+    /**
+     * one finished download
+     */
+    public static class Entry {
+        private String videoId;
+        private String path;
+        private long size;
+        private DateTime completedOn;
+
+        public Entry() {}
+
+        public Entry(String videoId, String path, long size, DateTime completedOn) {
+            this.videoId = videoId;
+            this.path = path;
+            this.size = size;
+            this.completedOn = completedOn;
+        }
+
+        public String getVideoId() { return videoId; }
+        public void setVideoId(String videoId) { this.videoId = videoId; }
+
+        public String getPath() { return path; }
+        public void setPath(String path) { this.path = path; }
+
+        public long getSize() { return size; }
+        public void setSize(long size) { this.size = size; }
+
+        public DateTime getCompletedOn() { return completedOn; }
+        public void setCompletedOn(DateTime completedOn) { this.completedOn = completedOn; }
+    }
+}
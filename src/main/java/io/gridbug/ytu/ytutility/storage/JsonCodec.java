@@ -0,0 +1,264 @@
+package io.gridbug.ytu.ytutility.storage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonGenerator;
+import com.google.api.client.json.JsonParser;
+import com.google.api.client.json.JsonToken;
+import com.google.api.client.json.jackson2.JacksonFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * the one json layer for descriptors, queue records, ledgers and api payloads.
+ *
+ * a single ObjectMapper is configured once (modules registered up front) and the ObjectReader and
+ * ObjectWriter for each type are built on first use and cached; all three are immutable, so the codec
+ * can be shared by any number of threads. api objects go through google's jackson-backed factory,
+ * which is likewise shared. files are read and written through buffered file channels, and a list
+ * response can be streamed an item at a time instead of being parsed into one tree.
+ *
+ * every call is metered: documents, bytes, time, and the bytes allocated by the calling thread while
+ * it ran (where the jvm can tell us), so {@link #summary()} gives throughput and allocation per
+ * document for reads and writes.
+ */
+public class JsonCodec {
+
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final ObjectMapper mapper;
+    private final JsonFactory googleFactory = JacksonFactory.getDefaultInstance();
+
+    private final Map<Class<?>, ObjectReader> readers = new ConcurrentHashMap<>();
+    private final Map<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<>();
+
+    private final Meter reads = new Meter();
+    private final Meter writes = new Meter();
+
+    public JsonCodec() {
+        mapper = new ObjectMapper();
+        mapper.findAndRegisterModules();
+    }
+
+    public <T> T read(byte[] json, Class<T> type) throws IOException {
+        long start = System.nanoTime();
+        long allocated = allocatedBytes();
+        T value = readerFor(type).readValue(json);
+        reads.record(json.length, start, allocated);
+        return value;
+    }
+
+    public <T> T read(Path path, Class<T> type) throws IOException {
+        long start = System.nanoTime();
+        long allocated = allocatedBytes();
+        T value;
+        try (InputStream in = open(path)) {
+            value = readerFor(type).readValue(in);
+        }
+        reads.record(Files.size(path), start, allocated);
+        return value;
+    }
+
+    public byte[] write(Object value) throws IOException {
+        long start = System.nanoTime();
+        long allocated = allocatedBytes();
+        byte[] json = writerFor(value.getClass()).writeValueAsBytes(value);
+        writes.record(json.length, start, allocated);
+        return json;
+    }
+
+    public void write(Object value, Path path) throws IOException {
+        long start = System.nanoTime();
+        long allocated = allocatedBytes();
+        try (OutputStream out = create(path)) {
+            writerFor(value.getClass()).writeValue(out, value);
+        }
+        writes.record(Files.size(path), start, allocated);
+    }
+
+    /**
+     * reads a youtube api object (a GenericJson subclass) from a file
+     */
+    public <T> T readApiObject(Path path, Class<T> type) throws IOException {
+        long start = System.nanoTime();
+        long allocated = allocatedBytes();
+        T value;
+        // google's parser and generator aren't Closeable in this client version, hence the finally blocks
+        JsonParser parser = googleFactory.createJsonParser(open(path), StandardCharsets.UTF_8);
+        try {
+            value = parser.parse(type);
+        }
+        finally {
+            parser.close();
+        }
+        reads.record(Files.size(path), start, allocated);
+        return value;
+    }
+
+    /**
+     * writes a youtube api object to a file
+     */
+    public void writeApiObject(Object value, Path path) throws IOException {
+        long start = System.nanoTime();
+        long allocated = allocatedBytes();
+        JsonGenerator gen = googleFactory.createJsonGenerator(create(path), StandardCharsets.UTF_8);
+        try {
+            gen.serialize(value);
+        }
+        finally {
+            gen.close();
+        }
+        writes.record(Files.size(path), start, allocated);
+    }
+
+    /**
+     * reads a youtube api object from its json
+     */
+    public <T> T readApiObject(byte[] json, Class<T> type) throws IOException {
+        long start = System.nanoTime();
+        long allocated = allocatedBytes();
+        T value;
+        JsonParser parser = googleFactory.createJsonParser(new ByteArrayInputStream(json), StandardCharsets.UTF_8);
+        try {
+            value = parser.parse(type);
+        }
+        finally {
+            parser.close();
+        }
+        reads.record(json.length, start, allocated);
+        return value;
+    }
+
+    /**
+     * serializes a youtube api object
+     */
+    public byte[] writeApiObject(Object value) throws IOException {
+        long start = System.nanoTime();
+        long allocated = allocatedBytes();
+        ByteArrayOutputStream json = new ByteArrayOutputStream(4096);
+        JsonGenerator gen = googleFactory.createJsonGenerator(json, StandardCharsets.UTF_8);
+        try {
+            gen.serialize(value);
+        }
+        finally {
+            gen.close();
+        }
+        writes.record(json.size(), start, allocated);
+        return json.toByteArray();
+    }
+
+    /**
+     * streams the "items" array of a youtube api list response, parsing and handing over one item at
+     * a time so only the current item is ever held in memory
+     *
+     * @return the number of items read
+     */
+    public <T> int streamApiItems(Path path, Class<T> itemType, Consumer<T> consumer) throws IOException {
+        long start = System.nanoTime();
+        long allocated = allocatedBytes();
+        int items = 0;
+        JsonParser parser = googleFactory.createJsonParser(open(path), StandardCharsets.UTF_8);
+        try {
+            if (parser.nextToken() == JsonToken.START_OBJECT) {
+                parser.skipToKey("items");
+                if (parser.getCurrentToken() == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        consumer.accept(parser.parse(itemType));
+                        items++;
+                    }
+                }
+            }
+        }
+        finally {
+            parser.close();
+        }
+        reads.record(Files.size(path), start, allocated);
+        return items;
+    }
+
+    public ObjectMapper getMapper() { return mapper; }
+
+    /**
+     * @return read and write throughput and allocation since startup, for the stages' logs
+     */
+    public String summary() {
+        return "reads: " + reads + "; writes: " + writes;
+    }
+
+    public long getDocumentsRead() { return reads.documents.get(); }
+    public long getBytesRead() { return reads.bytes.get(); }
+    public long getDocumentsWritten() { return writes.documents.get(); }
+    public long getBytesWritten() { return writes.bytes.get(); }
+    public long getBytesAllocated() { return reads.allocated.get() + writes.allocated.get(); }
+
+    private ObjectReader readerFor(Class<?> type) {
+        return readers.computeIfAbsent(type, mapper::readerFor);
+    }
+
+    private ObjectWriter writerFor(Class<?> type) {
+        return writers.computeIfAbsent(type, mapper::writerFor);
+    }
+
+    private static InputStream open(Path path) throws IOException {
+        return new BufferedInputStream(Channels.newInputStream(FileChannel.open(path, StandardOpenOption.READ)), BUFFER_BYTES);
+    }
+
+    private static OutputStream create(Path path) throws IOException {
+        return new BufferedOutputStream(Channels.newOutputStream(FileChannel.open(path, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)), BUFFER_BYTES);
+    }
+
+    /**
+     * bytes allocated so far by the calling thread, or 0 if the jvm doesn't track it
+     */
+    private static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            return Math.max(0, ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId()));
+        }
+        return 0;
+    }
+
+    private static final class Meter {
+        private final AtomicLong documents = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong nanos = new AtomicLong();
+        private final AtomicLong allocated = new AtomicLong();
+
+        void record(long size, long startNanos, long startAllocated) {
+            nanos.addAndGet(System.nanoTime() - startNanos);
+            allocated.addAndGet(Math.max(0, allocatedBytes() - startAllocated));
+            bytes.addAndGet(size);
+            documents.incrementAndGet();
+        }
+
+        @Override
+        public String toString() {
+            long count = documents.get();
+            double seconds = Math.max(nanos.get(), 1) / 1e9;
+            return String.format("%d documents, %.1f MB at %.1f MB/s, %d bytes allocated/document", count,
+                bytes.get() / 1048576.0, bytes.get() / 1048576.0 / seconds, count == 0 ? 0 : allocated.get() / count);
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package io.gridbug.ytu.ytutility.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * persistent record of every video the pipeline knows about, the channel it belongs to and how far
+ * through the pipeline it has got, so the stages can ask for the videos that still need work instead
+ * of walking the channel data directory.
+ *
+ * the index lives in memory and is backed by a journal of fixed-width records
+ * ([video id][channel id][state bits]), appended whenever a video's state changes and synced once
+ * per batch. on open the journal is replayed through a memory map, the last record for a video
+ * winning, and is rewritten without the superseded records once they make up most of the file.
+ *
+ * the top three bits of the state byte count the details fetches that came back without the video;
+ * a video missed often enough is marked {@link #UNAVAILABLE} and no longer looked for.
+ */
+public class VideoStateIndex implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(VideoStateIndex.class.getName());
+
+    /** pipeline states; a video's state is the set of flags it has reached */
+    public static final int LISTED = 1;
+    public static final int DETAILS_FETCHED = 1 << 1;
+    public static final int DOWNLOAD_QUEUED = 1 << 2;
+    public static final int DOWNLOADED = 1 << 3;
+    /** private, deleted or otherwise not returned by the api, however often it's asked for */
+    public static final int UNAVAILABLE = 1 << 4;
+
+    /** the most misses the state byte can count */
+    public static final int MAX_MISSES = 7;
+    private static final int MISS_SHIFT = 5;
+    private static final int MISS_MASK = MAX_MISSES << MISS_SHIFT;
+
+    private static final int VIDEO_ID_BYTES = 16;
+    private static final int CHANNEL_ID_BYTES = 32;
+    private static final int RECORD_BYTES = VIDEO_ID_BYTES + CHANNEL_ID_BYTES + 1;
+
+    private final Path journal;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private FileChannel channel;
+
+    public VideoStateIndex(Path journal) throws IOException {
+        this.journal = journal;
+        Files.createDirectories(journal.getParent());
+        long records = replay();
+        if (records > 2L * entries.size() + 1024) compact();
+        channel = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        LOGGER.log(Level.INFO, "video-index | loaded " + entries.size() + " videos from " + journal);
+    }
+
+    public boolean isEmpty() { return entries.isEmpty(); }
+
+    public int size() { return entries.size(); }
+
+    public boolean has(String videoId, int state) {
+        Entry entry = entries.get(videoId);
+        return entry != null && (entry.state & state) == state;
+    }
+
+    public String channelOf(String videoId) {
+        Entry entry = entries.get(videoId);
+        return entry == null ? null : entry.channelId;
+    }
+
+    /**
+     * @return the number of details fetches that have come back without the video
+     */
+    public int missesOf(String videoId) {
+        Entry entry = entries.get(videoId);
+        return entry == null ? 0 : (entry.state & MISS_MASK) >>> MISS_SHIFT;
+    }
+
+    /**
+     * @return video id -> channel id for every video that has all of the required states and none of
+     * the excluded ones
+     */
+    public Map<String, String> find(int required, int excluded) {
+        Map<String, String> found = new LinkedHashMap<>();
+        entries.forEach((videoId, entry) -> {
+            if ((entry.state & required) == required && (entry.state & excluded) == 0) found.put(videoId, entry.channelId);
+        });
+        return found;
+    }
+
+    /**
+     * @return the number of videos that have all of the required states and none of the excluded ones
+     */
+    public int count(int required, int excluded) {
+        int count = 0;
+        for (Entry entry : entries.values()) {
+            if ((entry.state & required) == required && (entry.state & excluded) == 0) count++;
+        }
+        return count;
+    }
+
+    public void mark(String videoId, String channelId, int state) throws IOException {
+        markAll(Collections.singletonMap(videoId, channelId), state);
+    }
+
+    /**
+     * adds the state to each video (video id -> channel id; the channel may be null for videos already
+     * in the index) and syncs the journal once for the whole batch
+     */
+    public synchronized void markAll(Map<String, String> videos, int state) throws IOException {
+        Map<String, Entry> updates = new LinkedHashMap<>();
+        for (Map.Entry<String, String> video : videos.entrySet()) {
+            Entry current = entries.get(video.getKey());
+            String channelId = video.getValue() != null ? video.getValue() : current == null ? null : current.channelId;
+            if (channelId == null) {
+                LOGGER.log(Level.WARNING, "video-index | no channel known for " + video.getKey() + ", not indexing");
+                continue;
+            }
+            int updated = (current == null ? 0 : current.state) | state;
+            if (current != null && current.state == updated && channelId.equals(current.channelId)) continue;
+            updates.put(video.getKey(), new Entry(channelId, updated));
+        }
+        append(updates);
+    }
+
+    /**
+     * counts a details fetch that came back without each of the videos, and marks the ones that have
+     * now been missed maxMisses times (at most {@link #MAX_MISSES}) {@link #UNAVAILABLE}; videos not
+     * in the index are skipped. syncs the journal once for the whole batch
+     *
+     * @return video id -> channel id for the videos marked unavailable
+     */
+    public synchronized Map<String, String> markMissed(Collection<String> videoIds, int maxMisses) throws IOException {
+        int limit = Math.max(1, Math.min(MAX_MISSES, maxMisses));
+        Map<String, Entry> updates = new LinkedHashMap<>();
+        Map<String, String> unavailable = new LinkedHashMap<>();
+        for (String videoId : videoIds) {
+            Entry current = entries.get(videoId);
+            if (current == null || (current.state & UNAVAILABLE) != 0) continue;
+            int misses = Math.min(MAX_MISSES, ((current.state & MISS_MASK) >>> MISS_SHIFT) + 1);
+            int updated = (current.state & ~MISS_MASK) | (misses << MISS_SHIFT);
+            if (misses >= limit) {
+                updated |= UNAVAILABLE;
+                unavailable.put(videoId, current.channelId);
+            }
+            updates.put(videoId, new Entry(current.channelId, updated));
+        }
+        append(updates);
+        return unavailable;
+    }
+
+    /**
+     * journals the new entries and puts them in the index, syncing once
+     */
+    private void append(Map<String, Entry> updates) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_BYTES * updates.size());
+        for (Map.Entry<String, Entry> update : updates.entrySet()) {
+            try {
+                write(buffer, update.getKey(), update.getValue());
+            }
+            catch (IllegalArgumentException iae) {
+                LOGGER.log(Level.WARNING, "video-index | not indexing " + update.getKey(), iae);
+                continue;
+            }
+            entries.put(update.getKey(), update.getValue());
+        }
+        buffer.flip();
+        if (!buffer.hasRemaining()) return;
+        while (buffer.hasRemaining()) channel.write(buffer);
+        channel.force(false);
+    }
+
+    /**
+     * seeds the index from the previous channel data directory layout (channelId/videoId.json for
+     * playlist entries, channelId/details-videoId.json for details); used when there's no journal yet
+     */
+    public void rebuildFrom(Path channelData) throws IOException {
+        Map<String, String> listed = new LinkedHashMap<>();
+        Map<String, String> detailed = new LinkedHashMap<>();
+        try (Stream<Path> files = Files.walk(channelData)) {
+            files.filter(Files::isRegularFile)
+                .filter(path -> path.getFileName().toString().endsWith(".json"))
+                .forEach(path -> {
+                    String name = path.getFileName().toString();
+                    String id = name.substring(0, name.length() - ".json".length());
+                    String channelId = path.getParent().getFileName().toString();
+                    if (id.startsWith("details-")) detailed.put(id.substring("details-".length()), channelId);
+                    else listed.put(id, channelId);
+                });
+        }
+        markAll(listed, LISTED);
+        markAll(detailed, LISTED | DETAILS_FETCHED | DOWNLOAD_QUEUED);
+        LOGGER.log(Level.INFO, "video-index | rebuilt from " + channelData + ": " + listed.size() + " listed, " +
+            detailed.size() + " with details");
+    }
+
+    /**
+     * seeds the index from the channel segment store
+     */
+    public void rebuildFrom(ChannelSegmentStore channelData) throws IOException {
+        Map<String, String> listed = new LinkedHashMap<>();
+        Map<String, String> detailed = new LinkedHashMap<>();
+        for (String channelId : channelData.channelIds()) {
+            channelData.videoIds(channelId, ChannelSegmentStore.Kind.PLAYLIST_ITEM).forEach(id -> listed.put(id, channelId));
+            channelData.videoIds(channelId, ChannelSegmentStore.Kind.DETAILS).forEach(id -> detailed.put(id, channelId));
+        }
+        markAll(listed, LISTED);
+        markAll(detailed, LISTED | DETAILS_FETCHED | DOWNLOAD_QUEUED);
+        LOGGER.log(Level.INFO, "video-index | rebuilt from channel segments: " + listed.size() + " listed, " +
+            detailed.size() + " with details");
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private long replay() throws IOException {
+        if (!Files.exists(journal)) return 0;
+        try (FileChannel in = FileChannel.open(journal, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long records = in.size() / RECORD_BYTES;
+            if (in.size() % RECORD_BYTES != 0) {
+                // a record torn by a crash; drop it so later appends stay aligned
+                LOGGER.log(Level.WARNING, "video-index | truncating incomplete record at the end of " + journal);
+                in.truncate(records * RECORD_BYTES);
+            }
+            if (records == 0) return 0;
+            MappedByteBuffer map = in.map(FileChannel.MapMode.READ_ONLY, 0, records * RECORD_BYTES);
+            byte[] videoId = new byte[VIDEO_ID_BYTES];
+            byte[] channelId = new byte[CHANNEL_ID_BYTES];
+            for (long i = 0; i < records; i++) {
+                map.get(videoId);
+                map.get(channelId);
+                int state = map.get() & 0xff;
+                entries.put(decode(videoId), new Entry(decode(channelId), state));
+            }
+            return records;
+        }
+    }
+
+    private void compact() throws IOException {
+        Path tmp = Paths.get(journal + ".compact");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_BYTES * 4096);
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                if (buffer.remaining() < RECORD_BYTES) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) out.write(buffer);
+                    buffer.clear();
+                }
+                write(buffer, entry.getKey(), entry.getValue());
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) out.write(buffer);
+            out.force(true);
+        }
+        Files.move(tmp, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.log(Level.INFO, "video-index | compacted journal to " + entries.size() + " records");
+    }
+
+    private static void write(ByteBuffer buffer, String videoId, Entry entry) {
+        byte[] video = encode(videoId, VIDEO_ID_BYTES);
+        byte[] channel = encode(entry.channelId, CHANNEL_ID_BYTES);
+        buffer.put(video);
+        buffer.put(channel);
+        buffer.put((byte) entry.state);
+    }
+
+    private static byte[] encode(String value, int width) {
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        if (bytes.length > width) throw new IllegalArgumentException("id longer than " + width + " bytes: " + value);
+        byte[] padded = new byte[width];
+        System.arraycopy(bytes, 0, padded, 0, bytes.length);
+        return padded;
+    }
+
+    private static String decode(byte[] bytes) {
+        int length = 0;
+        while (length < bytes.length && bytes[length] != 0) length++;
+        return new String(bytes, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    private static final class Entry {
+        private final String channelId;
+        private final int state;
+
+        Entry(String channelId, int state) {
+            this.channelId = channelId;
+            this.state = state;
+        }
+    }
+}
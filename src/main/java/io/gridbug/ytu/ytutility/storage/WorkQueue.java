@@ -0,0 +1,295 @@
+package io.gridbug.ytu.ytutility.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * an append-only, file backed queue with a single consumer.
+ *
+ * records are appended to segment files named by the queue offset of their first byte, each one
+ * framed as [length][crc32][payload]. a record's offset is its position in the whole queue, so the
+ * consumer's progress is one number, kept in its own file and replaced atomically on commit. reads
+ * go through a memory map of the segment and never move the consumer; work is only consumed once
+ * the caller commits past it, which means a crash between processing and commit replays the
+ * uncommitted records rather than losing them. segments that are entirely behind the consumer are
+ * deleted on commit.
+ *
+ * on open, the tail of the newest segment is checked and anything after the last complete record
+ * (a write torn by a crash) is truncated.
+ */
+public class WorkQueue implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(WorkQueue.class.getName());
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String OFFSET_FILE = "consumer.offset";
+    private static final int HEADER_BYTES = 8;
+
+    private final Path dir;
+    private final long segmentBytes;
+    private final TreeMap<Long, Path> segments = new TreeMap<>();
+
+    private FileChannel active;
+    private long activeBase;
+    private long committed;
+    /** records between the consumer and the end of the queue */
+    private long pending;
+
+    public WorkQueue(Path dir, long segmentBytes) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(dir);
+
+        try (Stream<Path> files = Files.list(dir)) {
+            files.filter(this::isSegment).forEach(path -> segments.put(baseOf(path), path));
+        }
+        if (segments.isEmpty()) segments.put(0L, segmentPath(0L));
+
+        activeBase = segments.lastKey();
+        active = FileChannel.open(segments.get(activeBase),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        recoverTail();
+
+        committed = Math.max(readCommitted(), segments.firstKey());
+        committed = Math.min(committed, endOffset());
+        pending = countRecords(committed, endOffset());
+    }
+
+    /**
+     * appends the records and syncs them to disk once for the whole batch
+     */
+    public synchronized void enqueue(List<byte[]> records) throws IOException {
+        if (records.isEmpty()) return;
+        for (byte[] record : records) {
+            if (active.size() >= segmentBytes) roll();
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + record.length);
+            buffer.putInt(record.length);
+            buffer.putInt(checksum(record));
+            buffer.put(record);
+            buffer.flip();
+            long position = active.size();
+            while (buffer.hasRemaining()) position += active.write(buffer, position);
+        }
+        active.force(false);
+        pending += records.size();
+    }
+
+    /**
+     * reads up to max records starting at the given offset and stopping before limit, without
+     * moving the consumer
+     */
+    public synchronized List<Entry> read(long from, int max, long limit) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        long offset = from;
+        while (entries.size() < max && offset < limit) {
+            Map.Entry<Long, Path> segment = segments.floorEntry(offset);
+            if (segment == null) break;
+            long base = segment.getKey();
+            try (FileChannel channel = FileChannel.open(segment.getValue(), StandardOpenOption.READ)) {
+                long start = offset - base;
+                long size = channel.size();
+                if (start >= size) {
+                    Long next = segments.higherKey(base);
+                    if (next == null) break;
+                    offset = next;
+                    continue;
+                }
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, start, size - start);
+                while (map.remaining() >= HEADER_BYTES && entries.size() < max && offset < limit) {
+                    int length = map.getInt();
+                    int crc = map.getInt();
+                    if (length < 0 || length > map.remaining()) {
+                        throw new IOException("corrupt record header at offset " + offset + " in " + segment.getValue());
+                    }
+                    byte[] payload = new byte[length];
+                    map.get(payload);
+                    if (checksum(payload) != crc) {
+                        throw new IOException("checksum mismatch at offset " + offset + " in " + segment.getValue());
+                    }
+                    long next = offset + HEADER_BYTES + length;
+                    entries.add(new Entry(offset, next, payload));
+                    offset = next;
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * moves the consumer to the given offset and deletes any segment that is now fully consumed
+     */
+    public synchronized void commit(long offset) throws IOException {
+        if (offset <= committed) return;
+        long records = countRecords(committed, offset);
+        Path tmp = dir.resolve(OFFSET_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(Long.toString(offset).getBytes(StandardCharsets.US_ASCII)));
+            channel.force(true);
+        }
+        Files.move(tmp, dir.resolve(OFFSET_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        committed = offset;
+        pending -= records;
+
+        while (segments.size() > 1) {
+            Long next = segments.higherKey(segments.firstKey());
+            if (next > committed) break;
+            Path consumed = segments.remove(segments.firstKey());
+            Files.deleteIfExists(consumed);
+            LOGGER.log(Level.FINE, "work-queue | deleted consumed segment: " + consumed);
+        }
+    }
+
+    public synchronized long committedOffset() { return committed; }
+
+    public synchronized long endOffset() throws IOException { return activeBase + active.size(); }
+
+    /**
+     * @return the number of records the consumer hasn't committed past. counted once on open and
+     * kept up to date by enqueue and commit, so it's cheap enough to poll
+     */
+    public synchronized long pending() { return pending; }
+
+    @Override
+    public synchronized void close() throws IOException {
+        active.close();
+    }
+
+    private void roll() throws IOException {
+        active.force(false);
+        long base = activeBase + active.size();
+        active.close();
+        Path path = segmentPath(base);
+        segments.put(base, path);
+        activeBase = base;
+        active = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        LOGGER.log(Level.FINE, "work-queue | rolled to segment: " + path);
+    }
+
+    private void recoverTail() throws IOException {
+        long size = active.size();
+        long valid = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (valid + HEADER_BYTES <= size) {
+            header.clear();
+            active.read(header, valid);
+            header.flip();
+            int length = header.getInt();
+            int crc = header.getInt();
+            if (length < 0 || valid + HEADER_BYTES + length > size) break;
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            active.read(payload, valid + HEADER_BYTES);
+            if (checksum(payload.array()) != crc) break;
+            valid += HEADER_BYTES + length;
+        }
+        if (valid < size) {
+            LOGGER.log(Level.WARNING, "work-queue | truncating " + (size - valid) + " bytes of incomplete records from " +
+                segments.get(activeBase));
+            active.truncate(valid);
+            active.force(true);
+        }
+    }
+
+    /**
+     * counts the records between two record offsets by walking their headers, without reading the
+     * payloads
+     */
+    private long countRecords(long from, long to) throws IOException {
+        long count = 0;
+        long offset = from;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (offset < to) {
+            Map.Entry<Long, Path> segment = segments.floorEntry(offset);
+            if (segment == null) break;
+            long base = segment.getKey();
+            try (FileChannel channel = FileChannel.open(segment.getValue(), StandardOpenOption.READ)) {
+                long size = channel.size();
+                long position = offset - base;
+                if (position >= size) {
+                    Long next = segments.higherKey(base);
+                    if (next == null) break;
+                    offset = next;
+                    continue;
+                }
+                while (position < size && offset < to) {
+                    header.clear();
+                    while (header.hasRemaining() && channel.read(header, position + header.position()) > 0) { }
+                    if (header.hasRemaining()) {
+                        throw new IOException("corrupt record header at offset " + offset + " in " + segment.getValue());
+                    }
+                    header.flip();
+                    int length = header.getInt();
+                    if (length < 0 || position + HEADER_BYTES + length > size) {
+                        throw new IOException("corrupt record header at offset " + offset + " in " + segment.getValue());
+                    }
+                    position += HEADER_BYTES + length;
+                    offset = base + position;
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private long readCommitted() throws IOException {
+        Path path = dir.resolve(OFFSET_FILE);
+        if (!Files.exists(path)) return 0L;
+        return Long.parseLong(new String(Files.readAllBytes(path), StandardCharsets.US_ASCII).trim());
+    }
+
+    private boolean isSegment(Path path) {
+        String name = path.getFileName().toString();
+        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+    }
+
+    private long baseOf(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private Path segmentPath(long base) {
+        return dir.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, base, SEGMENT_SUFFIX));
+    }
+
+    private static int checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * a record read from the queue; commit nextOffset once it has been processed
+     */
+    public static final class Entry {
+        private final long offset;
+        private final long nextOffset;
+        private final byte[] payload;
+
+        Entry(long offset, long nextOffset, byte[] payload) {
+            this.offset = offset;
+            this.nextOffset = nextOffset;
+            this.payload = payload;
+        }
+
+        public long getOffset() { return offset; }
+        public long getNextOffset() { return nextOffset; }
+        public byte[] getPayload() { return payload; }
+    }
+}
@@ -0,0 +1,220 @@
+package io.gridbug.ytu.ytutility.web;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Base64;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import io.gridbug.ytu.ytutility.configuration.YTUProperties;
+
+/**
+ * read-only json api over the subscriptions, channel infos and videos in the database, for the
+ * consumers that used to read the json directories:
+ *
+ * GET /api/subscriptions                 by row id
+ * GET /api/channels                      by channel id
+ * GET /api/channels/{id}
+ * GET /api/channels/{id}/videos          newest first
+ * GET /api/videos/{id}
+ *
+ * lists are pages of up to ?limit= items (ytu.core.apiPageSize by default, at most
+ * ytu.core.apiMaxPageSize) in the form {"items": [...], "next": cursor}; the next page is asked for
+ * with ?after=cursor, and next is null on the last page. pages are found by keyset (see
+ * {@link KeysetQuery}), so a deep page costs the same as the first, and are written to the response
+ * as the rows come off the database.
+ *
+ * every response carries a weak ETag and, where the rows have a last modified time, Last-Modified;
+ * a conditional request that matches is answered 304 from the page's fingerprint without its rows
+ * being read. the fingerprint and the rows are separate queries, so a page that changes between
+ * them goes out under the old etag, and the client's next request gets it again in full. responses
+ * are gzipped by the servlet container per the server.compression properties
+ */
+@RestController
+@RequestMapping("/api")
+public class ApiController {
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    @Autowired
+    private JdbcTemplate jdbc;
+
+    @Autowired
+    private YTUProperties ytProperties;
+
+    @GetMapping("/subscriptions")
+    public void subscriptions(@RequestParam(required = false) Long after, @RequestParam(required = false) Integer limit,
+            ServletWebRequest request) throws IOException {
+        KeysetQuery query = new KeysetQuery(ApiResource.SUBSCRIPTION).orderBy("id").limit(pageSize(limit));
+        if (after != null) query.where("id > ?", after);
+        list(query, rs -> Long.toString(rs.getLong("id")), request);
+    }
+
+    @GetMapping("/channels")
+    public void channels(@RequestParam(required = false) String after, @RequestParam(required = false) Integer limit,
+            ServletWebRequest request) throws IOException {
+        KeysetQuery query = new KeysetQuery(ApiResource.CHANNEL).orderBy("id").limit(pageSize(limit));
+        if (after != null) query.where("id > ?", after);
+        list(query, rs -> rs.getString("id"), request);
+    }
+
+    @GetMapping("/channels/{id}")
+    public void channel(@PathVariable String id, ServletWebRequest request) throws IOException {
+        single(new KeysetQuery(ApiResource.CHANNEL).where("id = ?", id), request);
+    }
+
+    /**
+     * the channel's videos, newest first; videos without a publish time aren't listed
+     */
+    @GetMapping("/channels/{id}/videos")
+    public void channelVideos(@PathVariable String id, @RequestParam(required = false) String after,
+            @RequestParam(required = false) Integer limit, ServletWebRequest request) throws IOException {
+        KeysetQuery query = new KeysetQuery(ApiResource.VIDEO)
+            .where("channel_id = ?", id)
+            .where("published_at is not null")
+            .orderBy("published_at desc, id desc")
+            .limit(pageSize(limit));
+        if (after != null) {
+            // published_at then id, so videos published in the same second page through in a fixed order
+            VideoCursor cursor = VideoCursor.parse(after);
+            query.where("(published_at < ? or (published_at = ? and id < ?))", cursor.publishedAt, cursor.publishedAt,
+                cursor.id);
+        }
+        list(query, rs -> new VideoCursor(rs.getTimestamp("published_at"), rs.getString("id")).toString(), request);
+    }
+
+    @GetMapping("/videos/{id}")
+    public void video(@PathVariable String id, ServletWebRequest request) throws IOException {
+        single(new KeysetQuery(ApiResource.VIDEO).where("id = ?", id), request);
+    }
+
+    private int pageSize(Integer limit) {
+        int size = limit == null ? ytProperties.getApiPageSize() : limit;
+        return Math.max(1, Math.min(ytProperties.getApiMaxPageSize(), size));
+    }
+
+    private void list(KeysetQuery query, CursorOf cursorOf, ServletWebRequest request) throws IOException {
+        if (notModified(query, false, request)) return;
+        try (JsonGenerator json = JSON.createGenerator(open(request), JsonEncoding.UTF8)) {
+            json.writeStartObject();
+            json.writeArrayFieldStart("items");
+            int[] rows = { 0 };
+            String[] last = { null };
+            stream(query, rs -> {
+                query.resource().write(json, rs);
+                last[0] = cursorOf.cursor(rs);
+                rows[0]++;
+            });
+            json.writeEndArray();
+            // a full page may be followed by an empty one, but it saves counting past the page
+            json.writeStringField("next", rows[0] == query.limit() ? last[0] : null);
+            json.writeEndObject();
+        }
+    }
+
+    private void single(KeysetQuery query, ServletWebRequest request) throws IOException {
+        if (notModified(query, true, request)) return;
+        try (JsonGenerator json = JSON.createGenerator(open(request), JsonEncoding.UTF8)) {
+            stream(query, rs -> query.resource().write(json, rs));
+        }
+    }
+
+    /**
+     * fingerprints the page and answers the request 304 if it's a conditional request that matches
+     *
+     * @param required true if an empty page is a 404
+     */
+    private boolean notModified(KeysetQuery query, boolean required, ServletWebRequest request) {
+        KeysetQuery.Fingerprint fingerprint = query.fingerprint(jdbc);
+        if (required && fingerprint.rows() == 0) throw new ResponseStatusException(HttpStatus.NOT_FOUND);
+        // clients may keep what they get but have to check back before using it
+        request.getResponse().setHeader("Cache-Control", "no-cache");
+        return request.checkNotModified(fingerprint.etag(), fingerprint.lastModified());
+    }
+
+    private static OutputStream open(ServletWebRequest request) throws IOException {
+        HttpServletResponse response = request.getResponse();
+        response.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+        return response.getOutputStream();
+    }
+
+    /**
+     * runs the query, writing each row as it comes; the json writes' io exceptions (a client that's
+     * gone away, mostly) are carried out of the row handler and rethrown
+     */
+    private void stream(KeysetQuery query, RowWriter writer) throws IOException {
+        try {
+            query.stream(jdbc, rs -> {
+                try {
+                    writer.write(rs);
+                }
+                catch (IOException ioe) {
+                    throw new UncheckedIOException(ioe);
+                }
+            });
+        }
+        catch (UncheckedIOException uioe) {
+            throw uioe.getCause();
+        }
+    }
+
+    private interface RowWriter {
+        void write(ResultSet rs) throws IOException, SQLException;
+    }
+
+    private interface CursorOf {
+        String cursor(ResultSet rs) throws SQLException;
+    }
+
+    /**
+     * where a channel's video listing left off: the last video's publish time and id, url-safe
+     * base64 encoded so clients treat it as opaque
+     */
+    private static final class VideoCursor {
+        private final Timestamp publishedAt;
+        private final String id;
+
+        VideoCursor(Timestamp publishedAt, String id) {
+            this.publishedAt = publishedAt;
+            this.id = id;
+        }
+
+        static VideoCursor parse(String cursor) {
+            try {
+                String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+                int dot = decoded.indexOf('.');
+                return new VideoCursor(new Timestamp(Long.parseLong(decoded.substring(0, dot))), decoded.substring(dot + 1));
+            }
+            catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "malformed cursor: " + cursor);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString((publishedAt.getTime() + "." + id).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
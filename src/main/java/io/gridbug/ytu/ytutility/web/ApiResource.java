@@ -0,0 +1,134 @@
+package io.gridbug.ytu.ytutility.web;
+
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * the tables the api serves and the columns of each it exposes, with the json field each is written
+ * as. rows are written to the response straight from the result set, one at a time, so a page is
+ * never held in memory as entities.
+ *
+ * the last modified column of each is one that every write to the exposed columns moves forward, so
+ * it can be sent as Last-Modified. the uploads scraper's marks and schedule on a channel info aren't
+ * exposed, since their writes leave last_check alone
+ */
+enum ApiResource {
+
+    SUBSCRIPTION("subscriptions", "last_check",
+        Column.number("id", "id"),
+        Column.text("ytId", "yt_id"),
+        Column.text("name", "name"),
+        Column.text("description", "description"),
+        Column.time("subscribedOn", "subscribed_on"),
+        Column.time("lastCheck", "last_check")),
+
+    CHANNEL("channelinfos", "last_check",
+        Column.text("id", "id"),
+        Column.text("name", "name"),
+        Column.text("description", "description"),
+        Column.time("createdOn", "created_on"),
+        Column.text("customUrl", "custom_url"),
+        Column.text("uploadsPlaylistId", "uploads_playlist_id"),
+        Column.text("thumbnailUrl", "thumbnail_url"),
+        Column.number("subscriberCount", "subscriber_count"),
+        Column.number("videoCount", "video_count"),
+        Column.number("viewCount", "view_count"),
+        Column.time("lastCheck", "last_check")),
+
+    VIDEO("videos", "modified_on",
+        Column.text("id", "id"),
+        Column.text("channelId", "channel_id"),
+        Column.text("title", "title"),
+        Column.text("description", "description"),
+        Column.time("publishedAt", "published_at"),
+        Column.text("thumbnailUrl", "thumbnail_url"),
+        Column.text("duration", "duration"),
+        Column.text("privacyStatus", "privacy_status"),
+        Column.number("viewCount", "view_count"),
+        Column.number("likeCount", "like_count"),
+        Column.number("commentCount", "comment_count"),
+        Column.time("detailsFetchedOn", "details_fetched_on"),
+        Column.text("downloadState", "download_state"),
+        Column.time("modifiedOn", "modified_on"));
+
+    private static final DateTimeFormatter ISO = ISODateTimeFormat.dateTime().withZoneUTC();
+
+    private final String table;
+    private final String lastModifiedColumn;
+    private final List<Column> columns;
+
+    ApiResource(String table, String lastModifiedColumn, Column... columns) {
+        this.table = table;
+        this.lastModifiedColumn = lastModifiedColumn;
+        this.columns = Arrays.asList(columns);
+    }
+
+    String table() { return table; }
+
+    String lastModifiedColumn() { return lastModifiedColumn; }
+
+    /**
+     * @return the exposed columns, comma separated
+     */
+    String columnList() {
+        return columns.stream().map(column -> column.name).collect(Collectors.joining(", "));
+    }
+
+    /**
+     * writes the result set's current row as a json object
+     */
+    void write(JsonGenerator json, ResultSet rs) throws IOException, SQLException {
+        json.writeStartObject();
+        for (Column column : columns) {
+            json.writeFieldName(column.field);
+            switch (column.type) {
+                case TEXT:
+                    String text = rs.getString(column.name);
+                    if (text == null) json.writeNull();
+                    else json.writeString(text);
+                    break;
+                case NUMBER:
+                    long number = rs.getLong(column.name);
+                    if (rs.wasNull()) json.writeNull();
+                    else json.writeNumber(number);
+                    break;
+                case TIME:
+                    Timestamp time = rs.getTimestamp(column.name);
+                    if (time == null) json.writeNull();
+                    else json.writeString(ISO.print(time.getTime()));
+                    break;
+            }
+        }
+        json.writeEndObject();
+    }
+
+    private enum Type { TEXT, NUMBER, TIME }
+
+    private static final class Column {
+        private final String field;
+        private final String name;
+        private final Type type;
+
+        private Column(String field, String name, Type type) {
+            this.field = field;
+            this.name = name;
+            this.type = type;
+        }
+
+        static Column text(String field, String name) { return new Column(field, name, Type.TEXT); }
+
+        static Column number(String field, String name) { return new Column(field, name, Type.NUMBER); }
+
+        static Column time(String field, String name) { return new Column(field, name, Type.TIME); }
+    }
+}
@@ -0,0 +1,107 @@
+package io.gridbug.ytu.ytutility.web;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+/**
+ * a page of one of the api's resources, found by keyset: the page after the last one starts where
+ * its last row's sort key left off, through a where clause on that key, rather than by an offset
+ * the database would have to count its way past. with an index on the sort key every page costs
+ * the same however deep it is.
+ *
+ * a page can be fingerprinted without reading its rows out: one aggregate query over the page
+ * returns its row count, a checksum of its exposed columns and the newest of its last modified
+ * column, which is what the etag and Last-Modified are made from
+ */
+final class KeysetQuery {
+
+    private final ApiResource resource;
+    private final List<String> conditions = new ArrayList<>();
+    private final List<Object> args = new ArrayList<>();
+    private String orderBy;
+    private int limit = 1;
+
+    KeysetQuery(ApiResource resource) {
+        this.resource = resource;
+    }
+
+    ApiResource resource() { return resource; }
+
+    int limit() { return limit; }
+
+    KeysetQuery where(String condition, Object... values) {
+        conditions.add(condition);
+        for (Object value : values) args.add(value);
+        return this;
+    }
+
+    KeysetQuery orderBy(String orderBy) {
+        this.orderBy = orderBy;
+        return this;
+    }
+
+    KeysetQuery limit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    Fingerprint fingerprint(JdbcTemplate jdbc) {
+        String sql = "select count(*), coalesce(sum(crc32(concat_ws('|', " + resource.columnList() + "))), 0), " +
+            "max(" + resource.lastModifiedColumn() + ") from (" + pageSql() + ") page";
+        return jdbc.queryForObject(sql, args().toArray(), (rs, row) -> {
+            Timestamp lastModified = rs.getTimestamp(3);
+            return new Fingerprint(rs.getLong(1), rs.getLong(2), lastModified == null ? -1 : lastModified.getTime());
+        });
+    }
+
+    /**
+     * runs the page query, handing the rows to the handler as they're read
+     */
+    void stream(JdbcTemplate jdbc, RowCallbackHandler handler) {
+        jdbc.query(pageSql(), handler, args().toArray());
+    }
+
+    private String pageSql() {
+        StringBuilder sql = new StringBuilder("select ").append(resource.columnList())
+            .append(" from ").append(resource.table());
+        if (!conditions.isEmpty()) sql.append(" where ").append(String.join(" and ", conditions));
+        if (orderBy != null) sql.append(" order by ").append(orderBy);
+        return sql.append(" limit ?").toString();
+    }
+
+    private List<Object> args() {
+        List<Object> all = new ArrayList<>(args);
+        all.add(limit);
+        return all;
+    }
+
+    static final class Fingerprint {
+        private final long rows;
+        private final long checksum;
+        private final long lastModified;
+
+        Fingerprint(long rows, long checksum, long lastModified) {
+            this.rows = rows;
+            this.checksum = checksum;
+            this.lastModified = lastModified;
+        }
+
+        long rows() { return rows; }
+
+        /**
+         * @return the newest last modified time on the page in millis, or -1 if there isn't one
+         */
+        long lastModified() { return lastModified; }
+
+        /**
+         * weak, since it stands for the page's content rather than the exact bytes sent
+         */
+        String etag() {
+            return String.format("W/\"%d-%x-%x\"", rows, checksum, lastModified);
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package io.gridbug.ytu.ytutility.configuration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import io.gridbug.ytu.ytutility.storage.JsonCodec;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class QuotaLimiterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void concurrentReservationsEachGetTheirConfiguredBudget() throws Exception {
+        YTUProperties properties = properties(1000);
+        properties.getQuotaStageBudgets().put("uploads-pipeline", 600L);
+        properties.getQuotaStageBudgets().put("run-channel-check", 300L);
+        QuotaLimiter limiter = limiter(properties);
+
+        CountDownLatch reserved = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        try {
+            Future<Long> pipeline = threads.submit(() -> holdBudget(limiter, "uploads-pipeline", reserved, release));
+            Future<Long> channelCheck = threads.submit(() -> holdBudget(limiter, "run-channel-check", reserved, release));
+            assertTrue(reserved.await(5, TimeUnit.SECONDS));
+            release.countDown();
+            assertEquals(600L, (long) pipeline.get(5, TimeUnit.SECONDS));
+            assertEquals(300L, (long) channelCheck.get(5, TimeUnit.SECONDS));
+        }
+        finally {
+            threads.shutdownNow();
+        }
+    }
+
+    @Test
+    public void threadsSharingABudgetSpendItTogether() throws Exception {
+        YTUProperties properties = properties(1000);
+        properties.getQuotaStageBudgets().put("uploads-pipeline", 40L);
+        QuotaLimiter limiter = limiter(properties);
+
+        AtomicInteger calls = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        try (QuotaLimiter.Budget budget = limiter.reserve("uploads-pipeline")) {
+            List<Future<?>> stages = new ArrayList<>();
+            for (int t = 0; t < 2; t++) {
+                stages.add(threads.submit(() -> {
+                    try (QuotaLimiter.Binding binding = limiter.share(budget)) {
+                        for (int i = 0; i < 30; i++) {
+                            try {
+                                limiter.acquire("videos.list");
+                                calls.incrementAndGet();
+                            }
+                            catch (QuotaExceededException qee) {
+                                rejected.incrementAndGet();
+                            }
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> stage : stages) stage.get(5, TimeUnit.SECONDS);
+        }
+        finally {
+            threads.shutdownNow();
+        }
+        assertEquals(40, calls.get());
+        assertEquals(20, rejected.get());
+        assertEquals(40, limiter.getUsedToday());
+    }
+
+    @Test
+    public void callsWaitingOnTokensAreCheckedAgainstTheBudgetOnceTheyArrive() throws Exception {
+        YTUProperties properties = properties(100);
+        properties.setQuotaUnitsPerSecond(2);
+        properties.setQuotaBurst(1);
+        properties.getQuotaStageBudgets().put("uploads-pipeline", 1L);
+        QuotaLimiter limiter = limiter(properties);
+        // empty the bucket, so both threads below get past the budget check and wait for tokens
+        limiter.acquire("channels.list");
+
+        AtomicInteger calls = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        try (QuotaLimiter.Budget budget = limiter.reserve("uploads-pipeline")) {
+            List<Future<?>> stages = new ArrayList<>();
+            for (int t = 0; t < 2; t++) {
+                stages.add(threads.submit(() -> {
+                    try (QuotaLimiter.Binding binding = limiter.share(budget)) {
+                        start.await();
+                        limiter.acquire("videos.list");
+                        calls.incrementAndGet();
+                    }
+                    catch (QuotaExceededException qee) {
+                        rejected.incrementAndGet();
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> stage : stages) stage.get(5, TimeUnit.SECONDS);
+        }
+        finally {
+            threads.shutdownNow();
+        }
+        assertEquals(1, calls.get());
+        assertEquals(1, rejected.get());
+        assertEquals(2, limiter.getUsedToday());
+    }
+
+    @Test
+    public void budgetRejectsCallsOnceSpentAndReturnsTheRestOnClose() throws Exception {
+        YTUProperties properties = properties(100);
+        properties.getQuotaStageBudgets().put("run-channel-check", 5L);
+        QuotaLimiter limiter = limiter(properties);
+
+        try (QuotaLimiter.Budget budget = limiter.reserve("run-channel-check")) {
+            for (int i = 0; i < 5; i++) limiter.acquire("channels.list");
+            try {
+                limiter.acquire("channels.list");
+                fail("call over budget went through");
+            }
+            catch (QuotaExceededException expected) {
+            }
+        }
+        assertEquals(5, limiter.getUsedToday());
+        assertEquals(95, limiter.getRemainingToday());
+    }
+
+    @Test
+    public void unbudgetedCallsCantSpendReservedUnits() throws Exception {
+        YTUProperties properties = properties(10);
+        properties.getQuotaStageBudgets().put("uploads-pipeline", 6L);
+        QuotaLimiter limiter = limiter(properties);
+
+        int calls = 0;
+        try (QuotaLimiter.Budget budget = limiter.reserve("uploads-pipeline")) {
+            // the reservation is bound to this thread, so call from another one
+            ExecutorService thread = Executors.newSingleThreadExecutor();
+            try {
+                calls = thread.submit(() -> {
+                    int made = 0;
+                    try {
+                        while (made < 10) {
+                            limiter.acquire("videos.list");
+                            made++;
+                        }
+                    }
+                    catch (QuotaExceededException expected) {
+                    }
+                    return made;
+                }).get(5, TimeUnit.SECONDS);
+            }
+            finally {
+                thread.shutdownNow();
+            }
+        }
+        assertEquals(4, calls);
+
+        // with the reservation released its unspent units are open to anyone
+        for (int i = 0; i < 6; i++) limiter.acquire("videos.list");
+        assertEquals(10, limiter.getUsedToday());
+    }
+
+    @Test
+    public void ledgerFromAnEarlierDayIsStartedOver() throws Exception {
+        YTUProperties properties = properties(100);
+        QuotaLimiter.Ledger old = new QuotaLimiter.Ledger();
+        old.setDay("2018-01-01");
+        old.setUsed(100);
+        new JsonCodec().write(old, ledgerPath(properties));
+
+        QuotaLimiter limiter = limiter(properties);
+        assertEquals(0, limiter.getUsedToday());
+        limiter.acquire("channels.list");
+        assertEquals(1, limiter.getUsedToday());
+    }
+
+    @Test
+    public void ledgerIsWrittenInBatchesAndOnShutdown() throws Exception {
+        YTUProperties properties = properties(100);
+        properties.setQuotaLedgerFlushUnits(2);
+        QuotaLimiter limiter = limiter(properties);
+
+        for (int i = 0; i < 3; i++) limiter.acquire("channels.list");
+        assertEquals(2, savedUsed(properties));
+        ReflectionTestUtils.invokeMethod(limiter, "shutdown");
+        assertEquals(3, savedUsed(properties));
+    }
+
+    @Test
+    public void interruptedWaitIsNotCharged() throws Exception {
+        YTUProperties properties = properties(100);
+        properties.setQuotaUnitsPerSecond(0.001);
+        properties.setQuotaBurst(1);
+        QuotaLimiter limiter = limiter(properties);
+
+        limiter.acquire("channels.list");
+        Thread.currentThread().interrupt();
+        try {
+            limiter.acquire("channels.list");
+            fail("call went through without tokens");
+        }
+        catch (InterruptedIOException expected) {
+        }
+        finally {
+            Thread.interrupted();
+        }
+        assertEquals(1, limiter.getUsedToday());
+    }
+
+    private static long holdBudget(QuotaLimiter limiter, String stage, CountDownLatch reserved, CountDownLatch release)
+            throws InterruptedException {
+        try (QuotaLimiter.Budget budget = limiter.reserve(stage)) {
+            reserved.countDown();
+            if (!release.await(5, TimeUnit.SECONDS)) fail("budgets weren't released");
+            return budget.getGranted();
+        }
+    }
+
+    private YTUProperties properties(long dailyLimit) {
+        YTUProperties properties = new YTUProperties();
+        properties.setJsonPath(folder.getRoot().getAbsolutePath());
+        properties.setQuotaDailyLimit(dailyLimit);
+        properties.setQuotaUnitsPerSecond(1_000_000);
+        properties.setQuotaBurst(1_000_000);
+        return properties;
+    }
+
+    private static Path ledgerPath(YTUProperties properties) {
+        return new File(properties.getJsonPath(), "quota-ledger.json").toPath();
+    }
+
+    private static long savedUsed(YTUProperties properties) throws Exception {
+        return new JsonCodec().read(ledgerPath(properties), QuotaLimiter.Ledger.class).getUsed();
+    }
+
+    private static QuotaLimiter limiter(YTUProperties properties) {
+        PipelineMetrics metrics = new PipelineMetrics();
+        ReflectionTestUtils.setField(metrics, "registry", new SimpleMeterRegistry());
+        QuotaLimiter limiter = new QuotaLimiter();
+        ReflectionTestUtils.setField(limiter, "ytProperties", properties);
+        ReflectionTestUtils.setField(limiter, "codec", new JsonCodec());
+        ReflectionTestUtils.setField(limiter, "metrics", metrics);
+        ReflectionTestUtils.invokeMethod(limiter, "initialize");
+        return limiter;
+    }
+}
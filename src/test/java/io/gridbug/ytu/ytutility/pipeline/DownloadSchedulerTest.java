@@ -0,0 +1,119 @@
+package io.gridbug.ytu.ytutility.pipeline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class DownloadSchedulerTest {
+
+    private static final ThreadFactory DAEMONS = r -> {
+        Thread thread = new Thread(r);
+        thread.setDaemon(true);
+        return thread;
+    };
+
+    @Test
+    public void startsHighestRankFirstThenInQueueOrder() throws InterruptedException {
+        DownloadScheduler scheduler = new DownloadScheduler(1, 1, DAEMONS);
+        try {
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch started = new CountDownLatch(1);
+            scheduler.schedule("UCblock", 100, () -> {
+                started.countDown();
+                await(release);
+            });
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            List<String> order = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch done = new CountDownLatch(4);
+            scheduler.schedule("UCa", 1, record(order, "a1", done));
+            scheduler.schedule("UCb", 3, record(order, "b3", done));
+            scheduler.schedule("UCa", 2, record(order, "a2", done));
+            scheduler.schedule("UCc", 3, record(order, "c3", done));
+            assertEquals(4, scheduler.queuedCount());
+
+            release.countDown();
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList("b3", "c3", "a2", "a1"), order);
+            assertEquals(0, scheduler.queuedCount());
+        }
+        finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void holdsEachChannelToItsCap() throws InterruptedException {
+        DownloadScheduler scheduler = new DownloadScheduler(2, 1, DAEMONS);
+        try {
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch firstStarted = new CountDownLatch(1);
+            CountDownLatch secondStarted = new CountDownLatch(1);
+            scheduler.schedule("UCbusy", 10, () -> {
+                firstStarted.countDown();
+                await(release);
+            });
+            scheduler.schedule("UCbusy", 10, secondStarted::countDown);
+            assertTrue(firstStarted.await(5, TimeUnit.SECONDS));
+
+            // the other worker is free, but passes over the capped channel for a lower ranked one
+            CountDownLatch otherRan = new CountDownLatch(1);
+            scheduler.schedule("UCother", 1, otherRan::countDown);
+            assertTrue(otherRan.await(5, TimeUnit.SECONDS));
+            assertFalse(secondStarted.await(100, TimeUnit.MILLISECONDS));
+            assertEquals(1, scheduler.queuedCount());
+
+            release.countDown();
+            assertTrue(secondStarted.await(5, TimeUnit.SECONDS));
+        }
+        finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void downloadsWithoutAChannelAreNotCapped() throws InterruptedException {
+        DownloadScheduler scheduler = new DownloadScheduler(3, 1, DAEMONS);
+        try {
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch started = new CountDownLatch(3);
+            for (int i = 0; i < 3; i++) {
+                scheduler.schedule(null, 1, () -> {
+                    started.countDown();
+                    await(release);
+                });
+            }
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            release.countDown();
+        }
+        finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private static Runnable record(List<String> order, String name, CountDownLatch done) {
+        return () -> {
+            order.add(name);
+            done.countDown();
+        };
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
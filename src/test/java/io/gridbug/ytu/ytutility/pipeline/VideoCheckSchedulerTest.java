@@ -0,0 +1,123 @@
+package io.gridbug.ytu.ytutility.pipeline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.Minutes;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import io.gridbug.ytu.ytutility.configuration.YTUProperties;
+import io.gridbug.ytu.ytutility.model.ChannelInfo;
+
+public class VideoCheckSchedulerTest {
+
+    private static final DateTime NOW = new DateTime(2018, 6, 1, 12, 0, DateTimeZone.UTC);
+
+    private final VideoCheckScheduler scheduler = new VideoCheckScheduler();
+
+    @Before
+    public void setUp() {
+        YTUProperties properties = new YTUProperties();
+        properties.setVideoChecksPerUpload(4);
+        properties.setVideoCheckMinMinutes(60);
+        properties.setVideoCheckMaxHours(168);
+        ReflectionTestUtils.setField(scheduler, "ytProperties", properties);
+    }
+
+    @Test
+    public void quietChannelBacksOffUntilTheCap() {
+        ChannelInfo chan = channel("UCquietquietquietquiet");
+
+        chan.setNewestVideoPublishedAt(NOW.minusDays(2));
+        scheduler.reschedule(chan, chan.getNewestVideoPublishedAt(), Collections.emptyList(), NOW);
+        assertNull(chan.getUploadIntervalMinutes());
+        assertCheckedWithinAnHourOf(chan, 12 * 60);
+
+        chan.setNewestVideoPublishedAt(NOW.minusDays(20));
+        scheduler.reschedule(chan, chan.getNewestVideoPublishedAt(), Collections.emptyList(), NOW);
+        assertCheckedWithinAnHourOf(chan, 120 * 60);
+
+        chan.setNewestVideoPublishedAt(NOW.minusDays(400));
+        scheduler.reschedule(chan, chan.getNewestVideoPublishedAt(), Collections.emptyList(), NOW);
+        assertCheckedWithinAnHourOf(chan, 168 * 60);
+    }
+
+    @Test
+    public void steadyUploaderIsCheckedSeveralTimesPerUpload() {
+        ChannelInfo chan = channel("UCdailydailydailydaily");
+        DateTime previous = NOW.minusDays(3).minusHours(1);
+        chan.setNewestVideoPublishedAt(NOW.minusHours(1));
+
+        // out of order, as the scraper may pass them
+        scheduler.reschedule(chan, previous,
+            Arrays.asList(previous.plusDays(2), previous.plusDays(3), previous.plusDays(1)), NOW);
+        assertEquals(Long.valueOf(24 * 60), chan.getUploadIntervalMinutes());
+        assertCheckedWithinAnHourOf(chan, 6 * 60);
+
+        // one more upload on time keeps the average where it is
+        chan.setNewestVideoPublishedAt(previous.plusDays(4));
+        scheduler.reschedule(chan, previous.plusDays(3), Collections.singletonList(previous.plusDays(4)), NOW.plusDays(1));
+        assertEquals(Long.valueOf(24 * 60), chan.getUploadIntervalMinutes());
+    }
+
+    @Test
+    public void frequentUploaderIsHeldToTheMinimum() {
+        ChannelInfo chan = channel("UCoftenoftenoftenoften");
+        DateTime previous = NOW.minusMinutes(30);
+        chan.setNewestVideoPublishedAt(NOW);
+
+        scheduler.reschedule(chan, previous, Arrays.asList(NOW.minusMinutes(20), NOW.minusMinutes(10), NOW), NOW);
+        assertEquals(Long.valueOf(10), chan.getUploadIntervalMinutes());
+        assertCheckedWithinAnHourOf(chan, 60);
+    }
+
+    @Test
+    public void checksSpreadAcrossTheHour() {
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+        Random random = new Random(42);
+        int[] perMinute = new int[60];
+        for (int i = 0; i < 600; i++) {
+            StringBuilder id = new StringBuilder("UC");
+            for (int c = 0; c < 22; c++) id.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            ChannelInfo chan = channel(id.toString());
+            chan.setNewestVideoPublishedAt(NOW.minusDays(2));
+
+            DateTime next = scheduler.nextCheck(chan, NOW);
+            assertEquals(VideoCheckScheduler.minuteOf(chan.getId()), next.getMinuteOfHour());
+            assertEquals(0, next.getSecondOfMinute());
+            perMinute[next.getMinuteOfHour()]++;
+        }
+        for (int minute = 0; minute < 60; minute++) {
+            assertTrue("no checks at minute " + minute, perMinute[minute] > 0);
+            assertTrue(perMinute[minute] + " checks at minute " + minute, perMinute[minute] <= 20);
+        }
+    }
+
+    /**
+     * asserts the channel's next check is the given number of minutes from now, rounded up to the
+     * channel's minute of the hour
+     */
+    private static void assertCheckedWithinAnHourOf(ChannelInfo chan, int minutes) {
+        DateTime next = chan.getNextVideoCheck();
+        int after = Minutes.minutesBetween(NOW, next).getMinutes();
+        assertFalse("checked after " + after + " minutes", after < minutes);
+        assertTrue("checked after " + after + " minutes", after < minutes + 60);
+        assertEquals(VideoCheckScheduler.minuteOf(chan.getId()), next.getMinuteOfHour());
+    }
+
+    private static ChannelInfo channel(String id) {
+        ChannelInfo chan = new ChannelInfo();
+        chan.setId(id);
+        return chan;
+    }
+}
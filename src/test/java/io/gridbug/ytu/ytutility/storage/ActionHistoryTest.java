@@ -0,0 +1,80 @@
+package io.gridbug.ytu.ytutility.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ActionHistoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final JsonCodec codec = new JsonCodec();
+
+    @Test
+    public void findsRecordsByChannelAcrossReopen() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        try (ActionHistory history = new ActionHistory(dir, codec)) {
+            history.append(Arrays.asList(record("UCa", "first"), record("UCb", "other"), record("UCa", "second")));
+        }
+
+        try (ActionHistory history = new ActionHistory(dir, codec)) {
+            assertEquals(Arrays.asList("first", "second"), messages(history.find("UCa", null, null)));
+            assertEquals(3, history.find(null, null, null).size());
+            assertEquals(0, history.find("UCa", DateTime.now().plusDays(1), null).size());
+        }
+    }
+
+    @Test
+    public void sealsMergesAndExpiresPastSegments() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        DateTime performed = new DateTime(2018, 7, 21, 12, 0, DateTimeZone.UTC);
+        try (ActionHistory history = new ActionHistory(dir, codec)) {
+            ActionHistory.Record old = record("UCa", "old");
+            old.setPerformedOn(performed);
+            history.append(old);
+        }
+        // make today's log look like one left from a day in a finished month
+        try (Stream<Path> files = Files.list(dir)) {
+            Path log = files.filter(file -> file.toString().endsWith(".log")).findFirst().get();
+            Files.move(log, dir.resolve("actions-2018-07-21.log"));
+        }
+
+        try (ActionHistory history = new ActionHistory(dir, codec)) {
+            history.compact(0);
+            assertArrayEquals(new String[] { "actions-2018-07.idx", "actions-2018-07.log.gz" }, names(dir));
+            assertEquals(Arrays.asList("old"), messages(history.find("UCa", performed.minusDays(1), performed.plusDays(1))));
+            assertEquals(0, history.find("UCb", null, null).size());
+
+            history.compact(30);
+            assertEquals(0, names(dir).length);
+        }
+    }
+
+    private static ActionHistory.Record record(String channelId, String message) {
+        return new ActionHistory.Record(ActionHistory.Record.CHANNEL_CHECK, channelId, DateTime.now(), null, true, message);
+    }
+
+    private static List<String> messages(List<ActionHistory.Record> records) {
+        return records.stream().map(ActionHistory.Record::getOutcomeMessage).collect(Collectors.toList());
+    }
+
+    private static String[] names(Path dir) {
+        String[] names = dir.toFile().list();
+        Arrays.sort(names);
+        return names;
+    }
+}
@@ -0,0 +1,86 @@
+package io.gridbug.ytu.ytutility.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.api.services.youtube.model.PlaylistItem;
+
+public class ChannelSegmentStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final JsonCodec codec = new JsonCodec();
+
+    @Test
+    public void readsNewestRecordByVideoIdAcrossReopen() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        try (ChannelSegmentStore store = new ChannelSegmentStore(dir, codec)) {
+            store.putAll("UCa", ChannelSegmentStore.Kind.PLAYLIST_ITEM, items("old", "v1", "v2"));
+            store.put("UCa", ChannelSegmentStore.Kind.PLAYLIST_ITEM, "v1", item("new"));
+        }
+
+        try (ChannelSegmentStore store = new ChannelSegmentStore(dir, codec)) {
+            assertEquals("new", store.get("UCa", ChannelSegmentStore.Kind.PLAYLIST_ITEM, "v1", PlaylistItem.class).getEtag());
+            assertEquals("old", store.get("UCa", ChannelSegmentStore.Kind.PLAYLIST_ITEM, "v2", PlaylistItem.class).getEtag());
+            assertNull(store.get("UCa", ChannelSegmentStore.Kind.DETAILS, "v1", PlaylistItem.class));
+            int[] read = new int[1];
+            store.forEach("UCa", ChannelSegmentStore.Kind.PLAYLIST_ITEM, PlaylistItem.class, (id, item) -> read[0]++);
+            assertEquals(2, read[0]);
+        }
+    }
+
+    @Test
+    public void recoversFromTornSegmentAndMissingIndex() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        try (ChannelSegmentStore store = new ChannelSegmentStore(dir, codec)) {
+            store.putAll("UCa", ChannelSegmentStore.Kind.PLAYLIST_ITEM, items("kept", "v1", "v2"));
+        }
+        Files.write(dir.resolve("UCa.seg"), new byte[] { 0, 0, 0, 40, 1, 2, 3 }, StandardOpenOption.APPEND);
+        Files.delete(dir.resolve("UCa.idx"));
+
+        try (ChannelSegmentStore store = new ChannelSegmentStore(dir, codec)) {
+            assertEquals(Arrays.asList("v1", "v2"), Arrays.asList(store.videoIds("UCa", ChannelSegmentStore.Kind.PLAYLIST_ITEM).toArray()));
+            assertEquals("kept", store.get("UCa", ChannelSegmentStore.Kind.PLAYLIST_ITEM, "v2", PlaylistItem.class).getEtag());
+        }
+    }
+
+    @Test
+    public void migratesChannelDirectories() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        Path channelDir = Files.createDirectories(dir.resolve("UCa"));
+        Files.write(channelDir.resolve("v1.json"), "{\"etag\":\"item\"}".getBytes(StandardCharsets.UTF_8));
+        Files.write(channelDir.resolve("details-v1.json"), "{\"etag\":\"details\"}".getBytes(StandardCharsets.UTF_8));
+
+        try (ChannelSegmentStore store = new ChannelSegmentStore(dir, codec)) {
+            assertEquals(2, store.migrateLegacyLayout());
+            assertFalse(Files.exists(channelDir));
+            assertEquals("item", store.get("UCa", ChannelSegmentStore.Kind.PLAYLIST_ITEM, "v1", PlaylistItem.class).getEtag());
+            assertEquals("details", store.get("UCa", ChannelSegmentStore.Kind.DETAILS, "v1", PlaylistItem.class).getEtag());
+        }
+    }
+
+    private static Map<String, PlaylistItem> items(String etag, String... videoIds) {
+        Map<String, PlaylistItem> items = new LinkedHashMap<>();
+        for (String videoId : videoIds) items.put(videoId, item(etag));
+        return items;
+    }
+
+    private static PlaylistItem item(String etag) {
+        return new PlaylistItem().setEtag(etag);
+    }
+}
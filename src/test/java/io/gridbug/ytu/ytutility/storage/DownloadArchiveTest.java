@@ -0,0 +1,81 @@
+package io.gridbug.ytu.ytutility.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DownloadArchiveTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final JsonCodec codec = new JsonCodec();
+
+    @Test
+    public void keepsDownloadsAcrossReopen() throws IOException {
+        Path journal = folder.getRoot().toPath().resolve("archive").resolve("downloads.log");
+        try (DownloadArchive archive = new DownloadArchive(journal, codec)) {
+            archive.record("dQw4w9WgXcQ", Paths.get("/videos/dQw4w9WgXcQ-never.mp4"), 1234);
+        }
+
+        try (DownloadArchive archive = new DownloadArchive(journal, codec)) {
+            assertTrue(archive.contains("dQw4w9WgXcQ"));
+            assertEquals(1234, archive.get("dQw4w9WgXcQ").getSize());
+            assertEquals("/videos/dQw4w9WgXcQ-never.mp4", archive.get("dQw4w9WgXcQ").getPath());
+        }
+    }
+
+    @Test
+    public void truncatesATornLastLine() throws IOException {
+        Path journal = folder.getRoot().toPath().resolve("downloads.log");
+        try (DownloadArchive archive = new DownloadArchive(journal, codec)) {
+            archive.record("dQw4w9WgXcQ", Paths.get("/videos/dQw4w9WgXcQ-never.mp4"), 1234);
+        }
+        Files.write(journal, "{\"videoId\":\"9bZkp7q19f0\",\"pa".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        try (DownloadArchive archive = new DownloadArchive(journal, codec)) {
+            assertEquals(1, archive.size());
+            archive.record("9bZkp7q19f0", Paths.get("/videos/9bZkp7q19f0-gangnam.mkv"), 99);
+        }
+        try (DownloadArchive archive = new DownloadArchive(journal, codec)) {
+            assertEquals(2, archive.size());
+        }
+    }
+
+    @Test
+    public void rebuildsFromFinishedFilesInTheVideosDirectory() throws IOException {
+        Path videos = folder.newFolder("videos").toPath();
+        Files.write(videos.resolve("dQw4w9WgXcQ-never gonna-give.mp4"), new byte[100]);
+        Files.write(videos.resolve("dQw4w9WgXcQ-never gonna-give.en.vtt"), new byte[10]);
+        Files.write(videos.resolve("9bZkp7q19f0-gangnam.mp4.part"), new byte[50]);
+        Files.write(videos.resolve("9bZkp7q19f0-gangnam.f137.mp4"), new byte[50]);
+        Files.write(videos.resolve("notes.txt"), new byte[5]);
+
+        try (DownloadArchive archive = new DownloadArchive(folder.getRoot().toPath().resolve("downloads.log"), codec)) {
+            assertEquals(1, archive.rebuildFrom(videos));
+            assertEquals(100, archive.get("dQw4w9WgXcQ").getSize());
+            assertFalse(archive.contains("9bZkp7q19f0"));
+            assertEquals(0, archive.rebuildFrom(videos));
+        }
+    }
+
+    @Test
+    public void recognisesOnlyFinishedOutputNames() {
+        assertEquals("-_a1B2c3D4e", DownloadArchive.videoIdOf(Paths.get("-_a1B2c3D4e-title.webm")));
+        assertNull(DownloadArchive.videoIdOf(Paths.get("-_a1B2c3D4e-title.webm.part")));
+        assertNull(DownloadArchive.videoIdOf(Paths.get("-_a1B2c3D4e-title.f248.webm")));
+        assertNull(DownloadArchive.videoIdOf(Paths.get("short-title.mp4")));
+    }
+}
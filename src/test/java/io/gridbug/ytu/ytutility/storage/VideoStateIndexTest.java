@@ -0,0 +1,73 @@
+package io.gridbug.ytu.ytutility.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class VideoStateIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysTheLatestStateOfEachVideo() throws IOException {
+        Path journal = folder.getRoot().toPath().resolve("index").resolve("videos.idx");
+        try (VideoStateIndex index = new VideoStateIndex(journal)) {
+            index.markAll(videos("vid-a", "vid-b"), VideoStateIndex.LISTED);
+            index.mark("vid-a", null, VideoStateIndex.DETAILS_FETCHED);
+        }
+
+        try (VideoStateIndex index = new VideoStateIndex(journal)) {
+            assertEquals(2, index.size());
+            assertTrue(index.has("vid-a", VideoStateIndex.LISTED | VideoStateIndex.DETAILS_FETCHED));
+            assertEquals("UCchannel", index.channelOf("vid-a"));
+            assertEquals(Collections.singletonMap("vid-b", "UCchannel"),
+                index.find(VideoStateIndex.LISTED, VideoStateIndex.DETAILS_FETCHED));
+        }
+    }
+
+    @Test
+    public void videoMissedOftenEnoughIsMarkedUnavailable() throws IOException {
+        Path journal = folder.getRoot().toPath().resolve("videos.idx");
+        try (VideoStateIndex index = new VideoStateIndex(journal)) {
+            index.markAll(videos("vid-gone", "vid-back"), VideoStateIndex.LISTED);
+            assertTrue(index.markMissed(Arrays.asList("vid-gone", "vid-back", "vid-unknown"), 3).isEmpty());
+            assertTrue(index.markMissed(Collections.singletonList("vid-gone"), 3).isEmpty());
+        }
+
+        try (VideoStateIndex index = new VideoStateIndex(journal)) {
+            assertEquals(2, index.missesOf("vid-gone"));
+            assertEquals(1, index.missesOf("vid-back"));
+            assertEquals(0, index.missesOf("vid-unknown"));
+            assertTrue(index.has("vid-gone", VideoStateIndex.LISTED));
+
+            assertEquals(Collections.singletonMap("vid-gone", "UCchannel"),
+                index.markMissed(Collections.singletonList("vid-gone"), 3));
+            assertTrue(index.has("vid-gone", VideoStateIndex.UNAVAILABLE));
+            assertFalse(index.has("vid-back", VideoStateIndex.UNAVAILABLE));
+            assertEquals(Collections.singletonMap("vid-back", "UCchannel"),
+                index.find(VideoStateIndex.LISTED, VideoStateIndex.DETAILS_FETCHED | VideoStateIndex.UNAVAILABLE));
+
+            // the count sits in the state byte, so it has to survive other marks
+            index.mark("vid-back", null, VideoStateIndex.DOWNLOAD_QUEUED);
+            assertEquals(1, index.missesOf("vid-back"));
+        }
+    }
+
+    private static Map<String, String> videos(String... ids) {
+        Map<String, String> videos = new LinkedHashMap<>();
+        for (String id : ids) videos.put(id, "UCchannel");
+        return videos;
+    }
+}
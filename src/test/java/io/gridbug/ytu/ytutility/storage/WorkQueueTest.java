@@ -0,0 +1,106 @@
+package io.gridbug.ytu.ytutility.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WorkQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsInOrderAndResumesFromCommittedOffset() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        try (WorkQueue queue = new WorkQueue(dir, 64)) {
+            queue.enqueue(records("a", "b", "c", "d", "e"));
+            List<WorkQueue.Entry> first = queue.read(queue.committedOffset(), 2, queue.endOffset());
+            assertEquals(Arrays.asList("a", "b"), payloads(first));
+            queue.commit(first.get(1).getNextOffset());
+        }
+
+        try (WorkQueue queue = new WorkQueue(dir, 64)) {
+            assertEquals(3, queue.pending());
+            List<WorkQueue.Entry> rest = queue.read(queue.committedOffset(), 10, queue.endOffset());
+            assertEquals(Arrays.asList("c", "d", "e"), payloads(rest));
+        }
+    }
+
+    @Test
+    public void deletesConsumedSegments() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        try (WorkQueue queue = new WorkQueue(dir, 16)) {
+            queue.enqueue(records("record-1", "record-2", "record-3", "record-4"));
+            assertTrue(dir.toFile().list((d, name) -> name.startsWith("segment-")).length > 1);
+
+            List<WorkQueue.Entry> all = queue.read(queue.committedOffset(), 10, queue.endOffset());
+            queue.commit(all.get(all.size() - 1).getNextOffset());
+            assertEquals(1, dir.toFile().list((d, name) -> name.startsWith("segment-")).length);
+            assertEquals(0, queue.pending());
+        }
+    }
+
+    @Test
+    public void pendingFollowsEnqueueAndCommitAcrossSegments() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        try (WorkQueue queue = new WorkQueue(dir, 16)) {
+            queue.enqueue(records("record-1", "record-2", "record-3"));
+            assertEquals(3, queue.pending());
+
+            List<WorkQueue.Entry> first = queue.read(queue.committedOffset(), 2, queue.endOffset());
+            queue.commit(first.get(1).getNextOffset());
+            assertEquals(1, queue.pending());
+
+            queue.enqueue(records("record-4", "record-5"));
+            assertEquals(3, queue.pending());
+            queue.commit(first.get(0).getNextOffset());
+            assertEquals(3, queue.pending());
+        }
+
+        try (WorkQueue queue = new WorkQueue(dir, 16)) {
+            assertEquals(3, queue.pending());
+        }
+    }
+
+    @Test
+    public void truncatesTornTailOnOpen() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        try (WorkQueue queue = new WorkQueue(dir, 1024)) {
+            queue.enqueue(records("kept", "torn"));
+        }
+        File segment = dir.toFile().listFiles((d, name) -> name.startsWith("segment-"))[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(file.length() - 2);
+        }
+
+        try (WorkQueue queue = new WorkQueue(dir, 1024)) {
+            assertEquals(Arrays.asList("kept"), payloads(queue.read(0, 10, queue.endOffset())));
+            queue.enqueue(records("next"));
+            assertEquals(Arrays.asList("kept", "next"), payloads(queue.read(0, 10, queue.endOffset())));
+        }
+    }
+
+    private List<byte[]> records(String... values) {
+        List<byte[]> records = new ArrayList<>();
+        for (String value : values) records.add(value.getBytes(StandardCharsets.UTF_8));
+        return records;
+    }
+
+    private List<String> payloads(List<WorkQueue.Entry> entries) {
+        List<String> values = new ArrayList<>();
+        for (WorkQueue.Entry entry : entries) values.add(new String(entry.getPayload(), StandardCharsets.UTF_8));
+        return values;
+    }
+}